@@ -0,0 +1,163 @@
+package de.felixbruns.jotify;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.felixbruns.jotify.media.Result;
+import de.felixbruns.jotify.media.Track;
+
+/**
+ * Collects concurrent single track browse calls for a short window and
+ * sends them as one multi-id browse request. The first call of a window
+ * waits for the window to pass (or the batch to fill up), sends the
+ * request and parses the result on its own thread; the other calls wait
+ * for that and pick their track from the shared result.
+ */
+class BrowseBatcher {
+	/* Maximum number of ids per browse request. */
+	static final int MAX_IDS = 200;
+	
+	/* Connection to browse with and length of the batching window. */
+	private JotifyConnection connection;
+	private long             window;
+	
+	/* Batch that is currently collecting ids or null. */
+	private Batch open;
+	
+	/**
+	 * Create a new batcher.
+	 *
+	 * @param connection The {@link JotifyConnection} to send browse requests on.
+	 * @param window     Time to collect ids before sending a request.
+	 * @param unit       The {@link TimeUnit} of the window.
+	 */
+	BrowseBatcher(JotifyConnection connection, long window, TimeUnit unit){
+		this.connection = connection;
+		this.window     = unit.toNanos(window);
+		this.open       = null;
+	}
+	
+	/**
+	 * Browse a track, batched with concurrent calls.
+	 *
+	 * @param id A 32-character hex string.
+	 *
+	 * @return A {@link Track} object or null if the track wasn't found
+	 *         or the request failed.
+	 *
+	 * @throws TimeoutException If the batched request timed out.
+	 */
+	Track browse(String id) throws TimeoutException {
+		Batch   batch;
+		boolean leader;
+		
+		id = id.toLowerCase();
+		
+		synchronized(this){
+			leader = (this.open == null);
+			
+			if(leader){
+				this.open = new Batch();
+			}
+			
+			batch = this.open;
+			
+			batch.ids.add(id);
+			
+			/* Close a full batch and let its leader send it right away. */
+			if(batch.ids.size() >= MAX_IDS){
+				this.open = null;
+				
+				this.notifyAll();
+			}
+		}
+		
+		if(leader){
+			this.collect(batch);
+			
+			batch.run(this.connection);
+		}
+		
+		return batch.get(id);
+	}
+	
+	/* Wait until the window passed or the batch was closed because it's full. */
+	private synchronized void collect(Batch batch){
+		long deadline = System.nanoTime() + this.window;
+		long remaining;
+		
+		while(this.open == batch && (remaining = deadline - System.nanoTime()) > 0){
+			try{
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				
+				break;
+			}
+		}
+		
+		if(this.open == batch){
+			this.open = null;
+		}
+	}
+	
+	/* Ids of one browse request and the tracks found for them. */
+	private static class Batch {
+		private Set<String>        ids;
+		private Map<String, Track> tracks;
+		private TimeoutException   timeout;
+		private CountDownLatch     done;
+		
+		private Batch(){
+			this.ids     = new LinkedHashSet<String>();
+			this.tracks  = new HashMap<String, Track>();
+			this.timeout = null;
+			this.done    = new CountDownLatch(1);
+		}
+		
+		/* Send request, parse it and split result by track id. */
+		private void run(JotifyConnection connection){
+			try{
+				Result result = connection.requestTracks(this.ids);
+				
+				if(result != null){
+					for(Track track : result.getTracks()){
+						if(track.getId() != null){
+							this.tracks.put(track.getId().toLowerCase(), track);
+						}
+					}
+				}
+			}
+			catch(TimeoutException e){
+				this.timeout = e;
+			}
+			finally{
+				this.done.countDown();
+			}
+		}
+		
+		/* Wait for the request and get a track. */
+		private Track get(String id) throws TimeoutException {
+			try{
+				this.done.await();
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				
+				return null;
+			}
+			
+			if(this.timeout != null){
+				throw new TimeoutException(this.timeout.getMessage());
+			}
+			
+			return this.tracks.get(id);
+		}
+	}
+}
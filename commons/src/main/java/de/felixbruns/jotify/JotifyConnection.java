@@ -3,6 +3,7 @@ package de.felixbruns.jotify;
 import de.felixbruns.jotify.cache.Cache;
 import de.felixbruns.jotify.cache.FileCache;
 import de.felixbruns.jotify.cache.MemoryCache;
+import de.felixbruns.jotify.cache.TieredCache;
 import de.felixbruns.jotify.crypto.Hash;
 import de.felixbruns.jotify.crypto.RSA;
 import de.felixbruns.jotify.crypto.RandomBytes;
@@ -18,12 +19,19 @@ import de.felixbruns.jotify.player.PlaybackListener;
 import de.felixbruns.jotify.player.Player;
 import de.felixbruns.jotify.player.SpotifyOggPlayer;
 import de.felixbruns.jotify.protocol.Command;
+import de.felixbruns.jotify.protocol.CommandDispatcher;
 import de.felixbruns.jotify.protocol.CommandListener;
+import de.felixbruns.jotify.protocol.ConnectionHealth;
+import de.felixbruns.jotify.protocol.PacketListener;
 import de.felixbruns.jotify.protocol.Protocol;
+import de.felixbruns.jotify.protocol.Reactor;
+import de.felixbruns.jotify.protocol.Reconnector;
 import de.felixbruns.jotify.protocol.Session;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelCallback;
+import de.felixbruns.jotify.protocol.channel.StreamingChannelCallback;
 import de.felixbruns.jotify.util.Hex;
+import de.felixbruns.jotify.util.SingleFlight;
 import de.felixbruns.jotify.util.XMLBuilder;
 
 import javax.imageio.ImageIO;
@@ -31,13 +39,24 @@ import javax.sound.sampled.LineUnavailableException;
 import java.awt.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection to Spotify implementing {@link Jotify}.
+ *
+ * Identical toplist, search, image and browse calls made concurrently on
+ * the same connection send a single request and return the same objects,
+ * waiting at most for the connection's timeout. Returned media objects
+ * and images must therefore be treated as read-only.
+ */
 public class JotifyConnection implements Jotify, CommandListener {
     /*
       * Values for browsing media.
@@ -52,6 +71,21 @@ public class JotifyConnection implements Jotify, CommandListener {
     protected Session session;
     protected Protocol protocol;
 
+    /*
+      * Reactor to receive packets on, or 'null' to use a dedicated I/O thread.
+      */
+    private Reactor reactor;
+
+    /*
+      * Gets the connection back when it's lost.
+      */
+    private Reconnector reconnector;
+
+    /*
+      * Handles incoming commands (created on login).
+      */
+    private CommandDispatcher dispatcher;
+
     /*
       * User information.
       */
@@ -71,12 +105,30 @@ public class JotifyConnection implements Jotify, CommandListener {
     private long timeout;
     private TimeUnit unit;
 
+    /*
+      * Batches concurrent single track browse calls, or 'null' if disabled.
+      */
+    private BrowseBatcher batcher;
+
+    /*
+      * Browse round trips saved by resolving alternatives in batches.
+      */
+    private AtomicLong savedRoundTrips;
+
+    /*
+      * Identical toplist, search, image and browse requests in flight on
+      * this connection. Toplists and search results depend on the
+      * catalogue, so they're keyed by country.
+      */
+    private SingleFlight<String> requests;
+
     /**
      * Create a new Jotify instance using the default {@link Cache}
-     * implementation and timeout value (10 seconds).
+     * implementation (the {@link TieredCache} shared by all connections,
+     * see {@link TieredCache#getDefault()}) and timeout value (10 seconds).
      */
     public JotifyConnection() {
-        this(new FileCache(), 10, TimeUnit.SECONDS);
+        this(TieredCache.getDefault(), 10, TimeUnit.SECONDS);
     }
 
     /**
@@ -89,10 +141,14 @@ public class JotifyConnection implements Jotify, CommandListener {
      * @param unit    TimeUnit to use for timeout.
      * @see MemoryCache
      * @see FileCache
+     * @see TieredCache
      */
     public JotifyConnection(Cache cache, long timeout, TimeUnit unit) {
         this.session = new Session();
         this.protocol = null;
+        this.reactor = null;
+        this.reconnector = null;
+        this.dispatcher = null;
         this.running = false;
         this.user = null;
         this.userSemaphore = new Semaphore(2);
@@ -100,6 +156,9 @@ public class JotifyConnection implements Jotify, CommandListener {
         this.cache = cache;
         this.timeout = timeout;
         this.unit = unit;
+        this.batcher = null;
+        this.savedRoundTrips = new AtomicLong(0);
+        this.requests = new SingleFlight<String>();
 
         /* Acquire permits (country, prodinfo). */
         this.userSemaphore.acquireUninterruptibly(2);
@@ -114,6 +173,34 @@ public class JotifyConnection implements Jotify, CommandListener {
     public void setTimeout(long timeout, TimeUnit unit) {
         this.timeout = timeout;
         this.unit = unit;
+
+        if (this.protocol != null) {
+            this.protocol.setTimeout(timeout, unit);
+        }
+    }
+
+    /**
+     * Enable batching of single track browse calls. Calls to {@link #browseTrack(String)}
+     * arriving within the given window are sent as one multi-id browse request. The first
+     * call of a window is delayed by up to the window length. Disabled by default.
+     *
+     * @param window Time to collect calls, zero or less disables batching.
+     * @param unit   TimeUnit of the window.
+     */
+    public void setBrowseBatching(long window, TimeUnit unit) {
+        this.batcher = (window > 0) ? new BrowseBatcher(this, window, unit) : null;
+    }
+
+    /**
+     * Get the number of browse round trips saved by resolving alternatives of
+     * restricted tracks in batches instead of one track after the other. The
+     * serial walk browsed each alternative until an allowed one was found and,
+     * for lists of tracks, browsed each restricted track itself once more first.
+     *
+     * @return The number of saved round trips.
+     */
+    public long getSavedRoundTrips() {
+        return this.savedRoundTrips.get();
     }
 
     /**
@@ -122,8 +209,32 @@ public class JotifyConnection implements Jotify, CommandListener {
      * @param seconds Timeout in seconds to use.
      */
     public void setTimeout(long seconds) {
-        this.timeout = seconds;
-        this.unit = TimeUnit.SECONDS;
+        this.setTimeout(seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the round trip time, failures and health score of the connection.
+     *
+     * @return The {@link ConnectionHealth} or null if not logged in.
+     */
+    public ConnectionHealth getHealth() {
+        Protocol protocol = this.protocol;
+
+        return (protocol != null) ? protocol.getHealth() : null;
+    }
+
+    /**
+     * Receive packets on a shared {@link Reactor} instead of starting
+     * a dedicated I/O thread. Must be called before {@link #login}.
+     *
+     * @param reactor The {@link Reactor} to use or 'null' for blocking I/O.
+     */
+    public void setReactor(Reactor reactor) {
+        if (this.protocol != null) {
+            throw new IllegalStateException("Already logged in!");
+        }
+
+        this.reactor = reactor;
     }
 
     /**
@@ -146,19 +257,43 @@ public class JotifyConnection implements Jotify, CommandListener {
         /* Create user object. */
         this.user = new User(username);
 
-        /* Add command handler. */
-        this.protocol.addListener(this);
+        /* Add command handlers. */
+        this.dispatcher = this.createDispatcher();
 
-        /* Start I/O thread. */
-        new Thread(this, "I/O-Thread").start();
+        this.protocol.addPacketListener(this.dispatcher);
+
+        /* Expire channels that are idle longer than our timeout, they count as timeouts. */
+        this.protocol.setTimeout(this.timeout, this.unit);
+
+        /* Reconnect and resume open channels when the connection is lost. */
+        this.reconnector = new Reconnector(this.session, this.reactor);
+
+        /* Register with reactor or start I/O thread. */
+        if (this.reactor != null) {
+            this.reactor.register(this.protocol);
+        } else {
+            new Thread(this, "I/O-Thread").start();
+        }
     }
 
     /**
-     * Closes the connection to a Spotify server.
+     * Closes the connection to a Spotify server. Waits until cached
+     * data is written, if the connection was given a cache that writes
+     * behind. The shared default cache is flushed when the VM shuts
+     * down instead, so closing doesn't wait for other connections.
      *
      * @throws ConnectionException
      */
     public void close() throws ConnectionException {
+        if (this.cache instanceof TieredCache && this.cache != TieredCache.getDefault()) {
+            ((TieredCache) this.cache).flush();
+        }
+
+        /* Don't try to get the connection back. */
+        if (this.reconnector != null) {
+            this.reconnector.close();
+        }
+
         /* This will make receivePacket return immediately. */
         if (this.protocol != null) {
             this.protocol.disconnect();
@@ -172,8 +307,8 @@ public class JotifyConnection implements Jotify, CommandListener {
      * Continuously receives packets in order to handle them.
      */
     public void run() {
-        /* Fail quietly. */
-        if (this.running) {
+        /* Fail quietly. Packets are received by the reactor in non-blocking mode. */
+        if (this.running || this.reactor != null) {
             return;
         }
 
@@ -187,14 +322,21 @@ public class JotifyConnection implements Jotify, CommandListener {
         /* Continuously receive packets until connection is closed. */
         try {
             while (true) {
-                if (this.protocol == null) {
+                Protocol protocol = this.protocol;
+
+                if (protocol == null) {
                     break;
                 }
 
-                this.protocol.receivePacket();
+                try {
+                    protocol.receivePacket();
+                } catch (ProtocolException e) {
+                    /* Connection was closed or lost, stop if it can't be re-established. */
+                    if (!this.reconnector.reconnect()) {
+                        break;
+                    }
+                }
             }
-        } catch (ProtocolException e) {
-            /* Connection was closed. */
         } finally {
             this.running = false;
         }
@@ -228,12 +370,26 @@ public class JotifyConnection implements Jotify, CommandListener {
      * @param type     A toplist type. e.g. "artist", "album" or "track".
      * @param region   A region code or null. e.g. "SE" or "DE".
      * @param username A username or null.
-     * @return A {@link Result} object.
+     * @return A {@link Result} object or null if the request failed.
+     * @throws TimeoutException If the response doesn't arrive in time.
      * @see Result
      */
-    public Result toplist(String type, String region, String username) throws TimeoutException {
+    public Result toplist(final String type, final String region, final String username) throws TimeoutException {
+        return this.requests.execute(
+                "toplist:" + this.user.getCountry() + ":" + type + ":" + region + ":" + username,
+                new Callable<Result>() {
+                    public Result call() throws TimeoutException {
+                        return requestToplist(type, region, username);
+                    }
+                },
+                this.timeout, this.unit
+        );
+    }
+
+    /* Fetch a toplist without coalescing. */
+    private Result requestToplist(String type, String region, String username) throws TimeoutException {
         /* Create channel callback and parameter map. */
-        ChannelCallback callback = new ChannelCallback();
+        StreamingChannelCallback callback = new StreamingChannelCallback();
         Map<String, String> params = new HashMap<String, String>();
 
         /* Add parameters. */
@@ -248,23 +404,34 @@ public class JotifyConnection implements Jotify, CommandListener {
             return null;
         }
 
-        /* Get data. */
-        byte[] data = callback.get(this.timeout, this.unit);
-
-        /* Create result from XML. */
-        return XMLMediaParser.parseResult(data, "UTF-8");
+        /* Create result from XML while it arrives. */
+        return XMLMediaParser.parseResult(callback.getInputStream(this.timeout, this.unit), "UTF-8");
     }
 
     /**
      * Search for an artist, album or track.
      *
      * @param query Your search query.
-     * @return A {@link Result} object.
+     * @return A {@link Result} object or null if the request failed.
+     * @throws TimeoutException If the response doesn't arrive in time.
      * @see Result
      */
-    public Result search(String query) throws TimeoutException {
+    public Result search(final String query) throws TimeoutException {
+        return this.requests.execute(
+                "search:" + this.user.getCountry() + ":" + query,
+                new Callable<Result>() {
+                    public Result call() throws TimeoutException {
+                        return requestSearch(query);
+                    }
+                },
+                this.timeout, this.unit
+        );
+    }
+
+    /* Search without coalescing. */
+    private Result requestSearch(String query) throws TimeoutException {
         /* Create channel callback. */
-        ChannelCallback callback = new ChannelCallback();
+        StreamingChannelCallback callback = new StreamingChannelCallback();
 
         /* Send search query. */
         try {
@@ -273,11 +440,13 @@ public class JotifyConnection implements Jotify, CommandListener {
             return null;
         }
 
-        /* Get data. */
-        byte[] data = callback.get(this.timeout, this.unit);
+        /* Create result from XML while it arrives. */
+        Result result = XMLMediaParser.parseResult(callback.getInputStream(this.timeout, this.unit), "UTF-8");
 
-        /* Create result from XML. */
-        Result result = XMLMediaParser.parseResult(data, "UTF-8");
+        /* Parsing failed, the error was reported. */
+        if (result == null) {
+            return null;
+        }
 
         result.setQuery(query);
 
@@ -293,7 +462,20 @@ public class JotifyConnection implements Jotify, CommandListener {
      * @return An {@link Image} or null if the request failed.
      * @see Image
      */
-    public Image image(String id) throws TimeoutException {
+    public Image image(final String id) throws TimeoutException {
+        return this.requests.execute(
+                "image:" + id,
+                new Callable<Image>() {
+                    public Image call() throws TimeoutException {
+                        return requestImage(id);
+                    }
+                },
+                this.timeout, this.unit
+        );
+    }
+
+    /* Get an image without coalescing. */
+    private Image requestImage(String id) throws TimeoutException {
         /* Data buffer. */
         byte[] data;
 
@@ -337,7 +519,20 @@ public class JotifyConnection implements Jotify, CommandListener {
      *         on failure.
      * @see sun.plugin2.util.BrowseType
      */
-    private Object browse(int type, String id) throws TimeoutException {
+    private Object browse(final int type, final String id) throws TimeoutException {
+        return this.requests.execute(
+                "browse:" + type + ":" + id,
+                new Callable<Object>() {
+                    public Object call() throws TimeoutException {
+                        return requestBrowse(type, id);
+                    }
+                },
+                this.timeout, this.unit
+        );
+    }
+
+    /* Browse without coalescing. */
+    private Object requestBrowse(int type, String id) throws TimeoutException {
         /*
            * Check if id is a 32-character hex string,
            * if not try to parse it as a Spotify URI.
@@ -364,7 +559,7 @@ public class JotifyConnection implements Jotify, CommandListener {
         }
 
         /* Create channel callback. */
-        ChannelCallback callback = new ChannelCallback();
+        StreamingChannelCallback callback = new StreamingChannelCallback();
 
         /* Send browse request. */
         try {
@@ -373,9 +568,9 @@ public class JotifyConnection implements Jotify, CommandListener {
             return null;
         }
 
-        /* Create object from XML. */
+        /* Create object from XML while it arrives. */
         return XMLMediaParser.parse(
-                callback.get(this.timeout, this.unit), "UTF-8"
+                callback.getInputStream(this.timeout, this.unit), "UTF-8"
         );
     }
 
@@ -453,28 +648,29 @@ public class JotifyConnection implements Jotify, CommandListener {
     }
 
     private Track browse(String id, boolean tryAlternatives) throws TimeoutException {
-        /* Browse. */
-        Object object = this.browse(BROWSE_TRACK, id);
+        BrowseBatcher batcher = this.batcher;
+        Track track = null;
 
-        if (object instanceof Result) {
-            Result result = (Result) object;
+        /* Browse, batched with concurrent calls if enabled (hex ids only). */
+        if (batcher != null && id.length() == 32 && Hex.isHex(id)) {
+            track = batcher.browse(id);
+        } else {
+            Object object = this.browse(BROWSE_TRACK, id);
 
-            if (result.getTracks().isEmpty()) {
-                return null;
+            if (object instanceof Result && !((Result) object).getTracks().isEmpty()) {
+                track = ((Result) object).getTracks().get(0);
             }
+        }
 
-            Track track = result.getTracks().get(0);
+        if (track != null) {
             if (track.isAllowed(user.getCountry())) {
                 return track;
             }
             if (tryAlternatives) {
-                List<Track> alternatives = track.getAlternatives();
-                for (Track alternative : alternatives) {
-                    //only recurse one layer deep...
-                    Track alternativeOption = browse(alternative.getId(), false);
-                    if (alternativeOption != null) {
-                        return alternativeOption;
-                    }
+                List<Track> resolved = this.resolveAlternatives(Arrays.asList(track), false);
+
+                if (!resolved.isEmpty()) {
+                    return resolved.get(0);
                 }
             }
         }
@@ -482,6 +678,93 @@ public class JotifyConnection implements Jotify, CommandListener {
         return null;
     }
 
+    /*
+      * Replace tracks that aren't allowed in the user's country by their first
+      * allowed alternative. The alternatives of all tracks are browsed at once
+      * (only one layer deep). Tracks without an allowed alternative are dropped.
+      * Set 'rebrowse' if the serial walk would have browsed each restricted
+      * track again before its alternatives, to count that lookup as well.
+      */
+    private List<Track> resolveAlternatives(List<Track> tracks, boolean rebrowse) throws TimeoutException {
+        String country = this.user.getCountry();
+        Set<String> ids = new LinkedHashSet<String>();
+        Map<String, Track> browsed = new HashMap<String, Track>();
+        List<Track> resolved = new ArrayList<Track>(tracks.size());
+        int requests = 0;
+        int lookups = 0;
+
+        /* Collect alternatives of restricted tracks. */
+        for (Track track : tracks) {
+            if (!track.isAllowed(country)) {
+                for (Track alternative : track.getAlternatives()) {
+                    if (alternative.getId() != null && alternative.getId().length() == 32) {
+                        ids.add(alternative.getId().toLowerCase());
+                    }
+                }
+            }
+        }
+
+        /* Browse them with as few requests as possible. */
+        List<String> list = new ArrayList<String>(ids);
+
+        for (int i = 0; i < list.size(); i += BrowseBatcher.MAX_IDS) {
+            Result result = this.requestTracks(list.subList(i, Math.min(list.size(), i + BrowseBatcher.MAX_IDS)));
+
+            requests++;
+
+            if (result != null) {
+                for (Track track : result.getTracks()) {
+                    browsed.put(track.getId().toLowerCase(), track);
+                }
+            }
+        }
+
+        /* Pick first allowed alternative and count the lookups a serial walk would have needed. */
+        for (Track track : tracks) {
+            if (track.isAllowed(country)) {
+                resolved.add(track);
+
+                continue;
+            }
+
+            if (rebrowse) {
+                lookups++;
+            }
+
+            for (Track alternative : track.getAlternatives()) {
+                Track candidate = (alternative.getId() != null) ? browsed.get(alternative.getId().toLowerCase()) : null;
+
+                lookups++;
+
+                if (candidate != null && candidate.isAllowed(country)) {
+                    resolved.add(candidate);
+
+                    break;
+                }
+            }
+        }
+
+        this.savedRoundTrips.addAndGet(Math.max(0, lookups - requests));
+
+        return resolved;
+    }
+
+    /* Browse multiple tracks by hex id in one request, used by BrowseBatcher. */
+    Result requestTracks(Collection<String> ids) throws TimeoutException {
+        /* Create channel callback. */
+        StreamingChannelCallback callback = new StreamingChannelCallback();
+
+        /* Send browse request. */
+        try {
+            this.protocol.sendBrowseRequest(callback, BROWSE_TRACK, ids);
+        } catch (ProtocolException e) {
+            return null;
+        }
+
+        /* Create result from XML while it arrives. */
+        return XMLMediaParser.parseResult(callback.getInputStream(this.timeout, this.unit), "UTF-8");
+    }
+
     /**
      * Browse track info.
      *
@@ -569,19 +852,14 @@ public class JotifyConnection implements Jotify, CommandListener {
         }
 
         /* Create result from XML. */
-        List<Track> tracks = XMLMediaParser.parseResult(data, "UTF-8").getTracks();
-        List<Track> allowedTracks = new ArrayList<Track>();
-        for (Track track : tracks) {
-            if (track.isAllowed(user.getCountry())) {
-                allowedTracks.add(track);
-            } else {
-                Track alternative = browse(track.getId(), true);
-                if (alternative != null) {
-                    allowedTracks.add(alternative);
-                }
-            }
+        Result result = XMLMediaParser.parseResult(data, "UTF-8");
+
+        if (result == null) {
+            return null;
         }
-        return allowedTracks;
+
+        /* Replace restricted tracks, resolving all alternatives at once. */
+        return this.resolveAlternatives(result.getTracks(), true);
     }
 
     /**
@@ -635,7 +913,7 @@ public class JotifyConnection implements Jotify, CommandListener {
             return new ArrayList<Track>();
         }
         /* Create channel callback */
-        ChannelCallback callback = new ChannelCallback();
+        StreamingChannelCallback callback = new StreamingChannelCallback();
 
         /* Send browse request. */
         try {
@@ -644,11 +922,10 @@ public class JotifyConnection implements Jotify, CommandListener {
             return null;
         }
 
-        /* Get data. */
-        byte[] data = callback.get(this.timeout, this.unit);
+        /* Create result from XML while it arrives. */
+        Result result = XMLMediaParser.parseResult(callback.getInputStream(this.timeout, this.unit), "UTF-8");
 
-        /* Create result from XML. */
-        return XMLMediaParser.parseResult(data, "UTF-8").getTracks();
+        return (result != null) ? result.getTracks() : null;
     }
 
     /**
@@ -1617,122 +1894,79 @@ public class JotifyConnection implements Jotify, CommandListener {
      *
      * @param command A command.
      * @param payload Payload of packet.
+     * @deprecated Commands are handled by a {@link CommandDispatcher} that is added
+     *             to the protocol on login, this just hands the packet to it. Don't
+     *             add the connection as a listener as well, or packets are handled twice.
      */
+    @Deprecated
     public void commandReceived(int command, byte[] payload) {
-        //System.out.format("< Command: 0x%02x Length: %d\n", command, payload.length);
-
-        switch (command) {
-            case Command.COMMAND_SECRETBLK: {
-                /* Check length. */
-                if (payload.length != 336) {
-                    System.err.format("Got command 0x02 with len %d, expected 336!\n", payload.length);
-                }
+        if (this.dispatcher != null) {
+            this.dispatcher.packetReceived(command, ByteBuffer.wrap(payload));
+        }
+    }
 
-                /* Check RSA public key. */
-                byte[] rsaPublicKey = RSA.keyToBytes(this.session.getRSAPublicKey());
+    /**
+     * Creates the dispatcher that handles incoming commands from the server.
+     * Common commands are handled by {@link CommandDispatcher} itself.
+     *
+     * @return A {@link CommandDispatcher} for this connection.
+     */
+    private CommandDispatcher createDispatcher() {
+        CommandDispatcher dispatcher = new CommandDispatcher(this.protocol, this.session);
 
-                for (int i = 0; i < 128; i++) {
-                    if (payload[16 + i] != rsaPublicKey[i]) {
-                        System.err.format("RSA public key doesn't match! %d\n", i);
+        dispatcher.setHandler(Command.COMMAND_COUNTRYCODE, new PacketListener() {
+            public void packetReceived(int command, ByteBuffer payload) {
+                JotifyConnection.this.user.setCountry(Charset.forName("UTF-8").decode(payload).toString());
 
-                        break;
-                    }
-                }
+                /* Release 'country' permit. */
+                JotifyConnection.this.userSemaphore.release();
+            }
+        });
 
-                /* Send cache hash. */
-                try {
-                    this.protocol.sendCacheHash();
-                } catch (ProtocolException e) {
-                    /* Just don't care. */
-                }
+        dispatcher.setHandler(Command.COMMAND_NOTIFY, new PacketListener() {
+            public void packetReceived(int command, ByteBuffer payload) {
+                /* HTML-notification, shown in a yellow bar in the official client. */
+                /* Skip 11 byte header... */
+                payload.position(payload.position() + 11);
 
-                break;
+                JotifyConnection.this.user.setNotification(Charset.forName("UTF-8").decode(payload).toString());
             }
-            case Command.COMMAND_PING: {
-                /* Ignore the timestamp but respond to the request. */
-                /* int timestamp = IntegerUtilities.bytesToInteger(payload); */
-                try {
-                    this.protocol.sendPong();
-                } catch (ProtocolException e) {
-                    /* Just don't care. */
-                }
+        });
 
-                break;
-            }
-            case Command.COMMAND_PONGACK: {
-                break;
-            }
-            case Command.COMMAND_CHANNELDATA: {
-                Channel.process(payload);
+        dispatcher.setHandler(Command.COMMAND_PRODINFO, new PacketListener() {
+            public void packetReceived(int command, ByteBuffer payload) {
+                byte[] data = new byte[payload.remaining()];
 
-                break;
-            }
-            case Command.COMMAND_CHANNELERR: {
-                Channel.error(payload);
+                payload.get(data);
 
-                break;
-            }
-            case Command.COMMAND_AESKEY: {
-                /* Channel id is at offset 2. AES Key is at offset 4. */
-                Channel.process(Arrays.copyOfRange(payload, 2, payload.length));
+                JotifyConnection.this.user = XMLUserParser.parseUser(data, "UTF-8", JotifyConnection.this.user);
 
-                break;
-            }
-            case Command.COMMAND_SHAHASH: {
-                /* Do nothing. */
-                break;
+                /* Release 'prodinfo' permit. */
+                JotifyConnection.this.userSemaphore.release();
             }
-            case Command.COMMAND_COUNTRYCODE: {
-                //System.out.println("Country: " + new String(payload, Charset.forName("UTF-8")));
-                this.user.setCountry(new String(payload, Charset.forName("UTF-8")));
+        });
 
-                /* Release 'country' permit. */
-                this.userSemaphore.release();
+        dispatcher.setHandler(Command.COMMAND_PLAYLISTCHANGED, new PacketListener() {
+            public void packetReceived(int command, ByteBuffer payload) {
+                byte[] data = new byte[payload.remaining()];
 
-                break;
-            }
-            case Command.COMMAND_P2P_INITBLK: {
-                /* Do nothing. */
-                break;
-            }
-            case Command.COMMAND_NOTIFY: {
-                /* HTML-notification, shown in a yellow bar in the official client. */
-                /* Skip 11 byte header... */
-                /*System.out.println("Notification: " + new String(
-                        Arrays.copyOfRange(payload, 11, payload.length), Charset.forName("UTF-8")
-                    ));*/
-                this.user.setNotification(new String(
-                        Arrays.copyOfRange(payload, 11, payload.length), Charset.forName("UTF-8")
-                ));
-
-                break;
+                payload.get(data);
+
+                System.out.format("Playlist '%s' changed!\n", Hex.toHex(data));
             }
-            case Command.COMMAND_PRODINFO: {
-                this.user = XMLUserParser.parseUser(payload, "UTF-8", this.user);
+        });
 
-                /* Release 'prodinfo' permit. */
-                this.userSemaphore.release();
+        dispatcher.setDefaultHandler(new PacketListener() {
+            public void packetReceived(int command, ByteBuffer payload) {
+                byte[] data = new byte[payload.remaining()];
 
-                break;
-            }
-            case Command.COMMAND_WELCOME: {
-                break;
-            }
-            case Command.COMMAND_PAUSE: {
-                /* TODO: Show notification and pause. */
-                break;
-            }
-            case Command.COMMAND_PLAYLISTCHANGED: {
-                System.out.format("Playlist '%s' changed!\n", Hex.toHex(payload));
+                payload.get(data);
 
-                break;
+                System.out.format("Unknown Command: 0x%02x Length: %d\n", command, data.length);
+                System.out.println("Data: " + new String(data) + " " + Hex.toHex(data));
             }
-            default: {
-                System.out.format("Unknown Command: 0x%02x Length: %d\n", command, payload.length);
-                System.out.println("Data: " + new String(payload) + " " + Hex.toHex(payload));
+        });
 
-                break;
-            }
-        }
+        return dispatcher;
     }
 }
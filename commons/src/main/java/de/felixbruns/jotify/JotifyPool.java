@@ -11,6 +11,7 @@ import java.util.concurrent.TimeoutException;
 
 import javax.sound.sampled.LineUnavailableException;
 
+import de.felixbruns.jotify.crypto.KeyMaterialPool;
 import de.felixbruns.jotify.exceptions.AuthenticationException;
 import de.felixbruns.jotify.exceptions.ConnectionException;
 import de.felixbruns.jotify.exceptions.ProtocolException;
@@ -23,6 +24,8 @@ import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.media.User;
 import de.felixbruns.jotify.player.PlaybackListener;
 import de.felixbruns.jotify.player.Player;
+import de.felixbruns.jotify.protocol.ConnectionHealth;
+import de.felixbruns.jotify.protocol.Reactor;
 
 public class JotifyPool implements Jotify, Player {
 	private List<Jotify>          connectionList;
@@ -31,6 +34,7 @@ public class JotifyPool implements Jotify, Player {
 	private int                   poolSize;
 	private String                username;
 	private String                password;
+	private Reactor               reactor;
 	
 	private static JotifyPool instance;
 	
@@ -47,12 +51,17 @@ public class JotifyPool implements Jotify, Player {
 	}
 	
 	public JotifyPool(int poolSize){
+		this(poolSize, null);
+	}
+	
+	public JotifyPool(int poolSize, Reactor reactor){
 		this.connectionList  = new LinkedList<Jotify>();
 		this.connectionQueue = new LinkedBlockingQueue<Jotify>();
 		this.playConnection  = null;
 		this.poolSize        = poolSize;
 		this.username        = null;
 		this.password        = null;
+		this.reactor         = reactor;
 	}
 	
 	private synchronized Jotify createConnection() throws ConnectionException, AuthenticationException {
@@ -62,13 +71,13 @@ public class JotifyPool implements Jotify, Player {
 		}
 		
 		/* Create a new connection. */
-		Jotify connection = new JotifyConnection();
+		JotifyConnection connection = new JotifyConnection();
 		
-		/* Try to login with given username and password. */
-		connection.login(this.username, this.password);
+		/* Share a reactor between all connections if we have one. */
+		connection.setReactor(this.reactor);
 		
-		/* Start the connections I/O thread. */
-		new Thread(connection, "JotifyConnection-Thread").start();
+		/* Try to login with given username and password (starts I/O thread if needed). */
+		connection.login(this.username, this.password);
 		
 		/* Add connection to pool. */
 		this.connectionList.add(connection);
@@ -92,6 +101,9 @@ public class JotifyPool implements Jotify, Player {
 				if(connection == null){
 					throw new TimeoutException("Couldn't get connection after 10 seconds.");
 				}
+				
+				/* Route work away from slow or degraded connections. */
+				connection = this.healthiest(connection);
 			}
 			catch(InterruptedException e){
 				throw new RuntimeException(e);
@@ -116,6 +128,40 @@ public class JotifyPool implements Jotify, Player {
 		return connection;
 	}
 	
+	/*
+	 * Swap a connection taken from the queue for the idle connection with the
+	 * best health score, putting the other one back.
+	 */
+	private Jotify healthiest(Jotify connection){
+		double best = score(connection);
+		
+		for(Jotify candidate : this.connectionQueue){
+			double score = score(candidate);
+			
+			if(score > best && this.connectionQueue.remove(candidate)){
+				this.connectionQueue.add(connection);
+				
+				connection = candidate;
+				best       = score;
+			}
+		}
+		
+		return connection;
+	}
+	
+	/* Health score of a connection, connections without health information count as healthy. */
+	private static double score(Jotify connection){
+		if(connection instanceof JotifyConnection){
+			ConnectionHealth health = ((JotifyConnection)connection).getHealth();
+			
+			if(health != null){
+				return health.getScore();
+			}
+		}
+		
+		return 1.0;
+	}
+	
 	public void login(String username, String password) throws ConnectionException, AuthenticationException {
 		/* Check if connections are available. */
 		if(!this.connectionList.isEmpty()){
@@ -125,6 +171,13 @@ public class JotifyPool implements Jotify, Player {
 		this.username = username;
 		this.password = password;
 		
+		/* Have key pairs ready for the other connections of the pool, unless pre-generation is disabled. */
+		KeyMaterialPool keys = KeyMaterialPool.getDefault();
+		
+		if(keys.getDepth() > 0 && keys.getDepth() < this.poolSize){
+			keys.setDepth(this.poolSize);
+		}
+		
 		/* Create a new connection and immediately add it to the queue. */
 		Jotify connection = this.createConnection();
 		
@@ -6,13 +6,15 @@ import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import de.felixbruns.jotify.exceptions.ProtocolException;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
 import de.felixbruns.jotify.util.GZIP;
 
 public abstract class AsyncChannelCallback implements Runnable, ChannelListener {
-	private List<ByteBuffer> buffers;
-	private int              bytes;
+	private List<ByteBuffer>  buffers;
+	private int               bytes;
+	private ProtocolException error;
 	
 	private static Executor executor;
 	
@@ -23,6 +25,7 @@ public abstract class AsyncChannelCallback implements Runnable, ChannelListener
 	public AsyncChannelCallback(){
 		this.buffers = new LinkedList<ByteBuffer>();
 		this.bytes   = 0;
+		this.error   = null;
 	}
 	
 	public void channelHeader(Channel channel, byte[] header){
@@ -38,19 +41,30 @@ public abstract class AsyncChannelCallback implements Runnable, ChannelListener
 	}
 	
 	public void channelEnd(Channel channel){
-		Channel.unregister(channel.getId());
-		
 		/* Ensure callback is not executed in I/O thread. */
 		executor.execute(this);
 	}
 	
 	public void channelError(Channel channel){
-		Channel.unregister(channel.getId());
+		if(channel.isTimedOut()){
+			this.error = new ProtocolException("Timeout while waiting for data.");
+		}
+		else{
+			this.error = new ProtocolException("Channel error.");
+		}
+		
+		/* Ensure callback is not executed in I/O thread. */
+		executor.execute(this);
 	}
 	
 	public void run(){
 		/* Invoke callback. */
-		this.receivedData(this.getData());
+		if(this.error != null){
+			this.receivedError(this.error);
+		}
+		else{
+			this.receivedData(this.getData());
+		}
 	}
 	
 	/**
@@ -80,4 +94,14 @@ public abstract class AsyncChannelCallback implements Runnable, ChannelListener
 	}
 	
 	public abstract void receivedData(byte[] data);
+	
+	/**
+	 * Called instead of {@link #receivedData(byte[])} if the channel failed
+	 * or timed out. Errors are ignored by default.
+	 * 
+	 * @param e A {@link ProtocolException} describing the error.
+	 */
+	public void receivedError(ProtocolException e){
+		/* Ignore. */
+	}
 }
@@ -2,6 +2,7 @@ package de.felixbruns.jotify.async;
 
 import java.awt.Image;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.TimeoutException;
@@ -24,7 +25,7 @@ import de.felixbruns.jotify.protocol.*;
 import de.felixbruns.jotify.protocol.channel.*;
 import de.felixbruns.jotify.util.*;
 
-public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
+public class AsyncJotifyConnection implements AsyncJotify, CommandListener, ConnectionListener {
 	/*
 	 * Values for browsing media.
 	 */
@@ -38,6 +39,11 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 	protected Session  session;
 	protected Protocol protocol;
 	
+	/*
+	 * Reactor to receive packets on, or 'null' to use a dedicated I/O thread.
+	 */
+	private Reactor reactor;
+	
 	/*
 	 * User information.
 	 */
@@ -51,6 +57,11 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 	private Player player;
 	private Cache  cache;
 	
+	/*
+	 * Handles incoming commands (created on login).
+	 */
+	private CommandDispatcher dispatcher;
+	
 	/**
 	 * Event listeners to notify when events occur
 	 * (login, logout, data, exceptions).
@@ -75,14 +86,16 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 	 * @see FileCache
 	 */
 	public AsyncJotifyConnection(Cache cache){
-		this.session   = new Session();
-		this.protocol  = null;
-		this.username  = null;
-		this.password  = null;
-		this.user      = null;
-		this.cache     = cache;
-		this.player    = null;
-		this.listeners = new LinkedList<AsyncJotifyListener>();
+		this.session    = new Session();
+		this.protocol   = null;
+		this.reactor    = null;
+		this.username   = null;
+		this.password   = null;
+		this.user       = null;
+		this.cache      = cache;
+		this.player     = null;
+		this.dispatcher = null;
+		this.listeners  = new LinkedList<AsyncJotifyListener>();
 	}
 	
 	/**
@@ -94,6 +107,20 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		this.listeners.add(listener);
 	}
 	
+	/**
+	 * Receive packets on a shared {@link Reactor} instead of keeping
+	 * a dedicated I/O thread. Must be called before {@link #login}.
+	 * 
+	 * @param reactor The {@link Reactor} to use or 'null' for blocking I/O.
+	 */
+	public void setReactor(Reactor reactor){
+		if(this.protocol != null){
+			throw new IllegalStateException("Already logged in!");
+		}
+		
+		this.reactor = reactor;
+	}
+	
 	/**
 	 * Login to Spotify using the specified username and password.
 	 * 
@@ -172,13 +199,32 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		this.player = new SpotifyOggPlayer(this.protocol);
 		
 		/* Add command handler. */
-		this.protocol.addListener(this);
+		this.dispatcher = this.createDispatcher();
+		
+		this.protocol.addPacketListener(this.dispatcher);
 		
 		/* Fire logged in event. */
 		for(AsyncJotifyListener listener : this.listeners){
 			listener.loggedIn();
 		}
 		
+		/* Hand connection over to the reactor, this thread is only needed for login. */
+		if(this.reactor != null){
+			this.protocol.addConnectionListener(this);
+			
+			try{
+				this.reactor.register(this.protocol);
+			}
+			catch(ConnectionException e){
+				/* Fire exception event. */
+				for(AsyncJotifyListener listener : this.listeners){
+					listener.receivedException(e);
+				}
+			}
+			
+			return;
+		}
+		
 		/* Continuously receive packets until connection is closed. */
 		try{
 			while(true){
@@ -193,6 +239,21 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		}
 	}
 	
+	/**
+	 * Handles a lost connection when receiving packets on a {@link Reactor}.
+	 */
+	public void connectionClosed(Protocol protocol, ProtocolException cause){
+		/* Ignore if we closed the connection ourselves. */
+		if(this.protocol != protocol){
+			return;
+		}
+		
+		/* Fire exception event. */
+		for(AsyncJotifyListener listener : this.listeners){
+			listener.receivedException(cause);
+		}
+	}
+	
 	/**
 	 * Request a toplist.<br><br>
 	 * 
@@ -240,7 +301,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		
 		/* Send toplist request. */
 		try{
-			this.protocol.sendToplistRequest(new AsyncChannelCallback(){
+			this.protocol.sendToplistRequest(new Callback(){
 				public void receivedData(byte[] data){
 					/* Create result from XML. */
 					Result toplist = XMLMediaParser.parseResult(data, "UTF-8");
@@ -290,7 +351,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		
 		/* Send search query. */
 		try{
-			this.protocol.sendSearchQuery(new AsyncChannelCallback(){
+			this.protocol.sendSearchQuery(new Callback(){
 				public void receivedData(byte[] data){
 					/* Create result from XML. */
 					Result result = XMLMediaParser.parseResult(data, "UTF-8");
@@ -363,7 +424,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		else{
 			/* Send image request. */
 			try{
-				this.protocol.sendImageRequest(new AsyncChannelCallback(){
+				this.protocol.sendImageRequest(new Callback(){
 					public void receivedData(byte[] data){
 						/* Save to cache. */
 						if(cache != null){
@@ -435,7 +496,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		
 		/* Send browse request. */
 		try{
-			this.protocol.sendBrowseRequest(new AsyncChannelCallback(){
+			this.protocol.sendBrowseRequest(new Callback(){
 				public void receivedData(byte[] data){
 					/* Create object from XML. */
 					Object object = XMLMediaParser.parse(data, "UTF-8");
@@ -713,7 +774,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		else{
 			/* Send browse request. */
 			try{
-				this.protocol.sendBrowseRequest(new AsyncChannelCallback(){
+				this.protocol.sendBrowseRequest(new Callback(){
 					public void receivedData(byte[] data){
 						/* Save to cache. */
 						if(cache != null){
@@ -820,7 +881,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 	public void requestReplacement(List<Track> tracks, final Object userdata){
 		try{
 			/* Send replacement request. */
-			this.protocol.sendReplacementRequest(new AsyncChannelCallback(){
+			this.protocol.sendReplacementRequest(new Callback(){
 				public void receivedData(byte[] data){
 					/* Create object from XML. */
 					Result result = XMLMediaParser.parseResult(data, "UTF-8");
@@ -853,7 +914,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 		
 		/* Send playlist container request. */
 		try{
-			this.protocol.sendPlaylistRequest(new AsyncChannelCallback(){
+			this.protocol.sendPlaylistRequest(new Callback(){
 				public void receivedData(byte[] data){
 					/* Create PlaylistContainer. */
 					PlaylistContainer playlists = XMLPlaylistParser.parsePlaylistContainer(data, "UTF-8");
@@ -933,7 +994,7 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 			
 			/* Send playlist request. */
 			try{
-				this.protocol.sendPlaylistRequest(new AsyncChannelCallback(){
+				this.protocol.sendPlaylistRequest(new Callback(){
 					public void receivedData(byte[] data){
 						/* Save to cache. */
 						if(cache != null){
@@ -1056,121 +1117,85 @@ public class AsyncJotifyConnection implements AsyncJotify, CommandListener {
 	 * 
 	 * @param command A command.
 	 * @param data    Payload of packet.
+	 * 
+	 * @deprecated Commands are handled by a {@link CommandDispatcher} that is added
+	 *             to the protocol on login, this just hands the packet to it. Don't
+	 *             add the connection as a listener as well, or packets are handled twice.
 	 */
+	@Deprecated
 	public void commandReceived(int command, byte[] data){
-		switch(command){
-			case Command.COMMAND_SECRETBLK: {
-				/* Check length. */
-				if(data.length != 336){
-					System.err.format("Got command 0x02 with len %d, expected 336!\n", data.length);
-				}
-				
-				/* Check RSA public key. */
-				byte[] rsaPublicKey = RSA.keyToBytes(this.session.getRSAPublicKey());
-				
-				for(int i = 0; i < 128; i++){
-					if(data[16 + i] != rsaPublicKey[i]){
-						System.err.format("RSA public key doesn't match! %d\n", i);
-						
-						break;
-					}
-				}
-				
-				/* Send cache hash. */
-				try{
-					this.protocol.sendCacheHash();
-				}
-				catch(ProtocolException e){
-					/* Just don't care. */
-				}
-				
-				break;
-			}
-			case Command.COMMAND_PING: {
-				/* Ignore the timestamp but respond to the request. */
-				/* int timestamp = IntegerUtilities.bytesToInteger(payload); */
-				try{
-					this.protocol.sendPong();
-				}
-				catch(ProtocolException e){
-					/* Just don't care. */
-				}
-				
-				break;
-			}
-			case Command.COMMAND_PONGACK: {
-				break;
-			}
-			case Command.COMMAND_CHANNELDATA: {
-				Channel.process(data);
-				
-				break;
-			}
-			case Command.COMMAND_CHANNELERR: {
-				Channel.error(data);
-				
-				break;
-			}
-			case Command.COMMAND_AESKEY: {
-				/* Channel id is at offset 2. AES Key is at offset 4. */
-				Channel.process(Arrays.copyOfRange(data, 2, data.length));
-				
-				break;
-			}
-			case Command.COMMAND_SHAHASH: {
-				/* Do nothing. */
-				break;
-			}
-			case Command.COMMAND_COUNTRYCODE: {
-				this.user.setCountry(new String(data, Charset.forName("UTF-8")));
-				
-				break;
-			}
-			case Command.COMMAND_P2P_INITBLK: {
-				/* Do nothing. */
-				break;
+		if(this.dispatcher != null){
+			this.dispatcher.packetReceived(command, ByteBuffer.wrap(data));
+		}
+	}
+	
+	/**
+	 * Create a dispatcher for incoming commands from the server.
+	 * 
+	 * @return A {@link CommandDispatcher} with this connection's handlers installed.
+	 */
+	private CommandDispatcher createDispatcher(){
+		CommandDispatcher dispatcher = new CommandDispatcher(this.protocol, this.session);
+		
+		dispatcher.setHandler(Command.COMMAND_COUNTRYCODE, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				AsyncJotifyConnection.this.user.setCountry(Charset.forName("UTF-8").decode(payload).toString());
 			}
-			case Command.COMMAND_NOTIFY: {
+		});
+		
+		dispatcher.setHandler(Command.COMMAND_NOTIFY, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
 				/* HTML-notification, shown in a yellow bar in the official client. */
 				/* Skip 11 byte header... */
-				this.user.setNotification(new String(
-					Arrays.copyOfRange(data, 11, data.length), Charset.forName("UTF-8")
-				));
+				payload.position(payload.position() + 11);
 				
-				break;
+				AsyncJotifyConnection.this.user.setNotification(Charset.forName("UTF-8").decode(payload).toString());
 			}
-			case Command.COMMAND_PRODINFO: {
-				this.user = XMLUserParser.parseUser(data, "UTF-8", this.user); 
+		});
+		
+		dispatcher.setHandler(Command.COMMAND_PRODINFO, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				AsyncJotifyConnection connection = AsyncJotifyConnection.this;
+				byte[]                data       = new byte[payload.remaining()];
+				
+				payload.get(data);
+				
+				connection.user = XMLUserParser.parseUser(data, "UTF-8", connection.user);
 				
 				/* Fire user data event. */
-				for(AsyncJotifyListener listener : this.listeners){
-					listener.receivedUserData(this.user);
+				for(AsyncJotifyListener listener : connection.listeners){
+					listener.receivedUserData(connection.user);
 				}
-				
-				break;
 			}
-			case Command.COMMAND_WELCOME: {
-				break;
-			}
-			case Command.COMMAND_PAUSE: {
-				/* TODO: Show notification and pause. */
+		});
+		
+		dispatcher.setHandler(Command.COMMAND_PLAYLISTCHANGED, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				byte[] data = new byte[payload.remaining()];
+				
+				payload.get(data);
 				
-				break;
-			}
-			case Command.COMMAND_PLAYLISTCHANGED: {
 				String id = Hex.toHex(data);
 				
 				/* Fire playlist changed event. */
-				for(AsyncJotifyListener listener : this.listeners){
+				for(AsyncJotifyListener listener : AsyncJotifyConnection.this.listeners){
 					listener.receivedPlaylistUpdate(id);
 				}
-				
-				break;
 			}
-			default: {
-				/*System.out.format("Command: 0x%02x Length: %d\n", command, data.length);
-				System.out.println("Hex:   " + Hex.toHex(data));
-				System.out.println("Bytes: " + new String(data));*/
+		});
+		
+		return dispatcher;
+	}
+	
+	/**
+	 * A channel callback that reports channel errors and timeouts
+	 * to the listeners of this connection.
+	 */
+	private abstract class Callback extends AsyncChannelCallback {
+		public void receivedError(ProtocolException e){
+			/* Fire exception event. */
+			for(AsyncJotifyListener listener : listeners){
+				listener.receivedException(e);
 			}
 		}
 	}
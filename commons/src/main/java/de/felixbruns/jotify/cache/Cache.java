@@ -75,4 +75,13 @@ public interface Cache {
 	 * @return A {@link List} of cache hashes.
 	 */
 	public List<String> list(String category);
+	
+	/**
+	 * Get the number of bytes a cache category takes up.
+	 * 
+	 * @param category The cache category to measure.
+	 * 
+	 * @return The size of the category in bytes.
+	 */
+	public long getSize(String category);
 }
@@ -0,0 +1,466 @@
+package de.felixbruns.jotify.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the categories of a {@link FileCache} directory within a disk budget.
+ * 
+ * The size of each category is tracked as items are stored and removed. Each
+ * category is scanned once in the background the first time it's used, to
+ * pick up what earlier runs left on disk, so sizes are exact once that scan
+ * is done. When a category exceeds its quota, a background janitor removes
+ * items until it's 10% below its quota, either the least recently accessed
+ * items or the least frequently loaded ones (see {@link Eviction}).
+ * 
+ * All {@link FileCache} instances using the same directory share one quota
+ * and one janitor thread.
+ * 
+ * Quotas can be set with the system properties {@code jotify.cache.quota.<category>}
+ * (bytes, 0 for no limit). Substreams default to 1 GB, other categories aren't
+ * limited. The eviction policy can be set with the system property
+ * {@code jotify.cache.eviction} ({@code access}, the default, or {@code frequency}).
+ */
+public class DiskQuota implements Runnable {
+	/**
+	 * Eviction policies.
+	 */
+	public enum Eviction {
+		/** Remove the items that weren't stored or loaded for the longest time. */
+		LAST_ACCESS,
+		/** Remove the items that were loaded least often since they were stored. */
+		FREQUENCY
+	}
+	
+	/**
+	 * Share of the quota a category is trimmed to, so eviction doesn't run on every store.
+	 */
+	private static final double LOW_WATERMARK = 0.9;
+	
+	/**
+	 * Default quotas of categories.
+	 */
+	private static final Map<String, Long> DEFAULT_QUOTAS = new HashMap<String, Long>();
+	
+	static {
+		DEFAULT_QUOTAS.put("substream", 1024L * 1024 * 1024);
+	}
+	
+	/**
+	 * Quotas by cache directory.
+	 */
+	private static final Map<File, DiskQuota> INSTANCES = new HashMap<File, DiskQuota>();
+	
+	/**
+	 * Cache to scan and evict items with.
+	 */
+	private FileCache cache;
+	
+	/**
+	 * Items and sizes by category, quotas set by {@link #setQuota(String, long)}
+	 * and categories that weren't scanned yet.
+	 */
+	private Map<String, Usage> usages;
+	private Map<String, Long>  quotas;
+	private List<String>       pending;
+	
+	/**
+	 * Eviction policy, number of evicted items and the janitor thread.
+	 */
+	private Eviction eviction;
+	private long     evictions;
+	private Thread   janitor;
+	
+	/**
+	 * Get the quota of a cache directory.
+	 * 
+	 * @param cache     The {@link FileCache} to scan and evict with, if the quota is new.
+	 * @param directory The cache directory.
+	 */
+	static synchronized DiskQuota forDirectory(FileCache cache, File directory){
+		File key;
+		
+		try{
+			key = directory.getCanonicalFile();
+		}
+		catch(IOException e){
+			key = directory.getAbsoluteFile();
+		}
+		
+		DiskQuota quota = INSTANCES.get(key);
+		
+		if(quota == null){
+			quota = new DiskQuota(cache);
+			
+			INSTANCES.put(key, quota);
+		}
+		
+		return quota;
+	}
+	
+	private DiskQuota(FileCache cache){
+		this.cache     = cache;
+		this.usages    = new HashMap<String, Usage>();
+		this.quotas    = new HashMap<String, Long>();
+		this.pending   = new LinkedList<String>();
+		this.evictions = 0;
+		this.janitor   = null;
+		
+		if("frequency".equalsIgnoreCase(System.getProperty("jotify.cache.eviction"))){
+			this.eviction = Eviction.FREQUENCY;
+		}
+		else{
+			this.eviction = Eviction.LAST_ACCESS;
+		}
+	}
+	
+	/**
+	 * Set the maximum number of bytes a category may take up on disk.
+	 * 
+	 * @param category A cache category.
+	 * @param quota    The maximum number of bytes, 0 for no limit.
+	 */
+	public synchronized void setQuota(String category, long quota){
+		this.quotas.put(category, quota);
+		
+		/* Start tracking the category and trim it if necessary. */
+		this.usage(category);
+		this.notifyAll();
+	}
+	
+	/**
+	 * Get the maximum number of bytes a category may take up on disk.
+	 * 
+	 * @param category A cache category.
+	 * 
+	 * @return The quota or 0 if the category isn't limited.
+	 */
+	public synchronized long getQuota(String category){
+		Long quota = this.quotas.get(category);
+		
+		if(quota == null){
+			quota = DEFAULT_QUOTAS.get(category);
+			quota = Long.getLong("jotify.cache.quota." + category, (quota != null) ? quota : 0);
+		}
+		
+		return quota;
+	}
+	
+	/**
+	 * Set the eviction policy.
+	 * 
+	 * @param eviction The {@link Eviction} policy.
+	 */
+	public synchronized void setEviction(Eviction eviction){
+		this.eviction = eviction;
+	}
+	
+	/**
+	 * Get the eviction policy.
+	 */
+	public synchronized Eviction getEviction(){
+		return this.eviction;
+	}
+	
+	/**
+	 * Get the number of bytes a category takes up on disk.
+	 * 
+	 * @param category A cache category.
+	 */
+	public synchronized long getUsage(String category){
+		return this.usage(category).size;
+	}
+	
+	/**
+	 * Get the number of bytes of all categories used so far.
+	 */
+	public synchronized long getUsage(){
+		long size = 0;
+		
+		for(Usage usage : this.usages.values()){
+			size += usage.size;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Get the number of items evicted to stay within the quotas.
+	 */
+	public synchronized long getEvictions(){
+		return this.evictions;
+	}
+	
+	/**
+	 * Note a stored or replaced item.
+	 */
+	synchronized void stored(String category, String hash, long size){
+		Usage usage    = this.usage(category);
+		Item  previous = usage.items.put(hash, new Item(size, System.currentTimeMillis()));
+		
+		usage.size += size;
+		
+		if(previous != null){
+			usage.size -= previous.size;
+		}
+		
+		/* Wake up the janitor. */
+		long quota = this.getQuota(category);
+		
+		if(quota > 0 && usage.size > quota){
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Note a loaded item.
+	 */
+	synchronized void accessed(String category, String hash){
+		Item item = this.usage(category).items.get(hash);
+		
+		if(item != null){
+			item.lastAccess = System.currentTimeMillis();
+			item.hits++;
+		}
+	}
+	
+	/**
+	 * Note a removed item.
+	 */
+	synchronized void removed(String category, String hash){
+		Usage usage = this.usage(category);
+		Item  item  = usage.items.remove(hash);
+		
+		if(item != null){
+			usage.size -= item.size;
+		}
+	}
+	
+	/**
+	 * Note a cleared category.
+	 */
+	synchronized void cleared(String category){
+		Usage usage = this.usage(category);
+		
+		usage.items.clear();
+		usage.size = 0;
+	}
+	
+	/**
+	 * Scan new categories and evict items of categories over their quota.
+	 * Runs on the janitor thread.
+	 */
+	public void run(){
+		while(true){
+			String       category;
+			List<String> full;
+			
+			synchronized(this){
+				try{
+					while(this.pending.isEmpty() && (full = this.getFull()).isEmpty()){
+						this.wait();
+					}
+				}
+				catch(InterruptedException e){
+					this.janitor = null;
+					
+					return;
+				}
+				
+				category = this.pending.isEmpty() ? null : this.pending.remove(0);
+				full     = this.getFull();
+			}
+			
+			if(category != null){
+				this.scan(category);
+			}
+			
+			for(String c : full){
+				this.evict(c);
+			}
+		}
+	}
+	
+	/**
+	 * Get the usage of a category, scheduling a scan if it's new.
+	 */
+	private Usage usage(String category){
+		Usage usage = this.usages.get(category);
+		
+		if(usage == null){
+			usage = new Usage();
+			
+			this.usages.put(category, usage);
+			this.pending.add(category);
+			
+			if(this.janitor == null){
+				this.janitor = new Thread(this, "FileCache-Janitor");
+				
+				this.janitor.setDaemon(true);
+				this.janitor.start();
+			}
+			
+			this.notifyAll();
+		}
+		
+		return usage;
+	}
+	
+	/**
+	 * Get the categories over their quota.
+	 */
+	private List<String> getFull(){
+		List<String> full = new ArrayList<String>();
+		
+		for(Map.Entry<String, Usage> entry : this.usages.entrySet()){
+			long quota = this.getQuota(entry.getKey());
+			
+			if(quota > 0 && entry.getValue().size > quota){
+				full.add(entry.getKey());
+			}
+		}
+		
+		return full;
+	}
+	
+	/**
+	 * Add the items a category already has on disk. Items stored in the
+	 * meantime are already tracked and keep their numbers.
+	 */
+	private void scan(String category){
+		for(String hash : this.cache.list(category)){
+			File file = this.cache.find(category, hash);
+			
+			if(file == null){
+				continue;
+			}
+			
+			long size         = file.length();
+			long lastModified = file.lastModified();
+			
+			synchronized(this){
+				Usage usage = this.usage(category);
+				
+				if(!usage.items.containsKey(hash)){
+					usage.items.put(hash, new Item(size, lastModified));
+					
+					usage.size += size;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remove items of a category until it's below its low watermark.
+	 */
+	private void evict(String category){
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		Usage           usage;
+		long            target;
+		Eviction        eviction;
+		
+		/* Take a snapshot to sort, the items change while we evict. */
+		synchronized(this){
+			usage    = this.usage(category);
+			target   = (long)(LOW_WATERMARK * this.getQuota(category));
+			eviction = this.eviction;
+			
+			for(Map.Entry<String, Item> entry : usage.items.entrySet()){
+				candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+			}
+		}
+		
+		Collections.sort(candidates, eviction.equals(Eviction.FREQUENCY) ? BY_FREQUENCY : BY_LAST_ACCESS);
+		
+		for(Candidate candidate : candidates){
+			synchronized(this){
+				if(usage.size <= target){
+					return;
+				}
+				
+				Item item = usage.items.get(candidate.hash);
+				
+				/* Skip items that were used or replaced since the snapshot. */
+				if(item == null || item.lastAccess != candidate.lastAccess){
+					continue;
+				}
+				
+				this.evictions++;
+			}
+			
+			this.cache.remove(category, candidate.hash);
+		}
+	}
+	
+	/**
+	 * Least recently accessed first.
+	 */
+	private static final Comparator<Candidate> BY_LAST_ACCESS = new Comparator<Candidate>(){
+		public int compare(Candidate a, Candidate b){
+			return (a.lastAccess < b.lastAccess) ? -1 : (a.lastAccess > b.lastAccess) ? 1 : 0;
+		}
+	};
+	
+	/**
+	 * Least frequently loaded first, least recently accessed of those first.
+	 */
+	private static final Comparator<Candidate> BY_FREQUENCY = new Comparator<Candidate>(){
+		public int compare(Candidate a, Candidate b){
+			if(a.hits != b.hits){
+				return (a.hits < b.hits) ? -1 : 1;
+			}
+			
+			return BY_LAST_ACCESS.compare(a, b);
+		}
+	};
+	
+	/**
+	 * Tracked items and bytes of a category.
+	 */
+	private static class Usage {
+		private Map<String, Item> items;
+		private long              size;
+		
+		private Usage(){
+			this.items = new HashMap<String, Item>();
+			this.size  = 0;
+		}
+	}
+	
+	/**
+	 * Size, last store or load (milliseconds) and number of loads of an item.
+	 */
+	private static class Item {
+		private long size;
+		private long lastAccess;
+		private int  hits;
+		
+		private Item(long size, long lastAccess){
+			this.size       = size;
+			this.lastAccess = lastAccess;
+			this.hits       = 0;
+		}
+	}
+	
+	/**
+	 * An item considered for eviction.
+	 */
+	private static class Candidate {
+		private String hash;
+		private long   lastAccess;
+		private int    hits;
+		
+		private Candidate(String hash, Item item){
+			this.hash       = hash;
+			this.lastAccess = item.lastAccess;
+			this.hits       = item.hits;
+		}
+	}
+}
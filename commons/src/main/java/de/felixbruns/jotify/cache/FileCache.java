@@ -7,14 +7,52 @@ import java.util.List;
 /**
  * A {@link Cache} implementation that stores data in the filesystem.
  * 
+ * Items are spread over shard directories named after the first two
+ * characters of their hash ({@code category/ab/abcdef...}), so no single
+ * directory gets too large. Items are written to a temporary file that is
+ * renamed when it's complete, so readers never see partial data and a crash
+ * leaves no truncated items behind. Writes and removals of the same item are
+ * serialized by striped locks, reads don't lock at all. Items stored by older
+ * versions directly in the category directory are moved to their shard when
+ * they are loaded.
+ * 
+ * The size of each category is tracked and can be limited, see {@link DiskQuota}.
+ * 
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class FileCache implements Cache {
+	/**
+	 * Number of lock stripes (a power of two).
+	 */
+	private static final int STRIPES = 64;
+	
+	/**
+	 * Suffix of temporary files, their names start with a dot.
+	 */
+	private static final String TEMP_SUFFIX = ".tmp";
+	
 	/**
 	 * The directory for storing cache data.
 	 */
 	private File directory;
 	
+	/**
+	 * Locks serializing writes and removals by category and hash. They are
+	 * shared by all instances, which may use the same directory.
+	 */
+	private static final Object[] LOCKS = new Object[STRIPES];
+	
+	static {
+		for(int i = 0; i < STRIPES; i++){
+			LOCKS[i] = new Object();
+		}
+	}
+	
+	/**
+	 * The quota of the directory, shared by all instances using it.
+	 */
+	private DiskQuota quota;
+	
 	/**
 	 * Create a new {@link FileCache} with a default directory.
 	 * The directory will be the value of the jotify.cache system
@@ -23,7 +61,7 @@ public class FileCache implements Cache {
 	 */
 	public FileCache(){
 		this(new File(
-			System.getProperty("jotify.cache", 
+			System.getProperty("jotify.cache",
 			System.getProperty("user.home") + "/.jotify-cache")));
 	}
 	
@@ -40,15 +78,40 @@ public class FileCache implements Cache {
 		if(!this.directory.exists()){
 			this.directory.mkdirs();
 		}
+		
+		this.quota = DiskQuota.forDirectory(this, this.directory);
+	}
+	
+	/**
+	 * Get the quota of the cache directory, to limit and monitor
+	 * the disk space categories take up.
+	 * 
+	 * @return The {@link DiskQuota} of the directory.
+	 */
+	public DiskQuota getQuota(){
+		return this.quota;
+	}
+	
+	/**
+	 * Get the number of bytes a category takes up on disk.
+	 * 
+	 * @param category A cache category.
+	 */
+	public long getSize(String category){
+		return this.quota.getUsage(category);
 	}
 	
 	/**
 	 * Clear the entire cache.
 	 */
 	public void clear(){
-		/* Loop over all files in the directory and delete them. */
-		for(File file : this.directory.listFiles()){
-			file.delete();
+		File[] files = this.directory.listFiles();
+		
+		/* Loop over all categories and delete them. */
+		for(File file : (files != null) ? files : new File[0]){
+			if(file.isDirectory()){
+				this.clear(file.getName());
+			}
 		}
 	}
 	
@@ -58,32 +121,26 @@ public class FileCache implements Cache {
 	 * @param category A cache category.
 	 */
 	public void clear(String category){
-		/* Get subdirectory of the specified category. */
-		File directory = new File(this.directory, category);
+		delete(new File(this.directory, category));
 		
-		/* Loop over all files in that directory and delete them. */
-		for(File file : directory.listFiles()){
-			if(file.isFile()){
-				file.delete();
-			}
-		}
+		this.quota.cleared(category);
 	}
 	
 	/**
-	 * Check if the cache contains an item. 
+	 * Check if the cache contains an item.
 	 * 
 	 * @param category The cache category to check.
 	 * @param hash     The hash of the item to check.
 	 * 
 	 * @return true if it contains that item, false otherwise.
 	 */
-	public boolean contains(String category, String hash){		
-		return new File(this.directory, category + "/" + hash).exists();
+	public boolean contains(String category, String hash){
+		return this.file(category, hash).exists() || this.legacyFile(category, hash).isFile();
 	}
 	
 	/**
-	 * Load data from the cache. If an excetion occurs while reading the data
-	 * from the file, {@code null} will be returned.
+	 * Load data from the cache. If an exception occurs while reading the data
+	 * from the file, it is reported and {@code null} will be returned.
 	 * 
 	 * @param category The cache category to load from.
 	 * @param hash     The hash of the item to load.
@@ -91,19 +148,42 @@ public class FileCache implements Cache {
 	 * @return Cached data or {@code null}.
 	 */
 	public byte[] load(String category, String hash){
+		File file = this.file(category, hash);
+		
+		/* Move an item of the old layout into its shard. */
+		if(!file.exists() && this.legacyFile(category, hash).isFile()){
+			this.migrate(category, hash);
+		}
+		
 		try{
-			/* Get input stream of data and allocate buffer. */
-			File            file  = new File(this.directory, category + "/" + hash);
-			FileInputStream input = new FileInputStream(file);
-			byte[]          data  = new byte[(int)file.length()];
+			RandomAccessFile input = new RandomAccessFile(file, "r");
 			
-			/* Read input stream into buffer. */
-			input.read(data);
-			input.close();
-			
-			return data;
+			try{
+				long length = input.length();
+				
+				if(length > Integer.MAX_VALUE){
+					throw new IOException("File is too large.");
+				}
+				
+				/* Files are replaced, never modified, so the length is final. */
+				byte[] data = new byte[(int)length];
+				
+				input.readFully(data);
+				
+				this.quota.accessed(category, hash);
+				
+				return data;
+			}
+			finally{
+				input.close();
+			}
+		}
+		catch(FileNotFoundException e){
+			return null;
 		}
 		catch(IOException e){
+			System.err.println("Can't load '" + file + "' from cache: " + e.getMessage());
+			
 			return null;
 		}
 	}
@@ -115,7 +195,12 @@ public class FileCache implements Cache {
 	 * @param hash     The hash of the item to remove.
 	 */
 	public void remove(String category, String hash){
-		new File(this.directory, category + "/" + hash).delete();
+		synchronized(this.lock(category, hash)){
+			this.file(category, hash).delete();
+			this.legacyFile(category, hash).delete();
+			
+			this.quota.removed(category, hash);
+		}
 	}
 	
 	/**
@@ -130,8 +215,9 @@ public class FileCache implements Cache {
 	}
 	
 	/**
-	 * Store data in the cache. If an exception occurs while writing the data
-	 * to the file it will be ignored.
+	 * Store data in the cache. The data is written to a temporary file
+	 * which then replaces the item. If an exception occurs while writing
+	 * the data, it is reported and the item is not stored.
 	 * 
 	 * @param category The cache category to store to.
 	 * @param hash     The hash of the item to store.
@@ -139,24 +225,45 @@ public class FileCache implements Cache {
 	 * @param size     The size of the data.
 	 */
 	public void store(String category, String hash, byte[] data, int size){
-		try{
-			/* Create file to hold the data. */
-			File file = new File(this.directory, category + "/" + hash);
-			
-			/* Create directory path if necessary. */
-			if(!file.getParentFile().exists()){
-				file.getParentFile().mkdirs();
+		File file = this.file(category, hash);
+		File temp = null;
+		
+		synchronized(this.lock(category, hash)){
+			try{
+				/* Create directory path if necessary. */
+				if(!file.getParentFile().exists()){
+					file.getParentFile().mkdirs();
+				}
+				
+				/* Create a uniquely named temporary file next to the item. */
+				temp = File.createTempFile("." + file.getName() + ".", TEMP_SUFFIX, file.getParentFile());
+				
+				FileOutputStream output = new FileOutputStream(temp);
+				
+				try{
+					output.write(data, 0, size);
+				}
+				finally{
+					output.close();
+				}
+				
+				this.replace(temp, file);
+				
+				temp = null;
+				
+				/* Don't keep an outdated copy in the old layout. */
+				this.legacyFile(category, hash).delete();
+				
+				this.quota.stored(category, hash, size);
+			}
+			catch(IOException e){
+				System.err.println("Can't store '" + file + "' in cache: " + e.getMessage());
+			}
+			finally{
+				if(temp != null){
+					temp.delete();
+				}
 			}
-			
-			/* Create output stream for file. */
-			FileOutputStream output = new FileOutputStream(file);
-			
-			/* Write data to output stream. */
-			output.write(data, 0, size);
-			output.close();
-		} 
-		catch(IOException e){
-			/* Ignore. */
 		}
 	}
 	
@@ -171,15 +278,141 @@ public class FileCache implements Cache {
 		List<String> hashes = new ArrayList<String>();
 		
 		/* Get subdirectory of the specified category. */
-		File directory = new File(this.directory, category);
+		File   directory = new File(this.directory, category);
+		File[] files     = directory.listFiles();
 		
-		/* Loop over all files in that directory. */
-		for(File file : directory.listFiles()){
-			if(file.isFile()){
+		/* Loop over shards and items of the old layout. */
+		for(File file : (files != null) ? files : new File[0]){
+			if(file.isDirectory() && file.getName().length() == 2){
+				list(file, "", hashes);
+			}
+			else if(file.isDirectory()){
+				list(file, file.getName() + "/", hashes);
+			}
+			else if(!file.getName().startsWith(".")){
 				hashes.add(file.getName());
 			}
 		}
 		
 		return hashes;
 	}
+	
+	/**
+	 * Get the file of an item, in the shard named after the first two
+	 * characters of its hash. Hashes that don't start with two letters
+	 * or digits go to a shard named after their hash code.
+	 * 
+	 * @param category The cache category.
+	 * @param hash     The hash of the item.
+	 * 
+	 * @return The {@link File} of the item.
+	 */
+	protected File file(String category, String hash){
+		String shard = (hash.length() >= 2) ? hash.substring(0, 2).toLowerCase() : "";
+		
+		if(!shard.matches("[0-9a-z]{2}")){
+			shard = String.format("%02x", hash.hashCode() & 0xff);
+		}
+		
+		return new File(this.directory, category + "/" + shard + "/" + hash);
+	}
+	
+	/**
+	 * Get the existing file of an item in either layout.
+	 * 
+	 * @return The {@link File} or {@code null} if the item doesn't exist.
+	 */
+	File find(String category, String hash){
+		File file = this.file(category, hash);
+		
+		if(!file.isFile()){
+			file = this.legacyFile(category, hash);
+		}
+		
+		return file.isFile() ? file : null;
+	}
+	
+	/**
+	 * Get the file of an item in the old, unsharded layout.
+	 */
+	private File legacyFile(String category, String hash){
+		return new File(this.directory, category + "/" + hash);
+	}
+	
+	/**
+	 * Move an item of the old layout into its shard.
+	 */
+	private void migrate(String category, String hash){
+		File legacy = this.legacyFile(category, hash);
+		File file   = this.file(category, hash);
+		
+		synchronized(this.lock(category, hash)){
+			if(file.exists() || !legacy.isFile()){
+				return;
+			}
+			
+			file.getParentFile().mkdirs();
+			
+			if(!legacy.renameTo(file)){
+				System.err.println("Can't move '" + legacy + "' to '" + file + "'.");
+			}
+		}
+	}
+	
+	/**
+	 * Replace a file with a complete temporary file. The rename is atomic on POSIX
+	 * systems. Where it doesn't replace existing files, the old file is deleted first.
+	 */
+	private void replace(File temp, File file) throws IOException {
+		if(temp.renameTo(file)){
+			return;
+		}
+		
+		file.delete();
+		
+		if(!temp.renameTo(file)){
+			throw new IOException("Can't rename '" + temp + "' to '" + file + "'.");
+		}
+	}
+	
+	/**
+	 * Get the lock of an item.
+	 */
+	private Object lock(String category, String hash){
+		int h = category.hashCode() * 31 + hash.hashCode();
+		
+		/* Spread the hash code, so similar hashes don't share a lock. */
+		h ^= (h >>> 16);
+		
+		return LOCKS[h & (STRIPES - 1)];
+	}
+	
+	/**
+	 * Add the hashes of all items below a directory to a list.
+	 */
+	private static void list(File directory, String prefix, List<String> hashes){
+		File[] files = directory.listFiles();
+		
+		for(File file : (files != null) ? files : new File[0]){
+			if(file.isDirectory()){
+				list(file, prefix + file.getName() + "/", hashes);
+			}
+			else if(!file.getName().startsWith(".")){
+				hashes.add(prefix + file.getName());
+			}
+		}
+	}
+	
+	/**
+	 * Delete a file or a directory with everything in it.
+	 */
+	private static void delete(File file){
+		File[] files = file.listFiles();
+		
+		for(File child : (files != null) ? files : new File[0]){
+			delete(child);
+		}
+		
+		file.delete();
+	}
 }
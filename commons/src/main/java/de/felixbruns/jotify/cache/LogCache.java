@@ -0,0 +1,1179 @@
+package de.felixbruns.jotify.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Cache} implementation that appends all items to a few large
+ * segment files instead of writing a file per item, so storing is a
+ * sequential write and the number of items doesn't affect the file system.
+ * 
+ * An in-memory hash index maps each item to its position in a segment, so
+ * lookups never touch the disk and loads are a single positional read. The
+ * index is saved to an index file whenever a segment is full, after each
+ * compaction and on {@link #close()}. On startup it is read back and only
+ * the records appended after it was saved are scanned. Without a usable
+ * index file all segments are scanned. Each record carries a CRC, and a
+ * segment is truncated at the first damaged record, e.g. after a crash.
+ * 
+ * Replaced and removed items leave dead records behind. A background thread
+ * compacts sealed segments that are mostly dead by copying their live records
+ * to the end of the log and deleting them. The record marking an item as
+ * removed is only copied while an older segment may still hold a record of
+ * that item, which a scan would otherwise bring back.
+ * 
+ * The segment size can be set with the system property
+ * {@code jotify.cache.segment} (bytes, default 64 MB).
+ */
+public class LogCache implements Cache {
+	/**
+	 * Record header: CRC, category length, hash length, data length (-1 for removed items).
+	 */
+	private static final int HEADER_SIZE = 12;
+	
+	/**
+	 * Index file magic ("JLIX") and version.
+	 */
+	private static final int INDEX_MAGIC   = 0x4a4c4958;
+	private static final int INDEX_VERSION = 2;
+	
+	/**
+	 * Share of dead bytes at which a sealed segment is compacted.
+	 */
+	private static final double COMPACT_RATIO = 0.5;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The directory holding segments and index and the size at which a new segment is started.
+	 */
+	private File directory;
+	private long segmentSize;
+	
+	/**
+	 * Segments by id, oldest first, and the segment that is appended to.
+	 */
+	private TreeMap<Integer, Segment> segments;
+	private Segment                   active;
+	
+	/**
+	 * Location of each item by category and hash.
+	 */
+	private Map<String, Map<String, Location>> index;
+	
+	/**
+	 * Location of each removal record that is still needed, by category and hash.
+	 */
+	private Map<String, Map<String, Location>> graves;
+	
+	/**
+	 * Whether the cache was closed and the number of compacted segments.
+	 */
+	private boolean closed;
+	private long    compactions;
+	
+	/**
+	 * Create a new {@link LogCache} with a default directory.
+	 * The directory will be the value of the jotify.cache.log system
+	 * property or '$HOME/.jotify-log' if that property is undefined.
+	 * It's not inside the {@link FileCache} directory, since clearing
+	 * that would delete the segments.
+	 */
+	public LogCache(){
+		this(new File(
+			System.getProperty("jotify.cache.log",
+			System.getProperty("user.home") + "/.jotify-log")));
+	}
+	
+	/**
+	 * Create a new {@link LogCache} in a specified directory.
+	 * 
+	 * @param directory The directory to use for segments and index.
+	 */
+	public LogCache(File directory){
+		this(directory, Long.getLong("jotify.cache.segment", 64 * 1024 * 1024));
+	}
+	
+	/**
+	 * Create a new {@link LogCache} in a specified directory. If the
+	 * directory doesn't exist, it will be created. Existing segments
+	 * are opened and the index is restored.
+	 * 
+	 * @param directory   The directory to use for segments and index.
+	 * @param segmentSize The size at which a new segment is started.
+	 * 
+	 * @throws IllegalStateException If the directory can't be used.
+	 */
+	public LogCache(File directory, long segmentSize){
+		this.directory   = directory;
+		this.segmentSize = segmentSize;
+		this.segments    = new TreeMap<Integer, Segment>();
+		this.active      = null;
+		this.index       = new HashMap<String, Map<String, Location>>();
+		this.graves      = new HashMap<String, Map<String, Location>>();
+		this.closed      = false;
+		this.compactions = 0;
+		
+		/* Create directory if it doesn't exists. */
+		if(!this.directory.exists()){
+			this.directory.mkdirs();
+		}
+		
+		try{
+			synchronized(this){
+				this.open();
+			}
+		}
+		catch(IOException e){
+			throw new IllegalStateException("Can't open cache in '" + directory + "'!", e);
+		}
+		
+		Thread compactor = new Thread(new Compactor(), "LogCache-Compactor");
+		
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+	
+	/**
+	 * Save the index and close all segments. Don't use the cache afterwards.
+	 */
+	public synchronized void close(){
+		if(this.closed){
+			return;
+		}
+		
+		this.saveIndex();
+		
+		for(Segment segment : this.segments.values()){
+			segment.close();
+		}
+		
+		this.closed = true;
+		
+		this.notifyAll();
+	}
+	
+	/**
+	 * Get the number of bytes in all segments, including dead records.
+	 */
+	public synchronized long getSize(){
+		long size = 0;
+		
+		for(Segment segment : this.segments.values()){
+			size += segment.size;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Get the number of bytes in records of live items
+	 * and in removal records that are still needed.
+	 */
+	public synchronized long getLiveSize(){
+		long size = 0;
+		
+		for(Segment segment : this.segments.values()){
+			size += segment.live;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Get the number of bytes in records of live items of a category.
+	 * 
+	 * @param category A cache category.
+	 */
+	public synchronized long getSize(String category){
+		Map<String, Location> locations = this.index.get(category);
+		long                  size      = 0;
+		
+		if(locations != null){
+			for(Location location : locations.values()){
+				size += location.size;
+			}
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Get the number of segments that were compacted.
+	 */
+	public synchronized long getCompactions(){
+		return this.compactions;
+	}
+	
+	/**
+	 * Clear the entire cache.
+	 */
+	public synchronized void clear(){
+		int id = this.segments.lastKey() + 1;
+		
+		for(Segment segment : this.segments.values()){
+			segment.close();
+			segment.file.delete();
+		}
+		
+		this.segments.clear();
+		this.index.clear();
+		this.graves.clear();
+		
+		try{
+			this.active = this.createSegment(id);
+		}
+		catch(IOException e){
+			throw new IllegalStateException("Can't create segment in '" + this.directory + "'!", e);
+		}
+		
+		this.saveIndex();
+	}
+	
+	/**
+	 * Clear the cache for the specified category.
+	 * 
+	 * @param category A cache category.
+	 */
+	public synchronized void clear(String category){
+		Map<String, Location> locations = this.index.get(category);
+		
+		if(locations == null){
+			return;
+		}
+		
+		for(String hash : new ArrayList<String>(locations.keySet())){
+			this.remove(category, hash);
+		}
+	}
+	
+	/**
+	 * Check if the cache contains an item.
+	 * 
+	 * @param category The cache category to check.
+	 * @param hash     The hash of the item to check.
+	 * 
+	 * @return true if it contains that item, false otherwise.
+	 */
+	public synchronized boolean contains(String category, String hash){
+		return this.lookup(category, hash) != null;
+	}
+	
+	/**
+	 * Load data from the cache. If an exception occurs while reading the data
+	 * from the segment, {@code null} will be returned.
+	 * 
+	 * @param category The cache category to load from.
+	 * @param hash     The hash of the item to load.
+	 * 
+	 * @return Cached data or {@code null}.
+	 */
+	public byte[] load(String category, String hash){
+		/* Retry if the segment is compacted while we read it. */
+		for(int attempt = 0; attempt < 3; attempt++){
+			Location location;
+			
+			synchronized(this){
+				if((location = this.lookup(category, hash)) == null){
+					return null;
+				}
+			}
+			
+			ByteBuffer data = ByteBuffer.allocate(location.length);
+			
+			try{
+				if(!readFully(location.segment.channel, data, location.getDataPosition())){
+					return null;
+				}
+				
+				return data.array();
+			}
+			catch(ClosedByInterruptException e){
+				/* The interrupt closed the channel for everybody, open it again. */
+				this.reopen(location.segment);
+				
+				return null;
+			}
+			catch(ClosedChannelException e){
+				/* Compacted in the meantime or closed by an interrupt of another reader. */
+				this.reopen(location.segment);
+			}
+			catch(IOException e){
+				return null;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Remove a single item from the cache.
+	 * 
+	 * @param category The cache category to remove from.
+	 * @param hash     The hash of the item to remove.
+	 */
+	public void remove(String category, String hash){
+		/* Append a record that marks the item as removed, so it stays removed after a restart. */
+		ByteBuffer record = record(category, hash, null, -1);
+		
+		synchronized(this){
+			if(this.lookup(category, hash) == null){
+				return;
+			}
+			
+			Location grave = null;
+			
+			try{
+				grave = this.append(record);
+			}
+			catch(IOException e){
+				System.err.println("Can't remove '" + category + "/" + hash + "' from cache: " + e.getMessage());
+			}
+			
+			Location previous = this.unindex(category, hash);
+			
+			if(grave != null){
+				grave.oldest = previous.oldest;
+				
+				this.bury(category, hash, grave);
+			}
+		}
+	}
+	
+	/**
+	 * Store data in the cache.
+	 * 
+	 * @param category The cache category to store to.
+	 * @param hash     The hash of the item to store.
+	 * @param data     The data to store.
+	 */
+	public void store(String category, String hash, byte[] data){
+		this.store(category, hash, data, data.length);
+	}
+	
+	/**
+	 * Store data in the cache. If an exception occurs while appending the data
+	 * to the segment, the item is not stored.
+	 * 
+	 * @param category The cache category to store to.
+	 * @param hash     The hash of the item to store.
+	 * @param data     The data to store.
+	 * @param size     The size of the data.
+	 */
+	public void store(String category, String hash, byte[] data, int size){
+		/* Build the record outside of the lock. */
+		ByteBuffer record = record(category, hash, data, size);
+		
+		synchronized(this){
+			try{
+				this.put(category, hash, this.append(record));
+			}
+			catch(IOException e){
+				System.err.println("Can't store '" + category + "/" + hash + "' in cache: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * List data in a cache category.
+	 * 
+	 * @param category The cache category to list.
+	 * 
+	 * @return A {@link List} of cache hashes.
+	 */
+	public synchronized List<String> list(String category){
+		Map<String, Location> locations = this.index.get(category);
+		
+		if(locations == null){
+			return new ArrayList<String>();
+		}
+		
+		return new ArrayList<String>(locations.keySet());
+	}
+	
+	/**
+	 * Open existing segments and restore the index from the index
+	 * file and the records appended after it, or from all records.
+	 */
+	private void open() throws IOException {
+		File[] files = this.directory.listFiles();
+		
+		for(File file : (files != null) ? files : new File[0]){
+			String name = file.getName();
+			
+			if(name.matches("[0-9]{8}\\.log")){
+				int     id      = Integer.parseInt(name.substring(0, 8));
+				Segment segment = new Segment(id, file);
+				
+				segment.open();
+				
+				this.segments.put(id, segment);
+			}
+		}
+		
+		if(this.segments.isEmpty()){
+			this.createSegment(1);
+		}
+		
+		this.active = this.segments.lastEntry().getValue();
+		
+		/* Scan what the index doesn't cover. */
+		Location checkpoint = this.readIndex();
+		
+		if(checkpoint == null){
+			this.index.clear();
+			this.graves.clear();
+			
+			for(Segment segment : this.segments.values()){
+				segment.live = 0;
+			}
+			
+			for(Segment segment : this.segments.values()){
+				this.scan(segment, 0);
+			}
+		}
+		else{
+			for(Segment segment : this.segments.tailMap(checkpoint.segment.id).values()){
+				this.scan(segment, (segment == checkpoint.segment) ? checkpoint.position : 0);
+			}
+		}
+	}
+	
+	/**
+	 * Read the index file.
+	 * 
+	 * @return The position up to which the index is complete or null if there is no usable index.
+	 */
+	private Location readIndex(){
+		File            file  = new File(this.directory, "index");
+		DataInputStream input = null;
+		
+		if(!file.exists()){
+			return null;
+		}
+		
+		try{
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			
+			if(input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION){
+				return null;
+			}
+			
+			Segment checkpoint = this.segments.get(input.readInt());
+			long    position   = input.readLong();
+			int     count      = input.readInt();
+			
+			if(checkpoint == null || position > checkpoint.size){
+				return null;
+			}
+			
+			/* Items, then removal records that are still needed. */
+			for(int i = 0; i < count; i++){
+				String   category = input.readUTF();
+				String   hash     = input.readUTF();
+				Location location = this.readLocation(input);
+				
+				/* Index doesn't match the segments. */
+				if(location == null){
+					return null;
+				}
+				
+				if(location.length < 0){
+					this.bury(category, hash, location);
+				}
+				else{
+					this.put(category, hash, location);
+				}
+			}
+			
+			return new Location(checkpoint, position, 0, 0);
+		}
+		catch(IOException e){
+			return null;
+		}
+		finally{
+			if(input != null){
+				try{
+					input.close();
+				}
+				catch(IOException e){
+					/* Ignore. */
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read a location of the index file.
+	 * 
+	 * @return The {@link Location} or null if it doesn't match the segments.
+	 */
+	private Location readLocation(DataInputStream input) throws IOException {
+		Segment segment  = this.segments.get(input.readInt());
+		long    position = input.readLong();
+		int     length   = input.readInt();
+		int     size     = input.readInt();
+		int     oldest   = input.readInt();
+		
+		if(segment == null || position + size > segment.size){
+			return null;
+		}
+		
+		Location location = new Location(segment, position, length, size);
+		
+		location.oldest = oldest;
+		
+		return location;
+	}
+	
+	/**
+	 * Save the index to a temporary file and replace the index file with it.
+	 */
+	private void saveIndex(){
+		File             file   = new File(this.directory, "index");
+		File             temp   = new File(this.directory, "index.tmp");
+		DataOutputStream output = null;
+		
+		try{
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			
+			output.writeInt(INDEX_MAGIC);
+			output.writeInt(INDEX_VERSION);
+			output.writeInt(this.active.id);
+			output.writeLong(this.active.size);
+			
+			int count = 0;
+			
+			for(Map<String, Location> locations : this.index.values()){
+				count += locations.size();
+			}
+			
+			for(Map<String, Location> locations : this.graves.values()){
+				count += locations.size();
+			}
+			
+			output.writeInt(count);
+			
+			writeLocations(output, this.index);
+			writeLocations(output, this.graves);
+			
+			output.close();
+			
+			output = null;
+			
+			/* Replace the old index (rename doesn't replace existing files everywhere). */
+			if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))){
+				throw new IOException("Can't rename '" + temp + "'.");
+			}
+		}
+		catch(IOException e){
+			System.err.println("Can't save cache index: " + e.getMessage());
+		}
+		finally{
+			if(output != null){
+				try{
+					output.close();
+				}
+				catch(IOException e){
+					/* Ignore. */
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Write locations by category and hash to the index file.
+	 */
+	private static void writeLocations(DataOutputStream output, Map<String, Map<String, Location>> locations) throws IOException {
+		for(Map.Entry<String, Map<String, Location>> category : locations.entrySet()){
+			for(Map.Entry<String, Location> entry : category.getValue().entrySet()){
+				Location location = entry.getValue();
+				
+				output.writeUTF(category.getKey());
+				output.writeUTF(entry.getKey());
+				output.writeInt(location.segment.id);
+				output.writeLong(location.position);
+				output.writeInt(location.length);
+				output.writeInt(location.size);
+				output.writeInt(location.oldest);
+			}
+		}
+	}
+	
+	/**
+	 * Apply the records of a segment from a position on to the index.
+	 * Truncates the segment at the first damaged record.
+	 */
+	private void scan(Segment segment, long position) throws IOException {
+		Record record;
+		
+		while(position < segment.size && (record = readRecord(segment.channel, position, segment.size)) != null){
+			Location location = new Location(segment, position, record.length, record.size);
+			
+			if(record.length < 0){
+				Location previous = this.unindex(record.category, record.hash);
+				
+				if(previous != null){
+					location.oldest = previous.oldest;
+				}
+				
+				this.bury(record.category, record.hash, location);
+			}
+			else{
+				this.put(record.category, record.hash, location);
+			}
+			
+			position += record.size;
+		}
+		
+		if(position < segment.size){
+			System.err.println("Truncating damaged cache segment '" + segment.file + "' at " + position + ".");
+			
+			segment.channel.truncate(position);
+			
+			segment.size = position;
+		}
+	}
+	
+	/**
+	 * Create and open a new, empty segment.
+	 */
+	private Segment createSegment(int id) throws IOException {
+		Segment segment = new Segment(id, new File(this.directory, String.format("%08d.log", id)));
+		
+		segment.open();
+		segment.channel.truncate(0);
+		
+		segment.size = 0;
+		
+		this.segments.put(id, segment);
+		
+		return segment;
+	}
+	
+	/**
+	 * Open a segment again after its channel was closed by an interrupt.
+	 */
+	private synchronized void reopen(Segment segment){
+		if(this.closed || this.segments.get(segment.id) != segment || segment.channel.isOpen()){
+			return;
+		}
+		
+		try{
+			segment.open();
+		}
+		catch(IOException e){
+			System.err.println("Can't open cache segment '" + segment.file + "': " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Append a record to the active segment, starting a new segment if it's full.
+	 * 
+	 * @return The location of the record.
+	 */
+	private Location append(ByteBuffer record) throws IOException {
+		if(this.closed){
+			throw new IOException("Cache is closed.");
+		}
+		
+		int size = record.remaining();
+		
+		if(this.active.size > 0 && this.active.size + size > this.segmentSize){
+			this.active = this.createSegment(this.active.id + 1);
+			
+			/* New checkpoint, the sealed segment may be worth compacting. */
+			this.saveIndex();
+			this.notifyAll();
+		}
+		
+		long position = this.active.size;
+		
+		/* A partial write is overwritten by the next record. */
+		for(long written = 0; record.hasRemaining(); ){
+			written += this.active.channel.write(record, position + written);
+		}
+		
+		this.active.size += size;
+		
+		return new Location(this.active, position, record.getInt(8), size);
+	}
+	
+	private Location lookup(String category, String hash){
+		return get(this.index, category, hash);
+	}
+	
+	/**
+	 * Point an item to a new location and account for live bytes.
+	 * A removal record of the item isn't needed anymore.
+	 */
+	private void put(String category, String hash, Location location){
+		Location previous = add(this.index, category, hash, location);
+		
+		if(previous != null){
+			location.oldest = Math.min(location.oldest, previous.oldest);
+			
+			this.dead(previous);
+		}
+		
+		if((previous = remove(this.graves, category, hash)) != null){
+			location.oldest = Math.min(location.oldest, previous.oldest);
+			
+			this.dead(previous);
+		}
+		
+		location.segment.live += location.size;
+	}
+	
+	/**
+	 * Remove an item from the index.
+	 * 
+	 * @return The previous location of the item or null.
+	 */
+	private Location unindex(String category, String hash){
+		Location previous = remove(this.index, category, hash);
+		
+		if(previous != null){
+			this.dead(previous);
+		}
+		
+		return previous;
+	}
+	
+	/**
+	 * Keep a removal record as long as it's needed and count it as live meanwhile.
+	 * It replaces an earlier removal record of the item.
+	 */
+	private void bury(String category, String hash, Location grave){
+		Location previous = remove(this.graves, category, hash);
+		
+		if(previous != null){
+			grave.oldest = Math.min(grave.oldest, previous.oldest);
+			
+			this.dead(previous);
+		}
+		
+		if(this.isNeeded(grave)){
+			add(this.graves, category, hash, grave);
+			
+			grave.segment.live += grave.size;
+		}
+	}
+	
+	/**
+	 * Check if a removal record is needed, i.e. if a segment older than
+	 * the record is left that may hold a record of the removed item.
+	 */
+	private boolean isNeeded(Location grave){
+		return !this.segments.subMap(grave.oldest, true, grave.segment.id, false).isEmpty();
+	}
+	
+	/**
+	 * Get a location by category and hash.
+	 * 
+	 * @return The location or null.
+	 */
+	private static Location get(Map<String, Map<String, Location>> map, String category, String hash){
+		Map<String, Location> locations = map.get(category);
+		
+		return (locations != null) ? locations.get(hash) : null;
+	}
+	
+	/**
+	 * Add a location by category and hash.
+	 * 
+	 * @return The previous location or null.
+	 */
+	private static Location add(Map<String, Map<String, Location>> map, String category, String hash, Location location){
+		Map<String, Location> locations = map.get(category);
+		
+		if(locations == null){
+			locations = new HashMap<String, Location>();
+			
+			map.put(category, locations);
+		}
+		
+		return locations.put(hash, location);
+	}
+	
+	/**
+	 * Remove a location by category and hash.
+	 * 
+	 * @return The removed location or null.
+	 */
+	private static Location remove(Map<String, Map<String, Location>> map, String category, String hash){
+		Map<String, Location> locations = map.get(category);
+		Location              previous  = null;
+		
+		if(locations != null && (previous = locations.remove(hash)) != null && locations.isEmpty()){
+			map.remove(category);
+		}
+		
+		return previous;
+	}
+	
+	/**
+	 * Account for a record that is no longer live and wake up the compactor.
+	 */
+	private void dead(Location location){
+		location.segment.live -= location.size;
+		
+		if(location.segment != this.active){
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Get the sealed segment with most dead bytes, if it's worth compacting.
+	 */
+	private Segment getCompactable(){
+		Segment victim = null;
+		long    dead   = 0;
+		
+		for(Segment segment : this.segments.values()){
+			if(segment != this.active && !segment.failed && segment.size - segment.live >= COMPACT_RATIO * segment.size && segment.size - segment.live >= dead){
+				victim = segment;
+				dead   = segment.size - segment.live;
+			}
+		}
+		
+		return victim;
+	}
+	
+	/**
+	 * Copy the live records of a sealed segment to the end of the log and delete it.
+	 * Removal records are copied as long as older segments may hold the removed item.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long   position = 0;
+		Record record;
+		
+		/* Sealed segments don't change, so read them without the lock. */
+		while(position < segment.size && (record = readRecord(segment.channel, position, segment.size)) != null){
+			ByteBuffer copy = record(record.category, record.hash, record.data, record.length);
+			
+			synchronized(this){
+				if(this.closed || this.segments.get(segment.id) != segment){
+					return;
+				}
+				
+				if(record.length < 0){
+					Location grave = get(this.graves, record.category, record.hash);
+					
+					if(grave != null && grave.segment == segment && grave.position == position){
+						Location moved = this.append(copy);
+						
+						moved.oldest = grave.oldest;
+						
+						this.bury(record.category, record.hash, moved);
+					}
+				}
+				else{
+					Location location = this.lookup(record.category, record.hash);
+					
+					if(location != null && location.segment == segment && location.position == position){
+						this.put(record.category, record.hash, this.append(copy));
+					}
+				}
+			}
+			
+			position += record.size;
+		}
+		
+		synchronized(this){
+			if(this.closed || this.segments.get(segment.id) != segment){
+				return;
+			}
+			
+			/* Drop items behind a damaged record. */
+			for(String category : new ArrayList<String>(this.index.keySet())){
+				for(String hash : this.list(category)){
+					if(this.lookup(category, hash).segment == segment){
+						this.unindex(category, hash);
+					}
+				}
+			}
+			
+			this.segments.remove(segment.id);
+			this.compactions++;
+			
+			/* Removal records only needed because of this segment aren't anymore. */
+			for(Iterator<Map<String, Location>> categories = this.graves.values().iterator(); categories.hasNext(); ){
+				Map<String, Location> locations = categories.next();
+				
+				for(Iterator<Location> graves = locations.values().iterator(); graves.hasNext(); ){
+					Location grave = graves.next();
+					
+					if(grave.segment == segment || !this.isNeeded(grave)){
+						graves.remove();
+						
+						this.dead(grave);
+					}
+				}
+				
+				if(locations.isEmpty()){
+					categories.remove();
+				}
+			}
+			
+			/* Save the index before deleting, so it never points into a deleted segment. */
+			this.saveIndex();
+		}
+		
+		/* Readers still in the segment get a ClosedChannelException and look the item up again. */
+		segment.close();
+		segment.file.delete();
+	}
+	
+	/**
+	 * Build a record.
+	 * 
+	 * @param length The length of the data or -1 for a removed item.
+	 */
+	private static ByteBuffer record(String category, String hash, byte[] data, int length){
+		byte[] c    = category.getBytes(UTF8);
+		byte[] h    = hash.getBytes(UTF8);
+		int    size = HEADER_SIZE + c.length + h.length + Math.max(0, length);
+		
+		if(c.length > 0xffff || h.length > 0xffff){
+			throw new IllegalArgumentException("Category or hash too long.");
+		}
+		
+		ByteBuffer record = ByteBuffer.allocate(size);
+		
+		record.putInt(0);
+		record.putShort((short)c.length);
+		record.putShort((short)h.length);
+		record.putInt(length);
+		record.put(c);
+		record.put(h);
+		
+		if(length > 0){
+			record.put(data, 0, length);
+		}
+		
+		CRC32 crc = new CRC32();
+		
+		crc.update(record.array(), 4, size - 4);
+		
+		record.putInt(0, (int)crc.getValue());
+		record.flip();
+		
+		return record;
+	}
+	
+	/**
+	 * Read and check a record.
+	 * 
+	 * @return The {@link Record} or null if it's truncated or damaged.
+	 */
+	private static Record readRecord(FileChannel channel, long position, long end) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		
+		if(position + HEADER_SIZE > end || !readFully(channel, header, position)){
+			return null;
+		}
+		
+		header.flip();
+		
+		int crc            = header.getInt();
+		int categoryLength = header.getShort() & 0xffff;
+		int hashLength     = header.getShort() & 0xffff;
+		int length         = header.getInt();
+		
+		if(length < -1 || position + HEADER_SIZE + categoryLength + hashLength + Math.max(0, length) > end){
+			return null;
+		}
+		
+		ByteBuffer body = ByteBuffer.allocate(categoryLength + hashLength + Math.max(0, length));
+		
+		if(!readFully(channel, body, position + HEADER_SIZE)){
+			return null;
+		}
+		
+		CRC32 check = new CRC32();
+		
+		check.update(header.array(), 4, HEADER_SIZE - 4);
+		check.update(body.array());
+		
+		if((int)check.getValue() != crc){
+			return null;
+		}
+		
+		Record record = new Record();
+		
+		record.category = new String(body.array(), 0, categoryLength, UTF8);
+		record.hash     = new String(body.array(), categoryLength, hashLength, UTF8);
+		record.length   = length;
+		record.size     = HEADER_SIZE + body.capacity();
+		record.data     = null;
+		
+		if(length >= 0){
+			record.data = new byte[length];
+			
+			System.arraycopy(body.array(), categoryLength + hashLength, record.data, 0, length);
+		}
+		
+		return record;
+	}
+	
+	/**
+	 * Fill a buffer with positional reads.
+	 * 
+	 * @return false if the end of the file was reached first.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()){
+			int read = channel.read(buffer, position);
+			
+			if(read < 0){
+				return false;
+			}
+			
+			position += read;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Compacts segments in the background.
+	 */
+	private class Compactor implements Runnable {
+		public void run(){
+			LogCache cache = LogCache.this;
+			
+			while(true){
+				Segment segment = null;
+				
+				synchronized(cache){
+					while(!cache.closed && (segment = cache.getCompactable()) == null){
+						try{
+							cache.wait();
+						}
+						catch(InterruptedException e){
+							return;
+						}
+					}
+					
+					if(cache.closed){
+						return;
+					}
+				}
+				
+				try{
+					cache.compact(segment);
+				}
+				catch(IOException e){
+					System.err.println("Can't compact cache segment '" + segment.file + "': " + e.getMessage());
+					
+					synchronized(cache){
+						segment.failed = true;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A segment file.
+	 */
+	private static class Segment {
+		private int         id;
+		private File        file;
+		private FileChannel channel;
+		
+		/**
+		 * Bytes in the segment and in records of live items.
+		 */
+		private long size;
+		private long live;
+		
+		/**
+		 * Whether compacting the segment failed.
+		 */
+		private boolean failed;
+		
+		private Segment(int id, File file){
+			this.id     = id;
+			this.file   = file;
+			this.size   = 0;
+			this.live   = 0;
+			this.failed = false;
+		}
+		
+		private void open() throws IOException {
+			this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+			this.size    = this.channel.size();
+		}
+		
+		private void close(){
+			try{
+				this.channel.close();
+			}
+			catch(IOException e){
+				/* Ignore. */
+			}
+		}
+	}
+	
+	/**
+	 * The location of a record.
+	 */
+	private static class Location {
+		private Segment segment;
+		private long    position;
+		private int     length;
+		private int     size;
+		
+		/**
+		 * Id of the oldest segment that may hold a record of the same item.
+		 */
+		private int oldest;
+		
+		private Location(Segment segment, long position, int length, int size){
+			this.segment  = segment;
+			this.position = position;
+			this.length   = length;
+			this.size     = size;
+			this.oldest   = segment.id;
+		}
+		
+		/**
+		 * Data follows header, category and hash.
+		 */
+		private long getDataPosition(){
+			return this.position + this.size - this.length;
+		}
+	}
+	
+	/**
+	 * A record read from a segment.
+	 */
+	private static class Record {
+		private String category;
+		private String hash;
+		private int    length;
+		private int    size;
+		private byte[] data;
+	}
+}
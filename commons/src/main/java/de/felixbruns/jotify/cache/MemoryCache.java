@@ -3,32 +3,150 @@ package de.felixbruns.jotify.cache;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * A {@link Cache} implementation that stores data in memory.
  * 
+ * The cache holds at most a configurable number of bytes. Each category
+ * has its own budget and its own segmented LRU: new items go to a probation
+ * segment and are promoted to a protected segment when they are loaded again.
+ * Items are evicted from probation first, so a burst of items that are only
+ * loaded once (e.g. a page of cover images) doesn't push out the items that
+ * are used over and over. A category only evicts its own items when it exceeds
+ * its budget, so images can't evict browse results. If the whole cache exceeds
+ * its capacity, the category that uses the largest share of its budget evicts.
+ * 
+ * The capacity can be set with the system property {@code jotify.cache.memory}
+ * (bytes, default 32 MB) and the budget of a category with
+ * {@code jotify.cache.memory.<category>} (bytes, default the capacity).
+ * 
+ * All methods are thread-safe. Loaded data is not copied, so don't modify it.
+ * 
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class MemoryCache implements Cache {
 	/**
-	 * A key-value store holding cache data.
+	 * Share of a category budget for items that were loaded at least once.
+	 */
+	private static final double PROTECTED_SHARE = 0.8;
+	
+	/**
+	 * Maximum number of bytes in the cache and current number of bytes.
+	 */
+	private long capacity;
+	private long size;
+	
+	/**
+	 * Number of items evicted to make room.
 	 */
-	private Map<String, byte[]> data = new HashMap<String, byte[]>();
+	private long evictions;
 	
 	/**
-	 * Create a new {@link MemoryCache}.
+	 * Cache data by category and budgets set by {@link #setBudget(String, long)}.
+	 */
+	private Map<String, Segment> segments;
+	private Map<String, Long>    budgets;
+	
+	/**
+	 * Create a new {@link MemoryCache} with the capacity given by the
+	 * {@code jotify.cache.memory} system property or 32 MB.
 	 */
 	public MemoryCache(){
-		this.data = new HashMap<String, byte[]>();
+		this(Long.getLong("jotify.cache.memory", 32 * 1024 * 1024));
+	}
+	
+	/**
+	 * Create a new {@link MemoryCache} with a specified capacity.
+	 * 
+	 * @param capacity The maximum number of bytes to hold.
+	 */
+	public MemoryCache(long capacity){
+		this.capacity  = capacity;
+		this.size      = 0;
+		this.evictions = 0;
+		this.segments  = new HashMap<String, Segment>();
+		this.budgets   = new HashMap<String, Long>();
+	}
+	
+	/**
+	 * Set the maximum number of bytes a category may hold.
+	 * Evicts items of that category if it holds more.
+	 * 
+	 * @param category A cache category.
+	 * @param budget   The maximum number of bytes, 0 to not cache the category.
+	 */
+	public synchronized void setBudget(String category, long budget){
+		this.budgets.put(category, budget);
+		
+		Segment segment = this.segments.get(category);
+		
+		if(segment != null){
+			segment.budget = budget;
+			
+			this.trim(segment);
+		}
+	}
+	
+	/**
+	 * Get the maximum number of bytes a category may hold.
+	 * 
+	 * @param category A cache category.
+	 * 
+	 * @return The budget of the category.
+	 */
+	public synchronized long getBudget(String category){
+		Long budget = this.budgets.get(category);
+		
+		if(budget == null){
+			budget = Long.getLong("jotify.cache.memory." + category, this.capacity);
+		}
+		
+		return budget;
+	}
+	
+	/**
+	 * Get the maximum number of bytes in the cache.
+	 */
+	public synchronized long getCapacity(){
+		return this.capacity;
+	}
+	
+	/**
+	 * Get the number of bytes in the cache.
+	 */
+	public synchronized long getSize(){
+		return this.size;
+	}
+	
+	/**
+	 * Get the number of bytes in a category.
+	 * 
+	 * @param category A cache category.
+	 */
+	public synchronized long getSize(String category){
+		Segment segment = this.segments.get(category);
+		
+		return (segment != null) ? segment.size : 0;
+	}
+	
+	/**
+	 * Get the number of items evicted to make room for others.
+	 */
+	public synchronized long getEvictions(){
+		return this.evictions;
 	}
 	
 	/**
 	 * Clear the entire cache.
 	 */
-	public void clear(){
-		this.data.clear();
+	public synchronized void clear(){
+		this.segments.clear();
+		
+		this.size = 0;
 	}
 	
 	/**
@@ -36,24 +154,26 @@ public class MemoryCache implements Cache {
 	 * 
 	 * @param category A cache category.
 	 */
-	public void clear(String category){
-		for(String key : this.data.keySet()){
-			if(key.startsWith(category + "-")){
-				this.data.remove(key);
-			}
+	public synchronized void clear(String category){
+		Segment segment = this.segments.remove(category);
+		
+		if(segment != null){
+			this.size -= segment.size;
 		}
 	}
 	
 	/**
-	 * Check if the cache contains an item. 
+	 * Check if the cache contains an item.
 	 * 
 	 * @param category The cache category to check.
 	 * @param hash     The hash of the item to check.
 	 * 
 	 * @return true if it contains that item, false otherwise.
 	 */
-	public boolean contains(String category, String hash){
-		return this.data.containsKey(category + "-" + hash);
+	public synchronized boolean contains(String category, String hash){
+		Segment segment = this.segments.get(category);
+		
+		return segment != null && segment.contains(hash);
 	}
 	
 	/**
@@ -64,8 +184,10 @@ public class MemoryCache implements Cache {
 	 * 
 	 * @return Cached data or {@code null}.
 	 */
-	public byte[] load(String category, String hash){
-		return this.data.get(category + "-" + hash);
+	public synchronized byte[] load(String category, String hash){
+		Segment segment = this.segments.get(category);
+		
+		return (segment != null) ? segment.get(hash) : null;
 	}
 	
 	/**
@@ -74,8 +196,12 @@ public class MemoryCache implements Cache {
 	 * @param category The cache category to remove from.
 	 * @param hash     The hash of the item to remove.
 	 */
-	public void remove(String category, String hash){
-		this.data.remove(category + "-" + hash);
+	public synchronized void remove(String category, String hash){
+		Segment segment = this.segments.get(category);
+		
+		if(segment != null){
+			segment.remove(hash);
+		}
 	}
 	
 	/**
@@ -90,7 +216,8 @@ public class MemoryCache implements Cache {
 	}
 	
 	/**
-	 * Store data in the cache.
+	 * Store data in the cache. Data larger than the budget
+	 * of its category is not stored.
 	 * 
 	 * @param category The cache category to store to.
 	 * @param hash     The hash of the item to store.
@@ -98,10 +225,24 @@ public class MemoryCache implements Cache {
 	 * @param size     The size of the data.
 	 */
 	public void store(String category, String hash, byte[] data, int size){
-		this.data.put(category + "-" + hash, Arrays.copyOf(data, size));
+		/* Copy outside of the lock. */
+		byte[] copy = Arrays.copyOf(data, size);
+		
+		synchronized(this){
+			Segment segment = this.segments.get(category);
+			
+			if(segment == null){
+				segment = new Segment(this.getBudget(category));
+				
+				this.segments.put(category, segment);
+			}
+			
+			segment.put(hash, copy);
+			
+			this.trim(segment);
+		}
 	}
 	
-	
 	/**
 	 * List data in a cache category.
 	 * 
@@ -109,15 +250,167 @@ public class MemoryCache implements Cache {
 	 * 
 	 * @return A {@link List} of cache hashes.
 	 */
-	public List<String> list(String category){
-		List<String> hashes = new ArrayList<String>();
+	public synchronized List<String> list(String category){
+		List<String> hashes  = new ArrayList<String>();
+		Segment      segment = this.segments.get(category);
 		
-		for(String key : this.data.keySet()){
-			if(key.startsWith(category + "-")){
-				hashes.add(key.replaceFirst(category + "-", ""));
-			}
+		if(segment != null){
+			hashes.addAll(segment.probation.keySet());
+			hashes.addAll(segment.protect.keySet());
 		}
 		
 		return hashes;
 	}
+	
+	/**
+	 * Evict items until a category fits its budget and the cache its capacity.
+	 * 
+	 * @param segment The category that grew.
+	 */
+	private void trim(Segment segment){
+		/* Stop if there's nothing left to evict, in case the accounting drifted. */
+		while(segment.size > segment.budget){
+			if(!segment.evict()){
+				break;
+			}
+		}
+		
+		while(this.size > this.capacity){
+			Segment fullest = null;
+			double  share   = -1.0;
+			
+			for(Segment s : this.segments.values()){
+				double used = (double)s.size / Math.max(1, s.budget);
+				
+				if(!s.isEmpty() && used > share){
+					fullest = s;
+					share   = used;
+				}
+			}
+			
+			if(fullest == null || !fullest.evict()){
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * The items of a category in a segmented LRU.
+	 */
+	private class Segment {
+		/**
+		 * Items that weren't loaded since they were stored (insertion order)
+		 * and items that were (access order).
+		 */
+		private LinkedHashMap<String, byte[]> probation;
+		private LinkedHashMap<String, byte[]> protect;
+		
+		/**
+		 * Budget, bytes in both segments and bytes in the protected segment.
+		 */
+		private long budget;
+		private long size;
+		private long protectedSize;
+		
+		private Segment(long budget){
+			this.probation     = new LinkedHashMap<String, byte[]>();
+			this.protect       = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+			this.budget        = budget;
+			this.size          = 0;
+			this.protectedSize = 0;
+		}
+		
+		private boolean contains(String hash){
+			return this.protect.containsKey(hash) || this.probation.containsKey(hash);
+		}
+		
+		/**
+		 * Get an item and promote it to the protected segment, demoting
+		 * the least recently used protected items if it's full.
+		 */
+		private byte[] get(String hash){
+			byte[] data = this.protect.get(hash);
+			
+			if(data != null){
+				return data;
+			}
+			
+			if((data = this.probation.remove(hash)) == null){
+				return null;
+			}
+			
+			this.protect.put(hash, data);
+			
+			this.protectedSize += data.length;
+			
+			Iterator<Map.Entry<String, byte[]>> iterator = this.protect.entrySet().iterator();
+			
+			while(this.protectedSize > PROTECTED_SHARE * this.budget && this.protect.size() > 1){
+				Map.Entry<String, byte[]> eldest = iterator.next();
+				
+				iterator.remove();
+				
+				this.probation.put(eldest.getKey(), eldest.getValue());
+				
+				this.protectedSize -= eldest.getValue().length;
+			}
+			
+			return data;
+		}
+		
+		/**
+		 * Add or replace an item. New items start in probation.
+		 */
+		private void put(String hash, byte[] data){
+			this.remove(hash);
+			
+			if(data.length > this.budget){
+				return;
+			}
+			
+			this.probation.put(hash, data);
+			
+			this.size             += data.length;
+			MemoryCache.this.size += data.length;
+		}
+		
+		private void remove(String hash){
+			byte[] data = this.probation.remove(hash);
+			
+			if(data == null && (data = this.protect.remove(hash)) != null){
+				this.protectedSize -= data.length;
+			}
+			
+			if(data != null){
+				this.size             -= data.length;
+				MemoryCache.this.size -= data.length;
+			}
+		}
+		
+		/**
+		 * Check if the segment holds no items.
+		 */
+		private boolean isEmpty(){
+			return this.probation.isEmpty() && this.protect.isEmpty();
+		}
+		
+		/**
+		 * Evict the least recently stored item in probation or,
+		 * if probation is empty, the least recently used protected item.
+		 * Returns false if there was nothing to evict.
+		 */
+		private boolean evict(){
+			Map<String, byte[]> victims = this.probation.isEmpty() ? this.protect : this.probation;
+			
+			if(victims.isEmpty()){
+				return false;
+			}
+			
+			this.remove(victims.keySet().iterator().next());
+			
+			MemoryCache.this.evictions++;
+			
+			return true;
+		}
+	}
 }
@@ -9,6 +9,7 @@ import de.felixbruns.jotify.protocol.channel.ChannelListener;
 /**
  * A special {@link FileCache} for storing and retrieving audio substreams.
  * Introduces a {@code hash} method and an asynchronous {@code load} method.
+ * Substreams take up at most 1 GB of disk space by default, see {@link DiskQuota}.
  * 
  * @author Felix Bruns <felixbruns@web.de>
  */
@@ -0,0 +1,432 @@
+package de.felixbruns.jotify.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Cache} implementation that puts a bounded memory tier in front
+ * of a disk tier, by default a {@link MemoryCache} and a {@link FileCache}.
+ * 
+ * Stored items go to the memory tier right away and are written to the disk
+ * tier by a background thread, so callers never wait for the disk. Items
+ * loaded from the disk tier are promoted to the memory tier, so hot items are
+ * served from memory. Until its write is done, an item is served from the
+ * write queue, even if the memory tier evicted it. Removals go through the
+ * queue as well, so they can't be overtaken by earlier writes.
+ * 
+ * If more bytes than the write-behind limit are waiting to be written, stores
+ * wait until the disk catches up. The limit can be set with the system property
+ * {@code jotify.cache.writebehind} (bytes, default 8 MB). Queued writes are lost
+ * if the VM exits before they are done, call {@link #flush()} to wait for them
+ * (connections do when they are closed, except for the shared default cache,
+ * which is flushed when the VM shuts down).
+ */
+public class TieredCache implements Cache {
+	/**
+	 * The cache shared by connections using the default cache.
+	 */
+	private static TieredCache defaultCache = null;
+	
+	/**
+	 * The memory and the disk tier.
+	 */
+	private Cache memory;
+	private Cache disk;
+	
+	/**
+	 * Maximum number of bytes waiting to be written and current number of bytes.
+	 */
+	private long limit;
+	private long pendingSize;
+	
+	/**
+	 * Writes in order and the latest write of each item, by category and hash.
+	 */
+	private LinkedList<Write> queue;
+	private Map<String, Write> pending;
+	
+	/**
+	 * Number of writes not done yet, including the one being written.
+	 */
+	private int unfinished;
+	
+	/**
+	 * Number of stores and removals, to not promote data that changed while it was loaded.
+	 */
+	private long modifications;
+	
+	/**
+	 * The thread writing to the disk tier.
+	 */
+	private Thread writer;
+	
+	/**
+	 * Get the cache shared by all connections that use the default cache,
+	 * so they share one memory tier and one writer thread and hot items
+	 * are found by all of them. It's created on first use and its queued
+	 * writes are flushed when the VM shuts down.
+	 * 
+	 * @return The default {@link TieredCache}.
+	 */
+	public static synchronized TieredCache getDefault(){
+		if(defaultCache == null){
+			defaultCache = new TieredCache();
+			
+			Runtime.getRuntime().addShutdownHook(new Thread("TieredCache-Flush"){
+				public void run(){
+					getDefault().flush();
+				}
+			});
+		}
+		
+		return defaultCache;
+	}
+	
+	/**
+	 * Create a new {@link TieredCache} with a default {@link MemoryCache}
+	 * in front of a default {@link FileCache}.
+	 */
+	public TieredCache(){
+		this(new MemoryCache(), new FileCache());
+	}
+	
+	/**
+	 * Create a new {@link TieredCache} with specified tiers.
+	 * 
+	 * @param memory The fast, bounded {@link Cache}, e.g. a {@link MemoryCache}.
+	 * @param disk   The slow, persistent {@link Cache}, e.g. a {@link FileCache}.
+	 */
+	public TieredCache(Cache memory, Cache disk){
+		this.memory        = memory;
+		this.disk          = disk;
+		this.limit         = Long.getLong("jotify.cache.writebehind", 8 * 1024 * 1024);
+		this.pendingSize   = 0;
+		this.queue         = new LinkedList<Write>();
+		this.pending       = new HashMap<String, Write>();
+		this.unfinished    = 0;
+		this.modifications = 0;
+		this.writer        = null;
+	}
+	
+	/**
+	 * Get the memory tier.
+	 */
+	public Cache getMemory(){
+		return this.memory;
+	}
+	
+	/**
+	 * Get the disk tier.
+	 */
+	public Cache getDisk(){
+		return this.disk;
+	}
+	
+	/**
+	 * Get the number of bytes waiting to be written to the disk tier.
+	 */
+	public synchronized long getPendingSize(){
+		return this.pendingSize;
+	}
+	
+	/**
+	 * Wait until all queued writes and removals are done.
+	 */
+	public synchronized void flush(){
+		boolean interrupted = false;
+		
+		while(this.unfinished > 0){
+			try{
+				this.wait();
+			}
+			catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Clear the entire cache. Waits for queued writes.
+	 */
+	public void clear(){
+		this.flush();
+		
+		synchronized(this){
+			this.memory.clear();
+			this.disk.clear();
+			
+			this.modifications++;
+		}
+	}
+	
+	/**
+	 * Clear the cache for the specified category. Waits for queued writes.
+	 * 
+	 * @param category A cache category.
+	 */
+	public void clear(String category){
+		this.flush();
+		
+		synchronized(this){
+			this.memory.clear(category);
+			this.disk.clear(category);
+			
+			this.modifications++;
+		}
+	}
+	
+	/**
+	 * Check if the cache contains an item.
+	 * 
+	 * @param category The cache category to check.
+	 * @param hash     The hash of the item to check.
+	 * 
+	 * @return true if it contains that item, false otherwise.
+	 */
+	public boolean contains(String category, String hash){
+		if(this.memory.contains(category, hash)){
+			return true;
+		}
+		
+		synchronized(this){
+			Write write = this.pending.get(key(category, hash));
+			
+			if(write != null){
+				return write.data != null;
+			}
+		}
+		
+		return this.disk.contains(category, hash);
+	}
+	
+	/**
+	 * Load data from the memory tier, the write queue or the disk
+	 * tier, in that order. Data loaded from disk is promoted to memory.
+	 * 
+	 * @param category The cache category to load from.
+	 * @param hash     The hash of the item to load.
+	 * 
+	 * @return Cached data or {@code null}.
+	 */
+	public byte[] load(String category, String hash){
+		byte[] data = this.memory.load(category, hash);
+		long   modifications;
+		
+		if(data != null){
+			return data;
+		}
+		
+		synchronized(this){
+			Write write = this.pending.get(key(category, hash));
+			
+			if(write != null){
+				return write.data;
+			}
+			
+			modifications = this.modifications;
+		}
+		
+		if((data = this.disk.load(category, hash)) == null){
+			return null;
+		}
+		
+		/* Don't promote outdated data if the item was stored or removed meanwhile. */
+		synchronized(this){
+			if(this.modifications == modifications){
+				this.memory.store(category, hash, data);
+			}
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Remove a single item from the cache. It's removed
+	 * from the disk tier after queued writes.
+	 * 
+	 * @param category The cache category to remove from.
+	 * @param hash     The hash of the item to remove.
+	 */
+	public void remove(String category, String hash){
+		synchronized(this){
+			this.memory.remove(category, hash);
+			
+			this.enqueue(new Write(category, hash, null));
+		}
+	}
+	
+	/**
+	 * Store data in the cache.
+	 * 
+	 * @param category The cache category to store to.
+	 * @param hash     The hash of the item to store.
+	 * @param data     The data to store.
+	 */
+	public void store(String category, String hash, byte[] data){
+		this.store(category, hash, data, data.length);
+	}
+	
+	/**
+	 * Store data in the memory tier and queue it for the disk tier.
+	 * Waits if too many bytes are queued already.
+	 * 
+	 * @param category The cache category to store to.
+	 * @param hash     The hash of the item to store.
+	 * @param data     The data to store.
+	 * @param size     The size of the data.
+	 */
+	public void store(String category, String hash, byte[] data, int size){
+		/* Copy outside of the lock, the caller may reuse its buffer. */
+		byte[]  copy        = Arrays.copyOf(data, size);
+		boolean interrupted = false;
+		
+		synchronized(this){
+			/* Wait for the disk, but always accept a write if nothing is queued. */
+			while(this.pendingSize > 0 && this.pendingSize + size > this.limit){
+				try{
+					this.wait();
+				}
+				catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+			
+			this.memory.store(category, hash, copy);
+			
+			this.enqueue(new Write(category, hash, copy));
+		}
+		
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * List data in a cache category. Waits for queued writes.
+	 * 
+	 * @param category The cache category to list.
+	 * 
+	 * @return A {@link List} of cache hashes.
+	 */
+	public List<String> list(String category){
+		this.flush();
+		
+		return this.disk.list(category);
+	}
+	
+	/**
+	 * Get the number of bytes a category takes up in the disk tier,
+	 * which holds all items once their writes are done.
+	 * 
+	 * @param category A cache category.
+	 */
+	public long getSize(String category){
+		return this.disk.getSize(category);
+	}
+	
+	/**
+	 * Queue a write or removal, starting the writer if necessary.
+	 */
+	private void enqueue(Write write){
+		this.queue.add(write);
+		this.pending.put(key(write.category, write.hash), write);
+		
+		this.pendingSize += write.size();
+		this.unfinished++;
+		this.modifications++;
+		
+		if(this.writer == null){
+			this.writer = new Thread(new Writer(), "TieredCache-Writer");
+			
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+		
+		this.notifyAll();
+	}
+	
+	/**
+	 * Get the key of an item in the write queue.
+	 */
+	private static String key(String category, String hash){
+		return category + "/" + hash;
+	}
+	
+	/**
+	 * Writes queued items to the disk tier, one at a time and in order.
+	 */
+	private class Writer implements Runnable {
+		public void run(){
+			while(true){
+				Write write;
+				
+				synchronized(TieredCache.this){
+					while(queue.isEmpty()){
+						try{
+							TieredCache.this.wait();
+						}
+						catch(InterruptedException e){
+							writer = null;
+							
+							return;
+						}
+					}
+					
+					write = queue.removeFirst();
+				}
+				
+				try{
+					if(write.data != null){
+						disk.store(write.category, write.hash, write.data);
+					}
+					else{
+						disk.remove(write.category, write.hash);
+					}
+				}
+				catch(RuntimeException e){
+					System.err.println("Can't write '" + write.category + "/" + write.hash + "' to disk: " + e);
+				}
+				
+				synchronized(TieredCache.this){
+					String key = key(write.category, write.hash);
+					
+					/* A later write of the same item stays pending. */
+					if(pending.get(key) == write){
+						pending.remove(key);
+					}
+					
+					pendingSize -= write.size();
+					unfinished--;
+					
+					TieredCache.this.notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A queued write, or a removal if it has no data.
+	 */
+	private static class Write {
+		private String category;
+		private String hash;
+		private byte[] data;
+		
+		private Write(String category, String hash, byte[] data){
+			this.category = category;
+			this.hash     = hash;
+			this.data     = data;
+		}
+		
+		private int size(){
+			return (this.data != null) ? this.data.length : 0;
+		}
+	}
+}
@@ -27,11 +27,6 @@ import javax.crypto.spec.DHPublicKeySpec;
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class DH {
-	/**
-	 * {@link KeyPairGenerator} object for creating new key pairs.
-	 */
-	private static KeyPairGenerator keyPairGenerator;
-	
 	/**
 	 * {@link KeyAgreement} object for computing shared keys.
 	 */
@@ -76,9 +71,8 @@ public class DH {
 	 */
 	static{
 		try{
-			keyPairGenerator = KeyPairGenerator.getInstance("DH");
-			keyAgreement     = KeyAgreement.getInstance("DH");
-			keyFactory       = KeyFactory.getInstance("DH");
+			keyAgreement = KeyAgreement.getInstance("DH");
+			keyFactory   = KeyFactory.getInstance("DH");
 		}
 		catch(NoSuchAlgorithmException e){
 			throw new RuntimeException(e);
@@ -96,9 +90,14 @@ public class DH {
 	 * @return A {@link DHKeyPair} holding Diffie-Hellman private and public keys.
 	 */
 	public static DHKeyPair generateKeyPair(int keysize){
-		/* Check if key pair generator is instantiated. */
-		if(keyPairGenerator == null){
-			throw new RuntimeException("KeyPairGenerator not instantiated!");
+		KeyPairGenerator keyPairGenerator;
+		
+		/* Use a generator per call, so key pairs can be generated concurrently. */
+		try{
+			keyPairGenerator = KeyPairGenerator.getInstance("DH");
+		}
+		catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
 		}
 		
 		/* Initialize key pair generator with prime, generator and keysize in bits. */
@@ -126,7 +125,7 @@ public class DH {
 	 * 
 	 * @return The shared key as a byte array.
 	 */
-	public static byte[] computeSharedKey(DHPrivateKey privateKey, DHPublicKey publicKey){
+	public static synchronized byte[] computeSharedKey(DHPrivateKey privateKey, DHPublicKey publicKey){
 		/* Check if key agreement is instantiated. */
 		if(keyAgreement == null){
 			throw new RuntimeException("KeyAgreement not instantiated!");
@@ -204,7 +203,7 @@ public class DH {
 	 * 
 	 * @return A {@link DHPublicKey} object.
 	 */
-	public static DHPublicKey bytesToPublicKey(DHParameterSpec parameterSpec, byte[] bytes){
+	public static synchronized DHPublicKey bytesToPublicKey(DHParameterSpec parameterSpec, byte[] bytes){
 		/* Set Y (public key), P and G values. */
 		KeySpec keySpec = new DHPublicKeySpec(
 			bytesToBigInteger(bytes),
@@ -229,7 +228,7 @@ public class DH {
 	 * 
 	 * @return A {@link DHPrivateKey} object.
 	 */
-	public static DHPrivateKey bytesToPrivateKey(DHParameterSpec parameterSpec, byte[] bytes){
+	public static synchronized DHPrivateKey bytesToPrivateKey(DHParameterSpec parameterSpec, byte[] bytes){
 		/* Set X (private key), P and G values. */
 		KeySpec keySpec = new DHPrivateKeySpec(
 			bytesToBigInteger(bytes),
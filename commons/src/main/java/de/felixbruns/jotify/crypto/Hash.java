@@ -39,7 +39,7 @@ public class Hash {
 	 * 
 	 * @return The 20-byte SHA-1 hash of that buffer.
 	 */
-	public static byte[] sha1(byte[] buffer){
+	public static synchronized byte[] sha1(byte[] buffer){
 		if(digestSha1 == null){
 			throw new RuntimeException("MessageDigest not instantiated!");
 		}
@@ -54,7 +54,7 @@ public class Hash {
 	 * 
 	 * @return The 16-byte MD5 hash of that buffer.
 	 */
-	public static byte[] md5(byte[] buffer){
+	public static synchronized byte[] md5(byte[] buffer){
 		if(digestMd5 == null){
 			throw new RuntimeException("MessageDigest not instantiated!");
 		}
@@ -86,7 +86,7 @@ public class Hash {
 	 * @param output The destination buffer.
 	 * @param offset The offset in the destination buffer.
 	 */
-	public static void hmacSha1(byte[] buffer, byte[] key, byte[] output, int offset){
+	public static synchronized void hmacSha1(byte[] buffer, byte[] key, byte[] output, int offset){
 		if(hmacSha1 == null){
 			throw new RuntimeException("Mac not instantiated!");
 		}
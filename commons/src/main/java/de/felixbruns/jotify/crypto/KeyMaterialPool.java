@@ -0,0 +1,211 @@
+package de.felixbruns.jotify.crypto;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.felixbruns.jotify.crypto.DH.DHKeyPair;
+import de.felixbruns.jotify.crypto.RSA.RSAKeyPair;
+
+/**
+ * Pool of RSA and Diffie-Hellman key pairs for new sessions, generated
+ * ahead of time on a background thread. Generating the key pairs takes
+ * longer than the rest of a login, so connections opened in a burst
+ * (a {@link de.felixbruns.jotify.JotifyPool} or the gateway) take them
+ * from the pool instead. Every key pair is handed out only once. When
+ * the pool is empty, key pairs are generated on the calling thread.
+ *
+ * The default pool keeps {@code jotify.keypool.depth} key pairs of each
+ * kind (default 4, 0 disables pre-generation). It starts filling on first
+ * use, or earlier when {@link #prefill()} or {@link #setDepth(int)} is called.
+ */
+public class KeyMaterialPool implements Runnable {
+	/* Key sizes in bits used by sessions. */
+	public static final int RSA_KEY_SIZE = 1024;
+	public static final int DH_KEY_SIZE  = 768;
+	
+	/* Default pool used by sessions. */
+	private static KeyMaterialPool instance;
+	
+	static{
+		instance = new KeyMaterialPool(Integer.getInteger("jotify.keypool.depth", 4));
+	}
+	
+	/* Pre-generated key pairs. */
+	private BlockingQueue<RSAKeyPair> rsaKeyPairs;
+	private BlockingQueue<DHKeyPair>  dhKeyPairs;
+	
+	/* Number of key pairs of each kind to keep and the thread generating them. */
+	private int    depth;
+	private Thread thread;
+	
+	/* Number of key pairs taken from the pool and generated on demand. */
+	private AtomicLong hits;
+	private AtomicLong misses;
+	
+	/**
+	 * Get the pool used by new sessions.
+	 */
+	public static KeyMaterialPool getDefault(){
+		return instance;
+	}
+	
+	/**
+	 * Create a new, empty key pool.
+	 *
+	 * @param depth The number of key pairs of each kind to keep, 0 to
+	 *              generate all key pairs on demand.
+	 */
+	public KeyMaterialPool(int depth){
+		this.rsaKeyPairs = new LinkedBlockingQueue<RSAKeyPair>();
+		this.dhKeyPairs  = new LinkedBlockingQueue<DHKeyPair>();
+		this.depth       = Math.max(0, depth);
+		this.thread      = null;
+		this.hits        = new AtomicLong();
+		this.misses      = new AtomicLong();
+	}
+	
+	/**
+	 * Set the number of key pairs of each kind to keep and start filling
+	 * the pool up to it. Key pairs above a lowered depth are used up first.
+	 *
+	 * @param depth The number of key pairs, 0 to stop pre-generating them.
+	 */
+	public synchronized void setDepth(int depth){
+		this.depth = Math.max(0, depth);
+		
+		this.refill();
+	}
+	
+	/**
+	 * Start filling the pool now instead of when the first key pair is taken.
+	 */
+	public void prefill(){
+		this.refill();
+	}
+	
+	/**
+	 * Get the number of key pairs of each kind the pool keeps.
+	 */
+	public synchronized int getDepth(){
+		return this.depth;
+	}
+	
+	/**
+	 * Get the number of RSA and DH key pairs that are ready to be taken
+	 * (the smaller of both).
+	 */
+	public int getAvailable(){
+		return Math.min(this.rsaKeyPairs.size(), this.dhKeyPairs.size());
+	}
+	
+	/**
+	 * Get the number of key pairs taken from the pool.
+	 */
+	public long getHits(){
+		return this.hits.get();
+	}
+	
+	/**
+	 * Get the number of key pairs generated on demand because the pool was empty.
+	 */
+	public long getMisses(){
+		return this.misses.get();
+	}
+	
+	/**
+	 * Take an RSA key pair of {@link #RSA_KEY_SIZE} bits.
+	 *
+	 * @return A key pair nobody else got.
+	 */
+	public RSAKeyPair takeRSAKeyPair(){
+		RSAKeyPair keyPair = this.rsaKeyPairs.poll();
+		
+		this.refill();
+		
+		if(keyPair != null){
+			this.hits.incrementAndGet();
+			
+			return keyPair;
+		}
+		
+		this.misses.incrementAndGet();
+		
+		return RSA.generateKeyPair(RSA_KEY_SIZE);
+	}
+	
+	/**
+	 * Take a Diffie-Hellman key pair of {@link #DH_KEY_SIZE} bits.
+	 *
+	 * @return A key pair nobody else got.
+	 */
+	public DHKeyPair takeDHKeyPair(){
+		DHKeyPair keyPair = this.dhKeyPairs.poll();
+		
+		this.refill();
+		
+		if(keyPair != null){
+			this.hits.incrementAndGet();
+			
+			return keyPair;
+		}
+		
+		this.misses.incrementAndGet();
+		
+		return DH.generateKeyPair(DH_KEY_SIZE);
+	}
+	
+	/* Wake up the generating thread or start it if needed. */
+	private synchronized void refill(){
+		if(this.depth == 0){
+			return;
+		}
+		
+		if(this.thread == null){
+			this.thread = new Thread(this, "KeyMaterialPool");
+			
+			/* Stay out of the way of connections doing actual work. */
+			this.thread.setDaemon(true);
+			this.thread.setPriority(Thread.MIN_PRIORITY);
+			this.thread.start();
+		}
+		else{
+			this.notifyAll();
+		}
+	}
+	
+	/* Check whether one of the queues is below the current depth. */
+	private synchronized boolean needsRefill(){
+		return this.rsaKeyPairs.size() < this.depth || this.dhKeyPairs.size() < this.depth;
+	}
+	
+	/**
+	 * Generate key pairs until the pool is full, then wait until
+	 * key pairs are taken. Runs on the thread of the pool.
+	 */
+	public void run(){
+		while(true){
+			synchronized(this){
+				while(!this.needsRefill()){
+					try{
+						this.wait();
+					}
+					catch(InterruptedException e){
+						this.thread = null;
+						
+						return;
+					}
+				}
+			}
+			
+			/* Generate outside of the lock, so taking key pairs never waits for us. */
+			if(this.dhKeyPairs.size() < this.getDepth()){
+				this.dhKeyPairs.add(DH.generateKeyPair(DH_KEY_SIZE));
+			}
+			
+			if(this.rsaKeyPairs.size() < this.getDepth()){
+				this.rsaKeyPairs.add(RSA.generateKeyPair(RSA_KEY_SIZE));
+			}
+		}
+	}
+}
@@ -14,11 +14,6 @@ import java.util.Arrays;
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class RSA {
-	/**
-	 * {@link KeyPairGenerator} object for creating new key pairs.
-	 */
-	private static KeyPairGenerator keyPairGenerator;
-	
 	/**
 	 * {@link RSA} instance for creating new {@link RSAKeyPair} objects.
 	 */
@@ -28,13 +23,6 @@ public class RSA {
 	 * Statically instantiate needed objects and create a class instance.
 	 */
 	static{
-		try{
-			keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-		}
-		catch(NoSuchAlgorithmException e){
-			throw new RuntimeException(e);
-		}
-		
 		/* Create RSA instance for creating new RSAKeyPair objects. */
 		instance = new RSA();
 	}
@@ -47,9 +35,14 @@ public class RSA {
 	 * @return A {@link RSAKeyPair} holding RSA private and public keys.
 	 */
 	public static RSAKeyPair generateKeyPair(int keysize){
-		/* Check if key pair generator is instantiated. */
-		if(keyPairGenerator == null){
-			throw new RuntimeException("KeyPairGenerator not instantiated!");
+		KeyPairGenerator keyPairGenerator;
+		
+		/* Use a generator per call, so key pairs can be generated concurrently. */
+		try{
+			keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		}
+		catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
 		}
 		
 		/* Initialize key pair generator with keysize in bits. */
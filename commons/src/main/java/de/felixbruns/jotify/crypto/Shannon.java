@@ -1,5 +1,8 @@
 package de.felixbruns.jotify.crypto;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Implementation of the Shannon stream-cipher.
  * 
@@ -20,13 +23,14 @@ public class Shannon {
 	private static final int INITKONST = 0x6996c53a; /* Value of konst to use during key loading. */
 	private static final int KEYP      = 13;         /* Where to insert key/MAC/counter words. */
 	
-	private int[] R;     /* Working storage for the shift register. */
-	private int[] CRC;   /* Working storage for CRC accumulation. */
-	private int[] initR; /* Saved register contents. */
-	private int   konst; /* Key dependant semi-constant. */
-	private int   sbuf;  /* Encryption buffer. */
-	private int   mbuf;  /* Partial word MAC buffer. */
-	private int   nbuf;  /* Number of part-word stream bits buffered. */
+	private int[]  R;        /* Working storage for the shift register. */
+	private int[]  CRC;      /* Working storage for CRC accumulation. */
+	private int[]  initR;    /* Saved register contents. */
+	private byte[] macBytes; /* Scratch space for MACs put into buffers. */
+	private int    konst;    /* Key dependant semi-constant. */
+	private int    sbuf;     /* Encryption buffer. */
+	private int    mbuf;     /* Partial word MAC buffer. */
+	private int    nbuf;     /* Number of part-word stream bits buffered. */
 	
 	/**
 	 * Create a new instance of the Shannon stream-cipher.
@@ -36,6 +40,9 @@ public class Shannon {
 		this.R     = new int[N];
 		this.CRC   = new int[N];
 		this.initR = new int[N];
+		
+		/* Scratch space for a word. */
+		this.macBytes = new byte[4];
 	}
 	
 	/* Nonlinear transform (sbox) of a word. There are two slightly different combinations. */
@@ -161,7 +168,6 @@ public class Shannon {
 	 * Note: Also initializes the CRC register as a side effect.
 	 */
 	private void loadKey(byte[] key){
-		byte[] extra = new byte[4];
 		int i, j;
 		int t;
 		
@@ -182,22 +188,11 @@ public class Shannon {
 		
 		/* If there were any extra bytes, zero pad to a word. */
 		if(i < key.length){
-			/* i remains unchanged at start of loop. */
-			for(j = 0; i < key.length; i++){
-				extra[j++] = key[i];
-			}
-			
-			/* j remains unchanged at start of loop. */
-			for(; j < 4; j++){
-				extra[j] = 0;
+			/* Shift extra bytes into one word, i remains unchanged at start of loop. */
+			for(t = 0, j = 0; i < key.length; i++, j += 8){
+				t |= (key[i] & 0xFF) << j;
 			}
 			
-			/* Shift 4 extra bytes into one word. */
-			t =	((extra[3] & 0xFF) << 24) |
-				((extra[2] & 0xFF) << 16) |
-				((extra[1] & 0xFF) << 8)  |
-				((extra[0] & 0xFF));
-			
 			/* Insert key word at index 13. */
 			this.addKey(t);
 			
@@ -205,8 +200,19 @@ public class Shannon {
 			this.cycle();
 		}
 		
+		/* Fold in the length of the key. */
+		this.foldKeyLength(key.length);
+	}
+	
+	/*
+	 * Fold in the length of the key material and make
+	 * key loading irreversible.
+	 */
+	private void foldKeyLength(int length){
+		int i;
+		
 		/* Also fold in the length of the key. */
-		this.addKey(key.length);
+		this.addKey(length);
 		
 		/* Cycle register. */
 		this.cycle();
@@ -261,6 +267,29 @@ public class Shannon {
 		this.nbuf = 0;
 	}
 	
+	/*
+	 * Set IV from an integer. Same as passing its 4 bytes in
+	 * big-endian order to nonce(byte[]), but without an array.
+	 */
+	public void nonce(int nonce){
+		/* Reload register state. */
+		this.reloadState();
+		
+		/* Set initialization constant. */
+		this.konst = INITKONST;
+		
+		/* Load "IV" material (a single word, bytes in big-endian order). */
+		this.addKey(Integer.reverseBytes(nonce));
+		this.cycle();
+		this.foldKeyLength(4);
+		
+		/* Set 'konst'. */
+		this.genKonst();
+		
+		/* Set 'nbuf' value to zero. */
+		this.nbuf = 0;
+	}
+	
 	/*
 	 * XOR pseudo-random bytes into buffer.
 	 * Note: doesn't play well with MAC functions. 
@@ -390,7 +419,15 @@ public class Shannon {
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void encrypt(byte[] buffer, int n){
-		int i = 0, j;
+		this.encrypt(buffer, 0, n);
+	}
+	
+	/*
+	 * Combined MAC and encryption of 'n' bytes starting at 'off'.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void encrypt(byte[] buffer, int off, int n){
+		int i = off, j;
 		int t;
 		
 		/* Handle any previously buffered bytes. */
@@ -416,7 +453,7 @@ public class Shannon {
 		}
 		
 		/* Handle whole words. */
-		j = n & ~0x03;
+		j = i + (n & ~0x03);
 		
 		while(i < j){
 			/* Cycle register. */
@@ -477,7 +514,15 @@ public class Shannon {
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void decrypt(byte[] buffer, int n){
-		int i = 0, j;
+		this.decrypt(buffer, 0, n);
+	}
+	
+	/*
+	 * Combined MAC and decryption of 'n' bytes starting at 'off'.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void decrypt(byte[] buffer, int off, int n){
+		int i = off, j;
 		int t;
 		
 		/* Handle any previously buffered bytes. */
@@ -503,7 +548,7 @@ public class Shannon {
 		}
 		
 		/* Handle whole words. */
-		j = n & ~0x03;
+		j = i + (n & ~0x03);
 		
 		while(i < j){
 			/* Cycle register. */
@@ -551,6 +596,156 @@ public class Shannon {
 		}
 	}
 	
+	/*
+	 * Combined MAC and encryption of the bytes between position and limit
+	 * of a (heap or direct) buffer. Whole words are read and written as ints.
+	 * Position and limit of the buffer are left unchanged.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void encrypt(ByteBuffer buffer){
+		boolean swap = (buffer.order() == ByteOrder.BIG_ENDIAN);
+		int     i    = buffer.position(), j, n = buffer.remaining();
+		int     t;
+		
+		/* Handle any previously buffered bytes. */
+		if(this.nbuf != 0){
+			while(this.nbuf != 0 && n != 0){
+				this.mbuf ^= (buffer.get(i) & 0xFF) << (32 - this.nbuf);
+				buffer.put(i, (byte)(buffer.get(i) ^ (this.sbuf >> (32 - this.nbuf))));
+				
+				i++;
+				
+				this.nbuf -= 8;
+				
+				n--;
+			}
+			
+			/* Not a whole word yet. */
+			if(this.nbuf != 0){
+				return;
+			}
+			
+			/* LFSR already cycled. */
+			this.macFunc(this.mbuf);
+		}
+		
+		/* Handle whole words (little-endian). */
+		j = i + (n & ~0x03);
+		
+		while(i < j){
+			/* Cycle register. */
+			this.cycle();
+			
+			t = buffer.getInt(i);
+			t = swap ? Integer.reverseBytes(t) : t;
+			
+			this.macFunc(t);
+			
+			t ^= this.sbuf;
+			
+			buffer.putInt(i, swap ? Integer.reverseBytes(t) : t);
+			
+			i += 4;
+		}
+		
+		/* Handle any trailing bytes. */
+		n &= 0x03;
+		
+		if(n != 0){
+			/* Cycle register. */
+			this.cycle();
+			
+			this.mbuf = 0;
+			this.nbuf = 32;
+			
+			while(this.nbuf != 0 && n != 0){
+				this.mbuf ^= (buffer.get(i) & 0xFF) << (32 - this.nbuf);
+				buffer.put(i, (byte)(buffer.get(i) ^ (this.sbuf >> (32 - this.nbuf))));
+				
+				i++;
+				
+				this.nbuf -= 8;
+				
+				n--;
+			}
+		}
+	}
+	
+	/*
+	 * Combined MAC and decryption of the bytes between position and limit
+	 * of a (heap or direct) buffer. Whole words are read and written as ints.
+	 * Position and limit of the buffer are left unchanged.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void decrypt(ByteBuffer buffer){
+		boolean swap = (buffer.order() == ByteOrder.BIG_ENDIAN);
+		int     i    = buffer.position(), j, n = buffer.remaining();
+		int     t;
+		
+		/* Handle any previously buffered bytes. */
+		if(this.nbuf != 0){
+			while(this.nbuf != 0 && n != 0){
+				buffer.put(i, (byte)(buffer.get(i) ^ (this.sbuf >> (32 - this.nbuf))));
+				this.mbuf ^= (buffer.get(i) & 0xFF) << (32 - this.nbuf);
+				
+				i++;
+				
+				this.nbuf -= 8;
+				
+				n--;
+			}
+			
+			/* Not a whole word yet. */
+			if(this.nbuf != 0){
+				return;
+			}
+			
+			/* LFSR already cycled. */
+			this.macFunc(this.mbuf);
+		}
+		
+		/* Handle whole words (little-endian). */
+		j = i + (n & ~0x03);
+		
+		while(i < j){
+			/* Cycle register. */
+			this.cycle();
+			
+			t = buffer.getInt(i);
+			t = swap ? Integer.reverseBytes(t) : t;
+			
+			t ^= this.sbuf;
+			
+			this.macFunc(t);
+			
+			buffer.putInt(i, swap ? Integer.reverseBytes(t) : t);
+			
+			i += 4;
+		}
+		
+		/* Handle any trailing bytes. */
+		n &= 0x03;
+		
+		if(n != 0){
+			/* Cycle register. */
+			this.cycle();
+			
+			this.mbuf = 0;
+			this.nbuf = 32;
+			
+			while(this.nbuf != 0 && n != 0){
+				buffer.put(i, (byte)(buffer.get(i) ^ (this.sbuf >> (32 - this.nbuf))));
+				this.mbuf ^= (buffer.get(i) & 0xFF) << (32 - this.nbuf);
+				
+				i++;
+				
+				this.nbuf -= 8;
+				
+				n--;
+			}
+		}
+	}
+	
 	/*
 	 * Having accumulated a MAC, finish processing and return it.
 	 * Note that any unprocessed bytes are treated as if they were
@@ -608,11 +803,33 @@ public class Shannon {
 			}
 			else{
 				for(j = 0; j < n; j++){
-					buffer[i + j] = (byte)((this.sbuf >> (i * 8)) & 0xFF);
+					buffer[i + j] = (byte)((this.sbuf >> (j * 8)) & 0xFF);
 				}
 				
 				break;
 			}
 		}
 	}
+	
+	/*
+	 * Having accumulated a MAC, finish processing and put the MAC into
+	 * the given buffer (as many bytes as remaining, advances position).
+	 */
+	public void finish(ByteBuffer buffer){
+		int n = buffer.remaining();
+		
+		/* MACs are short, so use a small array. */
+		if(n <= 4){
+			this.finish(this.macBytes, n);
+			
+			buffer.put(this.macBytes, 0, n);
+		}
+		else{
+			byte[] bytes = new byte[n];
+			
+			this.finish(bytes, n);
+			
+			buffer.put(bytes);
+		}
+	}
 }
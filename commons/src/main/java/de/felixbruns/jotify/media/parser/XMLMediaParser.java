@@ -6,7 +6,9 @@ import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
 
 public class XMLMediaParser extends XMLParser implements XMLStreamConstants {
     private static final int SUPPORTED_RESULT_VERSION = 1;
@@ -866,12 +868,36 @@ public class XMLMediaParser extends XMLParser implements XMLStreamConstants {
      * @return An object if successful, null if not.
      */
     public static Object parse(byte[] xml, String encoding) {
+//        System.out.println("xml: " + new String(xml, encoding));
         try {
-//            System.out.println("xml: " + new String(xml, encoding));
-            XMLMediaParser parser = new XMLMediaParser(new ByteArrayInputStream(xml, 0, xml.length - 1), encoding);
+            return parse(new ByteArrayInputStream(xml, 0, xml.length - 1), encoding);
+        } catch (TimeoutException e) {
+            /* Can't happen, the data is in memory. */
+            return null;
+        }
+    }
+
+    /**
+     * Parse {@code stream} into an object using the specified {@code encoding}.
+     * Parsing stops after the document element, so the stream may still have
+     * trailing data and doesn't need to be complete when parsing starts.
+     *
+     * @param stream   The xml as {@link InputStream}.
+     * @param encoding The encoding to use.
+     * @return An object if successful, null if not.
+     * @throws TimeoutException If reading the stream timed out, see
+     *                          {@link de.felixbruns.jotify.protocol.channel.StreamingChannelCallback}.
+     */
+    public static Object parse(InputStream stream, String encoding) throws TimeoutException {
+        try {
+            XMLMediaParser parser = new XMLMediaParser(stream, encoding);
 
             return parser.parse();
         } catch (XMLStreamException e) {
+            if (isTimeout(e)) {
+                throw new TimeoutException("Timeout while waiting for data.");
+            }
+
             e.printStackTrace();
 
             return null;
@@ -886,6 +912,31 @@ public class XMLMediaParser extends XMLParser implements XMLStreamConstants {
 //        }
     }
 
+    /**
+     * Check if parsing failed because reading the stream timed out. The
+     * {@link InterruptedIOException} of the stream is wrapped by the reader.
+     *
+     * @param e The exception thrown by the reader.
+     * @return true if it was caused by a timeout, false otherwise.
+     */
+    private static boolean isTimeout(XMLStreamException e) {
+        Throwable cause = e;
+
+        for (int depth = 0; cause != null && depth < 8; depth++) {
+            if (cause instanceof InterruptedIOException) {
+                return true;
+            }
+
+            if (cause.getCause() == null && cause instanceof XMLStreamException) {
+                cause = ((XMLStreamException) cause).getNestedException();
+            } else {
+                cause = cause.getCause();
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Parse {@code xml} into a {@link Result} object using the specified {@code encoding}.
      *
@@ -903,6 +954,24 @@ public class XMLMediaParser extends XMLParser implements XMLStreamConstants {
         return null;
     }
 
+    /**
+     * Parse {@code stream} into a {@link Result} object using the specified {@code encoding}.
+     *
+     * @param stream   The xml as {@link InputStream}.
+     * @param encoding The encoding to use.
+     * @return A {@link Result} object if successful, null if not.
+     * @throws TimeoutException If reading the stream timed out.
+     */
+    public static Result parseResult(InputStream stream, String encoding) throws TimeoutException {
+        Object result = parse(stream, encoding);
+
+        if (result instanceof Result) {
+            return (Result) result;
+        }
+
+        return null;
+    }
+
     /**
      * Parse {@code xml} into an {@link Artist} object using the specified {@code encoding}.
      *
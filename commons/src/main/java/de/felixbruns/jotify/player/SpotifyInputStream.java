@@ -4,6 +4,7 @@ import de.felixbruns.jotify.exceptions.ProtocolException;
 import de.felixbruns.jotify.media.File;
 import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.protocol.Protocol;
+import de.felixbruns.jotify.protocol.Reconnector;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelCallback;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
@@ -15,6 +16,7 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -37,6 +39,9 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
     private static final int CHUNK_SIZE = 4096;
     private static final int SUBSTREAM_SIZE = 320 * 1024 * 5 / 8;
 
+    /* Consecutive substream errors at one offset after which reading fails. */
+    private static final int MAX_ERRORS = 5;
+
     /*
       * Protocol, track and file for
       * substream requesting and handling.
@@ -67,6 +72,14 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
     private int streamOffset;
     private int chunkIndex;
 
+    /* Substream channel in flight and the offset it was requested at. */
+    private Channel channel;
+    private int channelOffset;
+
+    /* Offset of the last failed substream and consecutive errors there (guarded by request lock). */
+    private int errorOffset;
+    private int errors;
+
     /*
       * Cipher implementation, key and IV
       * for decryption of audio stream.
@@ -105,6 +118,14 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
         this.streamOffset = 0;
         this.chunkIndex = 0;
 
+        /* No substream requested yet. */
+        this.channel = null;
+        this.channelOffset = 0;
+
+        /* No errors yet. */
+        this.errorOffset = -1;
+        this.errors = 0;
+
         /* Get AES/CTR/NoPadding instance. */
         try {
             this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
@@ -224,7 +245,8 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 
         /* Request substream, if this fails reset loading flag. */
         try {
-            this.protocol.sendSubstreamRequest(this, this.track, this.file, this.streamOffset, SUBSTREAM_SIZE);
+            this.channelOffset = this.streamOffset;
+            this.channel = this.protocol.sendSubstreamRequest(this, this.track, this.file, this.streamOffset, SUBSTREAM_SIZE);
         } catch (ProtocolException e) {
             this.isLoading = false;
 
@@ -285,6 +307,9 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
      * @throws IOException If an I/O error occurs.
      */
     public void close() throws IOException {
+        /* Stop loading data nobody is going to read. */
+        this.cancelRequest();
+
         this.chunks = null;
         this.isClosed = true;
     }
@@ -329,22 +354,30 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
         /* Acquire request lock. */
         this.requestLock.lock();
 
-        /* Request data. */
-        while (this.available() == 0) {
-            /* Calculate stream offset for next data request. */
-            this.streamOffset = this.readIndex * CHUNK_SIZE;
+        try {
+            /* Request data. */
+            while (this.available() == 0) {
+                /* Calculate stream offset for next data request. */
+                this.streamOffset = this.readIndex * CHUNK_SIZE;
 
-            /* Try to request data, if this fails exit loop. */
-            if (!this.requestData()) {
-                break;
-            }
+                /* Back off if the last request for this offset failed, give up after too many. */
+                this.awaitRetry();
 
-            /* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
-            this.requestCondition.awaitUninterruptibly();
-        }
+                /* Try to request data, if this fails exit loop. */
+                if (!this.requestData()) {
+                    break;
+                }
 
-        /* Release request lock again. */
-        this.requestLock.unlock();
+                /*
+                 * Wait until a chunk arrived or the substream failed. Substreams
+                 * that stop sending expire (see ChannelTimer) and count as errors.
+                 */
+                this.requestCondition.awaitUninterruptibly();
+            }
+        } finally {
+            /* Release request lock again. */
+            this.requestLock.unlock();
+        }
 
         /* Get current chunk. */
         byte[] chunk = this.chunks.get(this.readIndex);
@@ -424,34 +457,37 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
         /* Acquire request lock. */
         this.requestLock.lock();
 
-        /* Request data. */
-        while (this.available() == 0) {
-            /* Calculate stream offset for next data request. (TODO: Search next hole in data) */
-            this.streamOffset = this.readIndex * CHUNK_SIZE;
+        try {
+            /* Request data. */
+            while (this.available() == 0) {
+                /* Calculate stream offset for next data request. (TODO: Search next hole in data) */
+                this.streamOffset = this.readIndex * CHUNK_SIZE;
 
-            /* Try to request data, if this fails exit loop. */
-            if (!this.requestData()) {
-                break;
-            }
+                /* Back off if the last request for this offset failed, give up after too many. */
+                this.awaitRetry();
 
-            /* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
-            try {
-                boolean success = this.requestCondition.await(30, TimeUnit.SECONDS);
-                if (!success) {
-                    this.requestLock.unlock();
-                    throw new IOException("No data received from Spotify for 30 seconds. Failed to play.");
+                /* Try to request data, if this fails exit loop. */
+                if (!this.requestData()) {
+                    break;
+                }
+
+                /* Wait until a chunk arrived or the substream failed. */
+                try {
+                    boolean success = this.requestCondition.await(30, TimeUnit.SECONDS);
+                    if (!success) {
+                        throw new IOException("No data received from Spotify for 30 seconds. Failed to play.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.interrupted();
+                    //is this even remotely correct?
+                    return -1;
                 }
-            } catch (InterruptedException e) {
-                Thread.interrupted();
-                this.requestLock.unlock();
-                //is this even remotely correct?
-                return -1;
             }
+        } finally {
+            /* Release request lock again. */
+            this.requestLock.unlock();
         }
 
-        /* Release request lock again. */
-        this.requestLock.unlock();
-
         /* Determine number of bytes to copy. */
         len = Math.min(len, this.available());
 
@@ -573,6 +609,61 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
         /* Seek to requested offset. */
         this.readIndex = (int) (off / CHUNK_SIZE);
         this.readPosition = (int) (off % CHUNK_SIZE);
+
+        /* Cancel substream in flight if it doesn't cover the new position. */
+        if (this.isLoading && !this.chunks.containsKey(this.readIndex) &&
+                (off < this.channelOffset || off >= this.channelOffset + SUBSTREAM_SIZE)) {
+            this.cancelRequest();
+        }
+    }
+
+    /*
+     * Called with the request lock held before requesting the current stream offset.
+     * If substreams at this offset failed before, waits like the Reconnector does
+     * between attempts, and fails after MAX_ERRORS consecutive errors, e.g. if the
+     * server keeps answering with an error for this file or offset.
+     */
+    private void awaitRetry() throws IOException {
+        if (this.errors == 0 || this.errorOffset != this.streamOffset) {
+            return;
+        }
+
+        if (this.errors >= MAX_ERRORS) {
+            throw new IOException(String.format(
+                    "Substream at offset %d failed %d times in a row.", this.streamOffset, this.errors
+            ));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Reconnector.getBackoff(this.errors));
+        long remaining;
+
+        /* Wait on the condition, so channel callbacks can take the lock meanwhile. */
+        while (!this.isClosed && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                this.requestCondition.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new InterruptedIOException("Interrupted while waiting to request data again.");
+            }
+        }
+    }
+
+    /* Cancel the substream in flight and wake up a waiting reader, so it can request new data. */
+    private void cancelRequest() {
+        Channel channel = this.channel;
+
+        if (channel == null || !channel.cancel()) {
+            return;
+        }
+
+        this.requestLock.lock();
+
+        this.chunkIndex = 0;
+        this.isLoading = false;
+
+        this.requestCondition.signal();
+        this.requestLock.unlock();
     }
 
     /**
@@ -623,6 +714,11 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
     }
 
     public void channelData(Channel channel, byte[] data) {
+        /* Drop data that was already on its way when the channel got cancelled. */
+        if (channel.getState() == Channel.State.STATE_CANCELLED) {
+            return;
+        }
+
         /* Offsets needed for deinterleaving. */
         int off, w, x, y, z;
 
@@ -651,16 +747,14 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
         /* Put decrypted data into sparse buffer. */
         this.chunks.put(this.chunkIndex++, plaintext);
 
-        /* Signal data arrival. */
+        /* Signal data arrival, the substream works again. */
         this.requestLock.lock();
+        this.errors = 0;
         this.requestCondition.signal();
         this.requestLock.unlock();
     }
 
     public void channelEnd(Channel channel) {
-        /* Unregister finished channel. */
-        Channel.unregister(channel.getId());
-
         /* Reset chunk index and status flags. */
         this.chunkIndex = 0;
         this.isLoading = false;
@@ -672,6 +766,22 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
     }
 
     public void channelError(Channel channel) {
-        /* Just ignore channel errors. */
+        /* Count consecutive errors at the offset the substream was requested at. */
+        this.requestLock.lock();
+
+        if (this.errors > 0 && this.errorOffset == this.channelOffset) {
+            this.errors++;
+        } else {
+            this.errorOffset = this.channelOffset;
+            this.errors = 1;
+        }
+
+        this.requestLock.unlock();
+
+        /*
+         * Wake up the reader like at the end of a substream, it requests the
+         * missing data again after a while and fails after MAX_ERRORS errors.
+         */
+        this.channelEnd(channel);
     }
 }
@@ -314,6 +314,15 @@ public class SpotifyOggPlayer implements Runnable, Player {
             this.output.close();
         }
 
+        /* Close input stream, which also cancels the substream in flight. */
+        if (this.input != null) {
+            try {
+                this.input.close();
+            } catch (IOException e) {
+                /* Ignore. */
+            }
+        }
+
         /* Reset to uninitialized state. */
         this.isInitialized = false;
     }
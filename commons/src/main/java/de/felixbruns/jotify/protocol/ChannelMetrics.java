@@ -0,0 +1,134 @@
+package de.felixbruns.jotify.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.felixbruns.jotify.protocol.channel.Channel;
+import de.felixbruns.jotify.util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of the channels of one {@link Channel.Type}.
+ * Time to first packet and duration are measured from the moment a channel
+ * is registered, so they include time spent in the scheduler queue.
+ */
+public class ChannelMetrics implements ChannelMetricsMXBean {
+	private Channel.Type type;
+	
+	/* Channels opened, closed by outcome and currently open. */
+	private AtomicLong    opened;
+	private AtomicLong    ended;
+	private AtomicLong    failed;
+	private AtomicLong    cancelled;
+	private AtomicInteger open;
+	
+	/* Time to first packet and time until the channel ended. */
+	private LatencyHistogram firstPacket;
+	private LatencyHistogram duration;
+	
+	ChannelMetrics(Channel.Type type){
+		this.type        = type;
+		this.opened      = new AtomicLong(0);
+		this.ended       = new AtomicLong(0);
+		this.failed      = new AtomicLong(0);
+		this.cancelled   = new AtomicLong(0);
+		this.open        = new AtomicInteger(0);
+		this.firstPacket = new LatencyHistogram();
+		this.duration    = new LatencyHistogram();
+	}
+	
+	void opened(){
+		this.opened.incrementAndGet();
+		this.open.incrementAndGet();
+	}
+	
+	void firstPacket(long nanos){
+		this.firstPacket.record(nanos);
+	}
+	
+	void ended(long nanos){
+		this.ended.incrementAndGet();
+		this.open.decrementAndGet();
+		this.duration.record(nanos);
+	}
+	
+	void failed(){
+		this.failed.incrementAndGet();
+		this.open.decrementAndGet();
+	}
+	
+	void cancelled(){
+		this.cancelled.incrementAndGet();
+		this.open.decrementAndGet();
+	}
+	
+	/**
+	 * Get the histogram of times to first packet.
+	 */
+	public LatencyHistogram getFirstPacketHistogram(){
+		return this.firstPacket;
+	}
+	
+	/**
+	 * Get the histogram of durations of channels that ended normally.
+	 */
+	public LatencyHistogram getDurationHistogram(){
+		return this.duration;
+	}
+	
+	public String getType(){
+		return this.type.name();
+	}
+	
+	public long getOpened(){
+		return this.opened.get();
+	}
+	
+	public long getEnded(){
+		return this.ended.get();
+	}
+	
+	public long getFailed(){
+		return this.failed.get();
+	}
+	
+	public long getCancelled(){
+		return this.cancelled.get();
+	}
+	
+	public int getOpen(){
+		return this.open.get();
+	}
+	
+	public long getFirstPacketMeanMillis(){
+		return this.firstPacket.getMean(TimeUnit.MILLISECONDS);
+	}
+	
+	public long getFirstPacket50thPercentileMillis(){
+		return this.firstPacket.getPercentile(50, TimeUnit.MILLISECONDS);
+	}
+	
+	public long getFirstPacket99thPercentileMillis(){
+		return this.firstPacket.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+	
+	public long getFirstPacketMaxMillis(){
+		return this.firstPacket.getMax(TimeUnit.MILLISECONDS);
+	}
+	
+	public long getDurationMeanMillis(){
+		return this.duration.getMean(TimeUnit.MILLISECONDS);
+	}
+	
+	public long getDuration50thPercentileMillis(){
+		return this.duration.getPercentile(50, TimeUnit.MILLISECONDS);
+	}
+	
+	public long getDuration99thPercentileMillis(){
+		return this.duration.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+	
+	public long getDurationMaxMillis(){
+		return this.duration.getMax(TimeUnit.MILLISECONDS);
+	}
+}
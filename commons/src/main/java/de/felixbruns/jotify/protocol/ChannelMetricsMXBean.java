@@ -0,0 +1,24 @@
+package de.felixbruns.jotify.protocol;
+
+/**
+ * JMX view of the {@link ChannelMetrics} of one channel type.
+ */
+public interface ChannelMetricsMXBean {
+	public String getType();
+	
+	public long getOpened();
+	public long getEnded();
+	public long getFailed();
+	public long getCancelled();
+	public int  getOpen();
+	
+	public long getFirstPacketMeanMillis();
+	public long getFirstPacket50thPercentileMillis();
+	public long getFirstPacket99thPercentileMillis();
+	public long getFirstPacketMaxMillis();
+	
+	public long getDurationMeanMillis();
+	public long getDuration50thPercentileMillis();
+	public long getDuration99thPercentileMillis();
+	public long getDurationMaxMillis();
+}
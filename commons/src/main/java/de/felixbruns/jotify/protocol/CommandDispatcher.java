@@ -0,0 +1,146 @@
+package de.felixbruns.jotify.protocol;
+
+import java.nio.ByteBuffer;
+
+import de.felixbruns.jotify.crypto.RSA;
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+/**
+ * Dispatches received packets to handlers using a table indexed by
+ * the command byte. Handlers for the commands every connection handles
+ * the same way (ping, channel data and errors, AES keys, ...) are
+ * installed on creation; connections plug in their own handlers for
+ * the rest with {@link #setHandler(int, PacketListener)}.
+ *
+ * Handlers get a view of the receive buffer (see {@link PacketListener}),
+ * channel data is passed on to the {@link de.felixbruns.jotify.protocol.channel.ChannelRegistry}
+ * without copying it first.
+ */
+public class CommandDispatcher implements PacketListener {
+	/* Handlers indexed by command and handler for commands without one. */
+	private PacketListener[] handlers;
+	private PacketListener   fallback;
+	
+	/**
+	 * Create a new dispatcher with the default handlers installed.
+	 *
+	 * @param protocol The {@link Protocol} to dispatch packets of.
+	 * @param session  The {@link Session} of that protocol.
+	 */
+	public CommandDispatcher(final Protocol protocol, final Session session){
+		this.handlers = new PacketListener[256];
+		this.fallback = null;
+		
+		/* Ignored commands. */
+		PacketListener ignore = new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				/* Do nothing. */
+			}
+		};
+		
+		this.setHandler(Command.COMMAND_SHAHASH,     ignore);
+		this.setHandler(Command.COMMAND_P2P_INITBLK, ignore);
+		this.setHandler(Command.COMMAND_WELCOME,     ignore);
+		this.setHandler(Command.COMMAND_PAUSE,       ignore); /* TODO: Show notification and pause. */
+		
+		this.setHandler(Command.COMMAND_SECRETBLK, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				int offset = payload.position();
+				
+				/* Check length. */
+				if(payload.remaining() != 336){
+					System.err.format("Got command 0x02 with len %d, expected 336!\n", payload.remaining());
+				}
+				
+				/* Check RSA public key. */
+				byte[] rsaPublicKey = RSA.keyToBytes(session.getRSAPublicKey());
+				
+				for(int i = 0; i < 128; i++){
+					if(payload.get(offset + 16 + i) != rsaPublicKey[i]){
+						System.err.format("RSA public key doesn't match! %d\n", i);
+						
+						break;
+					}
+				}
+				
+				/* Send cache hash. */
+				try{
+					protocol.sendCacheHash();
+				}
+				catch(ProtocolException e){
+					/* Just don't care. */
+				}
+			}
+		});
+		
+		this.setHandler(Command.COMMAND_PING, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				/* Echo the timestamp of the server. */
+				try{
+					protocol.sendPong((payload.remaining() >= 4) ? payload.getInt(payload.position()) : 0);
+				}
+				catch(ProtocolException e){
+					/* Just don't care. */
+				}
+			}
+		});
+		
+		this.setHandler(Command.COMMAND_PONGACK, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				protocol.getHealth().pongAcknowledged();
+			}
+		});
+		
+		this.setHandler(Command.COMMAND_CHANNELDATA, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				protocol.getChannelRegistry().process(payload);
+			}
+		});
+		
+		this.setHandler(Command.COMMAND_CHANNELERR, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				protocol.getChannelRegistry().error(payload);
+			}
+		});
+		
+		this.setHandler(Command.COMMAND_AESKEY, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				/* Channel id is at offset 2. AES Key is at offset 4. */
+				payload.position(payload.position() + 2);
+				
+				protocol.getChannelRegistry().process(payload);
+			}
+		});
+	}
+	
+	/**
+	 * Set the handler of a command, replacing the current one.
+	 *
+	 * @param command The command byte.
+	 * @param handler The handler or null to use the default handler.
+	 */
+	public void setHandler(int command, PacketListener handler){
+		this.handlers[command & 0xff] = handler;
+	}
+	
+	/**
+	 * Set the handler for commands that have no handler of their own.
+	 *
+	 * @param handler The handler or null to ignore those commands.
+	 */
+	public void setDefaultHandler(PacketListener handler){
+		this.fallback = handler;
+	}
+	
+	public void packetReceived(int command, ByteBuffer payload){
+		PacketListener handler = this.handlers[command & 0xff];
+		
+		if(handler == null){
+			handler = this.fallback;
+		}
+		
+		if(handler != null){
+			handler.packetReceived(command, payload);
+		}
+	}
+}
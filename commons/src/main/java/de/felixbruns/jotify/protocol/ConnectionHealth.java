@@ -0,0 +1,287 @@
+package de.felixbruns.jotify.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time and recent failures of a single {@link Protocol},
+ * condensed into a score to pick the best of several connections.
+ *
+ * The round trip time is measured from the pong sent for a server ping
+ * to the server's pong acknowledgement. Pings are rare, so the time to the
+ * first packet of a channel is tracked as well. Both are smoothed like the
+ * TCP round trip estimator. A pong that wasn't acknowledged yet counts with
+ * the time it has been waiting, so a stalled connection degrades before the
+ * next ping.
+ *
+ * Channel errors and timeouts are tracked as a moving failure rate over
+ * roughly the last {@code 1 / FAILURE_WEIGHT} channels, so a connection
+ * recovers its score once it works again. Channels that end after the
+ * request timeout (see {@link #setTimeout(long, TimeUnit)}) count as
+ * timeouts, since their caller already gave up on them.
+ */
+public class ConnectionHealth {
+	/* Weight of a new sample in the round trip and response time averages (1/8 like TCP). */
+	private static final double RTT_WEIGHT = 0.125;
+	
+	/* Weight of a channel outcome in the failure rate. */
+	private static final double FAILURE_WEIGHT = 0.1;
+	
+	/* Response time (nanoseconds) at which the latency part of the score is 0.5. */
+	private static final long LATENCY_SCALE = TimeUnit.MILLISECONDS.toNanos(250);
+	
+	/* Whether the session is authenticated on a live connection. */
+	private boolean connected;
+	
+	/* Request timeout (nanoseconds). */
+	private long timeout;
+	
+	/* Smoothed round trip time and its mean deviation (nanoseconds, -1 if unknown). */
+	private long roundTripTime;
+	private long roundTripDeviation;
+	
+	/* Time a pong was sent (System.nanoTime) or 0 if none is pending. */
+	private long pongSent;
+	
+	/* Smoothed time to the first packet of a channel (nanoseconds, -1 if unknown). */
+	private long responseTime;
+	
+	/* Moving rate of failed channels (0 to 1). */
+	private double failureRate;
+	
+	/* Counters. */
+	private long pongs;
+	private long channelsEnded;
+	private long channelErrors;
+	private long timeouts;
+	private long disconnects;
+	
+	/**
+	 * Create a new health record for a connection that isn't connected yet.
+	 */
+	public ConnectionHealth(){
+		this.connected          = false;
+		this.timeout            = TimeUnit.SECONDS.toNanos(10);
+		this.roundTripTime      = -1;
+		this.roundTripDeviation = 0;
+		this.pongSent           = 0;
+		this.responseTime       = -1;
+		this.failureRate        = 0.0;
+		this.pongs              = 0;
+		this.channelsEnded      = 0;
+		this.channelErrors      = 0;
+		this.timeouts           = 0;
+		this.disconnects        = 0;
+	}
+	
+	/* Note an authenticated connection. */
+	synchronized void connected(){
+		this.connected = true;
+	}
+	
+	/* Note a closed or lost connection. A pending pong will never be acknowledged. */
+	synchronized void disconnected(){
+		if(this.connected){
+			this.disconnects++;
+		}
+		
+		this.connected = false;
+		this.pongSent  = 0;
+	}
+	
+	/* Note a pong sent in response to a server ping. */
+	synchronized void pongSent(){
+		this.pongSent = System.nanoTime();
+	}
+	
+	/* Take a round trip sample when the server acknowledges our pong. */
+	synchronized void pongAcknowledged(){
+		if(this.pongSent == 0){
+			return;
+		}
+		
+		long sample = System.nanoTime() - this.pongSent;
+		
+		this.pongSent = 0;
+		this.pongs++;
+		
+		if(this.roundTripTime < 0){
+			this.roundTripTime      = sample;
+			this.roundTripDeviation = sample / 2;
+		}
+		else{
+			this.roundTripDeviation += (long)(RTT_WEIGHT * (Math.abs(sample - this.roundTripTime) - this.roundTripDeviation));
+			this.roundTripTime      += (long)(RTT_WEIGHT * (sample - this.roundTripTime));
+		}
+	}
+	
+	/**
+	 * Take a response time sample when the first packet of a channel arrives.
+	 *
+	 * @param nanos Time since the channel was registered.
+	 */
+	public synchronized void firstPacket(long nanos){
+		if(this.responseTime < 0){
+			this.responseTime = nanos;
+		}
+		else{
+			this.responseTime += (long)(RTT_WEIGHT * (nanos - this.responseTime));
+		}
+	}
+	
+	/**
+	 * Note a channel that ended.
+	 *
+	 * @param nanos Time since the channel was registered.
+	 */
+	public synchronized void channelEnded(long nanos){
+		if(nanos > this.timeout){
+			this.timedOut();
+			
+			return;
+		}
+		
+		this.channelsEnded++;
+		this.failureRate -= FAILURE_WEIGHT * this.failureRate;
+	}
+	
+	/**
+	 * Note a channel that failed.
+	 */
+	public synchronized void channelFailed(){
+		this.channelErrors++;
+		this.failureRate += FAILURE_WEIGHT * (1.0 - this.failureRate);
+	}
+	
+	/**
+	 * Note a request on this connection that timed out. Counts as a failure.
+	 */
+	public synchronized void timedOut(){
+		this.timeouts++;
+		this.failureRate += FAILURE_WEIGHT * (1.0 - this.failureRate);
+	}
+	
+	/**
+	 * Set the time after which callers give up on a request.
+	 */
+	public synchronized void setTimeout(long timeout, TimeUnit unit){
+		this.timeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Check whether the session is authenticated on a live connection.
+	 */
+	public synchronized boolean isConnected(){
+		return this.connected;
+	}
+	
+	/**
+	 * Get the smoothed round trip time. A pong that is waiting for its
+	 * acknowledgement longer than that counts with its waiting time.
+	 *
+	 * @param unit The {@link TimeUnit} of the result.
+	 *
+	 * @return The round trip time or -1 if none was measured yet.
+	 */
+	public synchronized long getRoundTripTime(TimeUnit unit){
+		long rtt = this.roundTripTime;
+		
+		if(this.pongSent != 0){
+			rtt = Math.max(rtt, System.nanoTime() - this.pongSent);
+		}
+		
+		return (rtt < 0) ? -1 : unit.convert(rtt, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the mean deviation of the round trip time.
+	 */
+	public synchronized long getRoundTripDeviation(TimeUnit unit){
+		return unit.convert(this.roundTripDeviation, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the smoothed time from sending a channel request to its first packet.
+	 *
+	 * @return The response time or -1 if no channel received data yet.
+	 */
+	public synchronized long getResponseTime(TimeUnit unit){
+		return (this.responseTime < 0) ? -1 : unit.convert(this.responseTime, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the moving rate of failed channels and timeouts (0 to 1).
+	 */
+	public synchronized double getFailureRate(){
+		return this.failureRate;
+	}
+	
+	/**
+	 * Get the number of acknowledged pongs (round trip samples).
+	 */
+	public synchronized long getPongs(){
+		return this.pongs;
+	}
+	
+	/**
+	 * Get the number of channels that ended normally.
+	 */
+	public synchronized long getChannelsEnded(){
+		return this.channelsEnded;
+	}
+	
+	/**
+	 * Get the number of channels that failed.
+	 */
+	public synchronized long getChannelErrors(){
+		return this.channelErrors;
+	}
+	
+	/**
+	 * Get the number of requests that timed out.
+	 */
+	public synchronized long getTimeouts(){
+		return this.timeouts;
+	}
+	
+	/**
+	 * Get the number of times the connection was closed or lost.
+	 */
+	public synchronized long getDisconnects(){
+		return this.disconnects;
+	}
+	
+	/**
+	 * Get the health score of the connection: 0 if it isn't connected,
+	 * otherwise the share of working channels times a latency factor
+	 * that falls from 1 with the round trip or response time (whichever
+	 * is worse, 0.5 at 250 ms). Connections without samples score 1.
+	 *
+	 * @return A score between 0 (unusable) and 1 (healthy).
+	 */
+	public synchronized double getScore(){
+		if(!this.connected){
+			return 0.0;
+		}
+		
+		long latency = Math.max(
+			this.getRoundTripTime(TimeUnit.NANOSECONDS) + 4 * this.roundTripDeviation,
+			this.responseTime
+		);
+		
+		double score = 1.0 - this.failureRate;
+		
+		if(latency > 0){
+			score /= 1.0 + (double)latency / LATENCY_SCALE;
+		}
+		
+		return score;
+	}
+	
+	public synchronized String toString(){
+		return String.format(
+			"score %.2f, rtt %d ms, response %d ms, failures %.2f, errors %d, timeouts %d, disconnects %d",
+			this.getScore(), this.getRoundTripTime(TimeUnit.MILLISECONDS), this.getResponseTime(TimeUnit.MILLISECONDS),
+			this.failureRate, this.channelErrors, this.timeouts, this.disconnects
+		);
+	}
+}
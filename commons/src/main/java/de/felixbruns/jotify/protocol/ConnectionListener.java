@@ -0,0 +1,7 @@
+package de.felixbruns.jotify.protocol;
+
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+public interface ConnectionListener {
+	public void connectionClosed(Protocol protocol, ProtocolException cause);
+}
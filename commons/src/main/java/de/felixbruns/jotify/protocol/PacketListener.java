@@ -0,0 +1,13 @@
+package de.felixbruns.jotify.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives decrypted packets without copying them. The payload is a view
+ * of the receive buffer between its position and limit and is only valid
+ * for the duration of the call. Listeners that need the data later have
+ * to copy it.
+ */
+public interface PacketListener {
+	public void packetReceived(int command, ByteBuffer payload);
+}
@@ -9,23 +9,32 @@ import de.felixbruns.jotify.media.PlaylistContainer;
 import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
+import de.felixbruns.jotify.protocol.channel.ChannelRegistry;
+import de.felixbruns.jotify.protocol.channel.ChannelScheduler;
 import de.felixbruns.jotify.util.DNS;
 import de.felixbruns.jotify.util.Hex;
-import de.felixbruns.jotify.util.IntegerUtilities;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Protocol {
-    /* Socket connection to Spotify server. */
-    private SocketChannel channel;
+    /* Connect timeout per server and delay before racing the next server (milliseconds). */
+    private static final long CONNECT_TIMEOUT = 1000;
+    private static final long CONNECT_STAGGER = 250;
+
+    /* Socket connection to Spotify server and whether the session on it is authenticated. */
+    private volatile SocketChannel channel;
+    private volatile boolean authenticated;
 
     /* Current server and port */
     private InetSocketAddress server;
@@ -33,65 +42,416 @@ public class Protocol {
     /* Spotify session of this protocol instance. */
     private Session session;
 
+    /* Open channels of this connection and the scheduler their requests go through. */
+    private ChannelRegistry channels;
+    private ChannelScheduler scheduler;
+
+    /* Traffic and channel metrics (shared by all connections). */
+    private ProtocolMetrics metrics;
+
+    /* Round trip time and failures of this connection. */
+    private ConnectionHealth health;
+
+    /* Idle time after which a channel in flight expires (nanoseconds, 0 for never). */
+    private volatile long channelTimeout;
+
+    /* Recorder of received packets, if enabled with the system property 'jotify.record'. */
+    private SessionRecorder recorder;
+
     /* Protocol listeners. */
     private List<CommandListener> listeners;
+    private List<PacketListener> packetListeners;
+
+    /* Connection listeners (only notified in non-blocking mode). */
+    private List<ConnectionListener> connectionListeners;
+
+    /* Read-ahead buffer, a view of it for listeners and state of a partially received packet. */
+    private ByteBuffer inputBuffer;
+    private ByteBuffer inputView;
+    private int inputCommand;
+    private int inputLength;
+
+    /*
+     * Output the socket didn't take right away, in order, and its size in bytes
+     * (non-blocking mode). The reactor writes it once the socket is writable.
+     */
+    private LinkedList<ByteBuffer> outputQueue;
+    private int outputSize;
+
+    /* Selection key of the reactor this connection is registered with. */
+    private SelectionKey selectionKey;
+
+    /* Reusable direct send buffers: header and payload, MAC (guarded by sendPacket lock). */
+    private ByteBuffer[] sendBuffers;
+
+    /* Payload of commands without payload. */
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+
+    /* Queued output above which senders other than the reactor wait for the socket. */
+    private static final int OUTPUT_LIMIT = 64 * 1024;
 
     /* Create a new protocol object. */
     public Protocol(Session session) {
         this.session = session;
+        this.authenticated = false;
+        this.channels = new ChannelRegistry(this);
+        this.scheduler = new ChannelScheduler(this);
+        this.metrics = ProtocolMetrics.getDefault();
+        this.health = new ConnectionHealth();
+        this.channelTimeout = TimeUnit.SECONDS.toNanos(Long.getLong("jotify.channel.timeout", 10));
+        this.health.setTimeout(this.channelTimeout, TimeUnit.NANOSECONDS);
+        this.recorder = null;
         this.listeners = new ArrayList<CommandListener>();
+        this.packetListeners = new ArrayList<PacketListener>();
+        this.connectionListeners = new ArrayList<ConnectionListener>();
+        this.inputBuffer = ByteBuffer.allocate(3 + 0xffff + 4); /* Room for a maximum size packet. */
+        this.inputView = this.inputBuffer.duplicate();
+        this.inputCommand = -1;
+        this.inputLength = 0;
+        this.outputQueue = new LinkedList<ByteBuffer>();
+        this.outputSize = 0;
+        this.selectionKey = null;
+        this.sendBuffers = new ByteBuffer[]{
+                ByteBuffer.allocateDirect(1024),
+                ByteBuffer.allocateDirect(4)
+        };
     }
 
-    /* Connect to one of the spotify servers. */
+    /*
+     * Connect to one of the spotify servers, or to the server given by the
+     * system property 'jotify.server' (host:port), e.g. a local stand-in.
+     */
     public void connect() throws ConnectionException {
-        /* Lookup servers via DNS SRV query. */
-        List<InetSocketAddress> servers = DNS.lookupSRV("_spotify-client._tcp.spotify.com");
+        List<InetSocketAddress> servers;
+        String address = System.getProperty("jotify.server");
 
-        /* Add fallback servers if others don't work. */
-        servers.add(new InetSocketAddress("ap.spotify.com", 4070));
-        servers.add(new InetSocketAddress("ap.spotify.com", 80));
-        servers.add(new InetSocketAddress("ap.spotify.com", 443));
+        /* Drop a previous connection (reconnect) and a packet partially received on it. */
+        this.authenticated = false;
+        this.health.disconnected();
+        this.close();
 
-        /* Try to connect to each server, stop trying when connected. */
-        for (InetSocketAddress server : servers) {
-            try {
-                /* Try to connect to current server with a timeout of 1 second. */
-                this.channel = SocketChannel.open();
-                this.channel.socket().connect(server, 1000);
+        this.inputBuffer.clear();
+        this.inputCommand = -1;
 
-                /* Save server for later use. */
-                this.server = server;
+        if (address != null) {
+            int colon = address.lastIndexOf(':');
 
-                break;
-            } catch (Exception e) {
-                System.err.println("Error connecting to '" + server + "': " + e.getMessage());
+            servers = new ArrayList<InetSocketAddress>();
+
+            if (colon < 0) {
+                servers.add(new InetSocketAddress(address, 4070));
+            } else {
+                servers.add(new InetSocketAddress(
+                        address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))
+                ));
             }
+        } else {
+            /* Lookup servers via DNS SRV query (cached). */
+            servers = DNS.lookupSRV("_spotify-client._tcp.spotify.com");
+
+            /* Add fallback servers if others don't work. */
+            servers.add(new InetSocketAddress("ap.spotify.com", 4070));
+            servers.add(new InetSocketAddress("ap.spotify.com", 80));
+            servers.add(new InetSocketAddress("ap.spotify.com", 443));
+        }
+
+        /* Race connections to the servers, keep the first one that connects. */
+        try {
+            this.channel = this.connectFirst(servers);
+        } catch (IOException e) {
+            throw new ConnectionException("Error connecting to any server!", e);
         }
 
         /* If connection was not established, return false. */
-        if (!this.channel.isConnected()) {
+        if (this.channel == null) {
             throw new ConnectionException("Error connecting to any server!");
         }
 
         System.out.format("Connected to '%s'\n", this.server);
+
+        /* Record this connection to a new file in the given directory. */
+        String directory = System.getProperty("jotify.record");
+
+        if (directory != null && this.recorder == null) {
+            try {
+                this.recorder = SessionRecorder.createIn(directory);
+
+                this.packetListeners.add(0, this.recorder);
+
+                System.out.format("Recording session to '%s'\n", this.recorder.getFile());
+            } catch (IOException e) {
+                System.err.println("Error creating session recording: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Connect to the first server that answers. A new attempt is started every
+     * CONNECT_STAGGER milliseconds (or as soon as one fails) while earlier attempts
+     * are still pending, so a dead server doesn't delay the login by a full timeout.
+     * Returns a connected channel in blocking mode or null if all attempts failed.
+     */
+    private SocketChannel connectFirst(List<InetSocketAddress> servers) throws IOException {
+        Selector selector = Selector.open();
+        SocketChannel connected = null;
+        long nextStart = System.currentTimeMillis();
+        int next = 0, pending = 0;
+
+        try {
+            while (connected == null) {
+                long now = System.currentTimeMillis();
+
+                /* Start next attempt. */
+                if (next < servers.size() && now >= nextStart) {
+                    InetSocketAddress server = servers.get(next++);
+                    SocketChannel channel = SocketChannel.open();
+
+                    try {
+                        channel.configureBlocking(false);
+
+                        if (channel.connect(server)) {
+                            this.server = server;
+                            connected = channel;
+
+                            break;
+                        }
+
+                        channel.register(selector, SelectionKey.OP_CONNECT, new ConnectAttempt(server, now + CONNECT_TIMEOUT));
+
+                        nextStart = now + CONNECT_STAGGER;
+                        pending++;
+                    } catch (Exception e) {
+                        System.err.println("Error connecting to '" + server + "': " + e.getMessage());
+
+                        channel.close();
+
+                        continue;
+                    }
+                }
+
+                /* All attempts failed. */
+                if (next >= servers.size() && pending == 0) {
+                    break;
+                }
+
+                /* Wait for a connection, the next attempt or the next timeout. */
+                long wait = (next < servers.size()) ? nextStart - now : CONNECT_TIMEOUT;
+
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        wait = Math.min(wait, ((ConnectAttempt) key.attachment()).deadline - now);
+                    }
+                }
+
+                selector.select(Math.max(wait, 1));
+
+                now = System.currentTimeMillis();
+
+                /* Check attempts that connected or failed. */
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext() && connected == null) {
+                    SelectionKey key = iterator.next();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    ConnectAttempt attempt = (ConnectAttempt) key.attachment();
+
+                    iterator.remove();
+
+                    try {
+                        if (channel.finishConnect()) {
+                            key.cancel();
+
+                            this.server = attempt.server;
+                            connected = channel;
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Error connecting to '" + attempt.server + "': " + e.getMessage());
+
+                        key.cancel();
+                        channel.close();
+
+                        /* Don't wait for the stagger delay, try the next server right away. */
+                        nextStart = now;
+                        pending--;
+                    }
+                }
+
+                /* Give up on attempts that timed out. */
+                for (SelectionKey key : selector.keys()) {
+                    ConnectAttempt attempt = (ConnectAttempt) key.attachment();
+
+                    if (key.isValid() && key.channel() != connected && now >= attempt.deadline) {
+                        System.err.println("Error connecting to '" + attempt.server + "': Connect timed out");
+
+                        key.cancel();
+                        key.channel().close();
+
+                        nextStart = now;
+                        pending--;
+                    }
+                }
+            }
+        } finally {
+            /* Close all attempts that lost the race. */
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() != connected) {
+                    key.channel().close();
+                }
+            }
+
+            selector.close();
+        }
+
+        /* Switch winner back to blocking mode (it's no longer registered with a selector). */
+        if (connected != null) {
+            connected.configureBlocking(true);
+        }
+
+        return connected;
+    }
+
+    /* A pending connection attempt. */
+    private static class ConnectAttempt {
+        private InetSocketAddress server;
+        private long deadline;
+
+        private ConnectAttempt(InetSocketAddress server, long deadline) {
+            this.server = server;
+            this.deadline = deadline;
+        }
+    }
+
+    /* Close the socket of a previous connection, if any, and drop its queued output. */
+    private void close() {
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+
+        this.dropOutput();
+    }
+
+    /* Drop queued output of a closed socket and wake up senders waiting for it. */
+    private synchronized void dropOutput() {
+        this.outputQueue.clear();
+        this.outputSize = 0;
+        this.selectionKey = null;
+
+        this.notifyAll();
+    }
+
+    /* Called by the session once it's authenticated, channel requests can be sent from now on. */
+    void authenticated() {
+        this.authenticated = true;
+        this.health.connected();
     }
 
     /* Disconnect from server */
     public void disconnect() throws ConnectionException {
+        this.authenticated = false;
+        this.health.disconnected();
+
         try {
             /* Close connection to server. */
             this.channel.close();
 
+            /* Finish recording. */
+            if (this.recorder != null) {
+                this.recorder.close();
+                this.packetListeners.remove(this.recorder);
+
+                this.recorder = null;
+            }
+
+            /* Drop output still queued for the reactor. */
+            this.dropOutput();
+
             System.out.format("Disconnected from '%s'\n", this.server);
         } catch (IOException e) {
             throw new ConnectionException("Error disconnecting from '" + this.server + "'!", e);
         }
     }
 
+    /* Get the open channels of this connection. */
+    public ChannelRegistry getChannelRegistry() {
+        return this.channels;
+    }
+
+    /* Get the scheduler that decides when channel requests are sent. */
+    public ChannelScheduler getChannelScheduler() {
+        return this.scheduler;
+    }
+
+    /* Get the metrics this connection records to. */
+    public ProtocolMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /* Get the round trip time, failures and health score of this connection. */
+    public ConnectionHealth getHealth() {
+        return this.health;
+    }
+
+    /*
+     * Set the time after which callers give up on a request. Channels in flight
+     * that don't receive a packet for that long expire (see ChannelTimer).
+     * Defaults to the system property 'jotify.channel.timeout' (seconds, 10).
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.channelTimeout = unit.toNanos(timeout);
+        this.health.setTimeout(timeout, unit);
+    }
+
+    /* Get the idle time after which a channel in flight expires, 0 if channels never expire. */
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(this.channelTimeout, TimeUnit.NANOSECONDS);
+    }
+
     public void addListener(CommandListener listener) {
         this.listeners.add(listener);
     }
 
+    public void addPacketListener(PacketListener listener) {
+        this.packetListeners.add(listener);
+    }
+
+    public void addConnectionListener(ConnectionListener listener) {
+        this.connectionListeners.add(listener);
+    }
+
+    /* Get socket channel (used by Reactor). */
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /* Called by the Reactor once registered, asks for writability if output is queued already. */
+    synchronized void registered(SelectionKey key) {
+        this.selectionKey = key;
+
+        if (!this.outputQueue.isEmpty()) {
+            this.requestWrite();
+        }
+    }
+
+    /* Switch to non-blocking mode. Must be called after authentication. */
+    void configureNonBlocking() throws ConnectionException {
+        try {
+            this.channel.configureBlocking(false);
+        } catch (IOException e) {
+            throw new ConnectionException("Error switching to non-blocking mode!", e);
+        }
+    }
+
+    /* Notify connection listeners that the connection was lost (non-blocking mode). */
+    void fireConnectionClosed(ProtocolException cause) {
+        for (ConnectionListener listener : this.connectionListeners) {
+            listener.connectionClosed(this, cause);
+        }
+    }
+
     /* Send initial packet (key exchange). */
     public void sendInitialPacket() throws ProtocolException {
         ByteBuffer buffer = ByteBuffer.allocate(
@@ -378,101 +738,174 @@ public class Protocol {
         }
     }
 
-    /* Send command with payload (will be encrypted with stream cipher). */
+    /*
+     * Send command with payload (will be encrypted with stream cipher).
+     * Reuses the send buffers of this connection, so no garbage is created.
+     */
     public synchronized void sendPacket(int command, ByteBuffer payload) throws ProtocolException {
-        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + payload.remaining());
+        ByteBuffer packet = this.sendBuffers[0];
+        ByteBuffer mac = this.sendBuffers[1];
+        int length = payload.remaining();
+
+        /* Also keeps packets out of the handshake while reconnecting. */
+        if (this.channel == null || !this.authenticated) {
+            throw new ProtocolException("Not connected!");
+        }
 
-        /* Set IV. */
-        this.session.shannonSend.nonce(IntegerUtilities.toBytes(this.session.keySendIv));
+        /* Grow send buffer if needed (payload length is at most 0xffff). */
+        if (packet.capacity() < 3 + length) {
+            packet = this.sendBuffers[0] = ByteBuffer.allocateDirect(3 + length);
+        }
 
         /* Build packet. */
-        buffer.put((byte) command);
-        buffer.putShort((short) payload.remaining());
-        buffer.put(payload);
+        packet.clear();
+        packet.put((byte) command);
+        packet.putShort((short) length);
+        packet.put(payload);
+        packet.flip();
+
+        /* Set IV, encrypt packet in place and get MAC. */
+        this.session.shannonSend.nonce(this.session.keySendIv);
+        this.session.shannonSend.encrypt(packet);
 
-        byte[] bytes = buffer.array();
-        byte[] mac = new byte[4];
+        mac.clear();
 
-        /* Encrypt packet and get MAC. */
-        this.session.shannonSend.encrypt(bytes);
         this.session.shannonSend.finish(mac);
 
-        buffer = ByteBuffer.allocate(buffer.position() + 4);
-        buffer.put(bytes);
-        buffer.put(mac);
-        buffer.flip();
+        mac.flip();
 
-        /* Send encrypted packet. */
-        this.send(buffer);
+        /* Send header, payload and MAC with a single gathering write. */
+        this.send(this.sendBuffers);
 
         /* Increment IV. */
         this.session.keySendIv++;
+
+        this.metrics.packetSent(command, 3 + length + 4);
+
+        /* Wait if the socket falls behind, outside of building the packet. */
+        this.awaitOutput();
     }
 
     /* Send a command without payload. */
     public void sendPacket(int command) throws ProtocolException {
-        this.sendPacket(command, ByteBuffer.allocate(0));
+        this.sendPacket(command, EMPTY_PAYLOAD);
     }
 
-    /* Receive a packet (will be decrypted with stream cipher). */
+    /*
+     * Receive packets (will be decrypted with stream cipher). Blocks until at
+     * least one packet was received and dispatches all complete packets that
+     * arrived with it.
+     */
     public void receivePacket() throws ProtocolException {
-        byte[] header = new byte[3];
-        int command, payloadLength, headerLength = 3, macLength = 4;
+        while (!this.receivePackets()) ;
+    }
+
+    /*
+     * Read as many bytes as are available into the read-ahead buffer and dispatch
+     * all complete packets. Incomplete packets are kept until the rest arrives.
+     * Doesn't block in non-blocking mode. Returns true if a packet was dispatched.
+     */
+    boolean receivePackets() throws ProtocolException {
+        try {
+            if (this.channel.read(this.inputBuffer) < 0) {
+                throw new ProtocolException("Connection closed by server!");
+            }
+        } catch (IOException e) {
+            throw new ProtocolException("Error reading data from socket!", e);
+        }
+
+        this.inputBuffer.flip();
 
-        /* Read header. */
-        if (this.receive(header, headerLength) != headerLength) {
-            throw new ProtocolException("Failed to read header.");
+        try {
+            return this.decodePackets();
+        } finally {
+            this.inputBuffer.compact();
         }
+    }
 
-        /* Set IV. */
-        this.session.shannonRecv.nonce(IntegerUtilities.toBytes(this.session.keyRecvIv));
+    /*
+     * Decrypt and dispatch packets from a buffer as if they were read from the
+     * socket (used by SessionReplayer). Returns true if a packet was dispatched.
+     */
+    boolean receivePackets(ByteBuffer bytes) {
+        this.inputBuffer.put(bytes);
+        this.inputBuffer.flip();
 
-        /* Decrypt header. */
-        this.session.shannonRecv.decrypt(header);
+        try {
+            return this.decodePackets();
+        } finally {
+            this.inputBuffer.compact();
+        }
+    }
 
-        /* Get command and payload length from header. */
-        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    /* Decrypt and dispatch all complete packets in the read-ahead buffer. */
+    private boolean decodePackets() {
+        byte[] bytes = this.inputBuffer.array();
+        int command, payloadLength, position, macLength = 4;
+        boolean received = false;
 
-        command = headerBuffer.get() & 0xff;
-        payloadLength = headerBuffer.getShort() & 0xffff;
+        while (true) {
+            position = this.inputBuffer.position();
 
-        /* Allocate buffer. Account for MAC. */
-        byte[] bytes = new byte[payloadLength + macLength];
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            /* Decrypt header in place if we don't have one yet. */
+            if (this.inputCommand < 0) {
+                if (this.inputBuffer.remaining() < 3) {
+                    break;
+                }
 
-        /* Limit buffer to payload length, so we can read the payload. */
-        buffer.limit(payloadLength);
+                /* Set IV and decrypt header. */
+                this.session.shannonRecv.nonce(this.session.keyRecvIv);
+                this.session.shannonRecv.decrypt(bytes, position, 3);
 
-        try {
-            for (int n = payloadLength, r; n > 0 && (r = this.channel.read(buffer)) > 0; n -= r) ;
-        } catch (IOException e) {
-            throw new ProtocolException("Failed to read payload!", e);
-        }
+                /* Get command and payload length from header. */
+                this.inputCommand = bytes[position] & 0xff;
+                this.inputLength = ((bytes[position + 1] & 0xff) << 8) | (bytes[position + 2] & 0xff);
 
-        /* Extend it again to payload and mac length. */
-        buffer.limit(payloadLength + macLength);
+                this.inputBuffer.position(position += 3);
+            }
 
-        try {
-            for (int n = macLength, r; n > 0 && (r = this.channel.read(buffer)) > 0; n -= r) ;
-        } catch (IOException e) {
-            throw new ProtocolException("Failed to read MAC!", e);
+            /* Wait for complete payload and MAC. */
+            if (this.inputBuffer.remaining() < this.inputLength + macLength) {
+                break;
+            }
+
+            command = this.inputCommand;
+            payloadLength = this.inputLength;
+
+            /* Decrypt payload in place (throw away MAC). */
+            this.session.shannonRecv.decrypt(bytes, position, payloadLength);
+
+            /* Increment IV, reset packet state and skip packet. */
+            this.session.keyRecvIv++;
+            this.inputCommand = -1;
+            this.inputBuffer.position(position + payloadLength + macLength);
+
+            received = true;
+
+            this.metrics.packetReceived(command, 3 + payloadLength + macLength);
+
+            /* Fire events. */
+            this.firePacketReceived(command, bytes, position, payloadLength);
         }
 
-        /* Decrypt payload. */
-        this.session.shannonRecv.decrypt(bytes);
+        return received;
+    }
 
-        /* Get payload bytes from buffer (throw away MAC). */
-        byte[] payload = new byte[payloadLength];
+    /* Pass a view of the payload to packet listeners and a single copy to command listeners. */
+    private void firePacketReceived(int command, byte[] bytes, int offset, int length) {
+        for (PacketListener listener : this.packetListeners) {
+            this.inputView.limit(offset + length);
+            this.inputView.position(offset);
 
-        buffer.flip();
-        buffer.get(payload);
+            listener.packetReceived(command, this.inputView);
+        }
 
-        /* Increment IV. */
-        this.session.keyRecvIv++;
+        if (!this.listeners.isEmpty()) {
+            byte[] payload = Arrays.copyOfRange(bytes, offset, offset + length);
 
-        /* Fire events. */
-        for (CommandListener listener : this.listeners) {
-            listener.commandReceived(command, payload);
+            for (CommandListener listener : this.listeners) {
+                listener.commandReceived(command, payload);
+            }
         }
     }
 
@@ -487,25 +920,27 @@ public class Protocol {
     }
 
     /* Request ads. The response is GZIP compressed XML. */
-    public void sendAdRequest(ChannelListener listener, int type) throws ProtocolException {
+    public Channel sendAdRequest(ChannelListener listener, int type) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Ad-Channel", Channel.Type.TYPE_AD, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 1);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id and ad type. */
         buffer.putShort((short) channel.getId());
         buffer.put((byte) type); /* 0: audio, 1: banner, 2: fullscreen-banner, 3: unknown.  */
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_REQUESTAD, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_REQUESTAD, buffer);
+        return channel;
     }
 
     /* Get a toplist. The response comes as GZIP compressed XML. */
-    public void sendToplistRequest(ChannelListener listener, Map<String, String> params) throws ProtocolException {
+    public Channel sendToplistRequest(ChannelListener listener, Map<String, String> params) throws ProtocolException {
         /* Check if type parameter is present. */
         if (!params.containsKey("type")) {
             throw new IllegalArgumentException("Parameter 'type' not given!");
@@ -532,6 +967,9 @@ public class Protocol {
         Channel channel = new Channel("Toplist-Channel", Channel.Type.TYPE_TOPLIST, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 2 + parametersLength);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, some values, query length and query. */
         buffer.putShort((short) channel.getId());
         buffer.putInt(0x00000000);
@@ -548,15 +986,14 @@ public class Protocol {
 
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_GETTOPLIST, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_GETTOPLIST, buffer);
+        return channel;
     }
 
     /* Request image using a 20 byte id. The response is a JPG. */
-    public void sendImageRequest(ChannelListener listener, String id) throws ProtocolException {
+    public Channel sendImageRequest(ChannelListener listener, String id) throws ProtocolException {
         System.out.println("image id = " + id);
         /* Create channel and buffer. */
         Channel channel = new Channel("Image-Channel", Channel.Type.TYPE_IMAGE, listener);
@@ -567,21 +1004,23 @@ public class Protocol {
             throw new IllegalArgumentException("Image id needs to have a length of 40.");
         }
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id and image hash. */
         buffer.putShort((short) channel.getId());
         buffer.putShort((short) 0x0000);
         buffer.put(Hex.toBytes(id));
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_IMAGE, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_IMAGE, buffer);
+        return channel;
     }
 
     /* Search music. The response comes as GZIP compressed XML. */
-    public void sendSearchQuery(ChannelListener listener, String query, int offset, int limit) throws ProtocolException {
+    public Channel sendSearchQuery(ChannelListener listener, String query, int offset, int limit) throws ProtocolException {
         /* Create channel and buffer. */
         byte[] queryBytes = query.getBytes(Charset.forName("UTF-8"));
         Channel channel = new Channel("Search-Channel", Channel.Type.TYPE_SEARCH, listener);
@@ -594,6 +1033,9 @@ public class Protocol {
             throw new IllegalArgumentException("Limit needs to be either -1 for no limit or > 0");
         }
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, some unknown values, query length and query. */
         buffer.putShort((short) channel.getId());
         buffer.putShort((short) 0x0000); /* Unknown. */
@@ -608,24 +1050,26 @@ public class Protocol {
         buffer.put(queryBytes);
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_SEARCH, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_SEARCH, buffer);
+        return channel;
     }
 
     /* Search music. The response comes as GZIP compressed XML. */
-    public void sendSearchQuery(ChannelListener listener, String query) throws ProtocolException {
-        this.sendSearchQuery(listener, query, 0, -1);
+    public Channel sendSearchQuery(ChannelListener listener, String query) throws ProtocolException {
+        return this.sendSearchQuery(listener, query, 0, -1);
     }
 
     /* Request AES key for a track. */
-    public void sendAesKeyRequest(ChannelListener listener, Track track, File file) throws ProtocolException {
+    public Channel sendAesKeyRequest(ChannelListener listener, Track track, File file) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("AES-Key-Channel", Channel.Type.TYPE_AESKEY, listener);
         ByteBuffer buffer = ByteBuffer.allocate(20 + 16 + 2 + 2 + 2);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Request the AES key for this file by sending the file id and track id. */
         buffer.put(Hex.toBytes(file.getId())); /* 20 bytes */
         buffer.put(Hex.toBytes(track.getId())); /* 16 bytes */
@@ -634,11 +1078,10 @@ public class Protocol {
         buffer.putShort((short) 0x0000);
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_REQKEY, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_REQKEY, buffer);
+        return channel;
     }
 
     /* Notify server we're going to play. */
@@ -661,11 +1104,19 @@ public class Protocol {
       * with AES key provided and a static IV, incremented for
       * each 16 byte data processed.
       */
-    public void sendSubstreamRequest(ChannelListener listener, Track track, File file, int offset, int length) throws ProtocolException {
+    public Channel sendSubstreamRequest(ChannelListener listener, Track track, File file, int offset, int length) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Substream-Channel", Channel.Type.TYPE_SUBSTREAM, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 2 + 2 + 2 + 2 + 2 + 4 + 20 + 4 + 4);
 
+        /* Check offset and length. */
+        if (offset % 4096 != 0 || length % 4096 != 0) {
+            throw new IllegalArgumentException("Offset and length need to be a multiple of 4096.");
+        }
+
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id. */
         buffer.putShort((short) channel.getId());
 
@@ -683,10 +1134,6 @@ public class Protocol {
         /* 20 bytes file id. */
         buffer.put(Hex.toBytes(file.getId()));
 
-        if (offset % 4096 != 0 || length % 4096 != 0) {
-            throw new IllegalArgumentException("Offset and length need to be a multiple of 4096.");
-        }
-
         offset >>= 2;
         length >>= 2;
 
@@ -695,20 +1142,20 @@ public class Protocol {
         buffer.putInt(offset + length);
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_GETSUBSTREAM, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_GETSUBSTREAM, buffer);
+        return channel;
     }
 
-    /* TODO: untested. */
+    /* Abort a channel. Use Channel.cancel(), which also releases the channel id. */
     public void sendChannelAbort(int id) throws ProtocolException {
         /* Create channel and buffer. */
         ByteBuffer buffer = ByteBuffer.allocate(2);
 
         /* Append channel id. */
         buffer.putShort((short) id);
+        buffer.flip();
 
         /* Send packet. */
         this.sendPacket(Command.COMMAND_CHANNELABRT, buffer);
@@ -718,7 +1165,7 @@ public class Protocol {
       * Get metadata for an artist (type = 1), album (type = 2) or a
       * list of tracks (type = 3). The response comes as compressed XML.
       */
-    public void sendBrowseRequest(ChannelListener listener, int type, Collection<String> ids) throws ProtocolException {
+    public Channel sendBrowseRequest(ChannelListener listener, int type, Collection<String> ids) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 1 + ids.size() * 16 + ((type == 1 || type == 2) ? 4 : 0));
@@ -730,6 +1177,16 @@ public class Protocol {
             throw new IllegalArgumentException("Types 1 and 2 only accept a single id.");
         }
 
+        /* Check length of ids. */
+        for (String id : ids) {
+            if (id.length() != 32) {
+                throw new IllegalArgumentException("Id needs to have a length of 32.");
+            }
+        }
+
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id and type. */
         buffer.putShort((short) channel.getId());
         buffer.putShort((short) 0x0000); /* Unknown. */
@@ -737,11 +1194,6 @@ public class Protocol {
 
         /* Append (16 byte binary, 32 byte hex string) ids. */
         for (String id : ids) {
-            /* Check length of id. */
-            if (id.length() != 32) {
-                throw new IllegalArgumentException("Id needs to have a length of 32.");
-            }
-
             buffer.put(Hex.toBytes(id));
         }
 
@@ -752,24 +1204,23 @@ public class Protocol {
 
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_BROWSE, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_BROWSE, buffer);
+        return channel;
     }
 
     /* Browse with only one id. */
-    public void sendBrowseRequest(ChannelListener listener, int type, String id) throws ProtocolException {
+    public Channel sendBrowseRequest(ChannelListener listener, int type, String id) throws ProtocolException {
         ArrayList<String> list = new ArrayList<String>();
 
         list.add(id);
 
-        this.sendBrowseRequest(listener, type, list);
+        return this.sendBrowseRequest(listener, type, list);
     }
 
     /* Request replacements for a list of tracks. The response comes as compressed XML. */
-    public void sendReplacementRequest(ChannelListener listener, Collection<Track> tracks) throws ProtocolException {
+    public Channel sendReplacementRequest(ChannelListener listener, Collection<Track> tracks) throws ProtocolException {
         /* Calculate data length. */
         int dataLength = 0;
 
@@ -797,6 +1248,9 @@ public class Protocol {
         Channel channel = new Channel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 1 + dataLength);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id and type. */
         buffer.putShort((short) channel.getId());
         buffer.putShort((short) 0x0000); /* Unknown. */
@@ -831,15 +1285,14 @@ public class Protocol {
 
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_BROWSE, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_BROWSE, buffer);
+        return channel;
     }
 
     /* Request playlist details. The response comes as plain XML. */
-    public void sendPlaylistRequest(ChannelListener listener, String id) throws ProtocolException {
+    public Channel sendPlaylistRequest(ChannelListener listener, String id) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1);
@@ -849,6 +1302,9 @@ public class Protocol {
             throw new IllegalArgumentException("Playlist id needs to have a length of 32.");
         }
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, playlist id and some bytes... */
         buffer.putShort((short) channel.getId());
 
@@ -873,19 +1329,21 @@ public class Protocol {
         buffer.put((byte) 0x00); /* Collaborative. */
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_GETPLAYLIST, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_GETPLAYLIST, buffer);
+        return channel;
     }
 
     /* Change playlist container. The response comes as plain XML. */
-    public void sendChangePlaylistContainer(ChannelListener listener, PlaylistContainer playlistContainer, String xml) throws ProtocolException {
+    public Channel sendChangePlaylistContainer(ChannelListener listener, PlaylistContainer playlistContainer, String xml) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Change-Playlist-Container-Channel", Channel.Type.TYPE_PLAYLIST, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, playlist id and some bytes... */
         buffer.putShort((short) channel.getId());
         buffer.put(Hex.toBytes("00000000000000000000000000000000")); /* 16 bytes */
@@ -898,19 +1356,21 @@ public class Protocol {
         buffer.put(xml.getBytes());
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_CHANGEPLAYLIST, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+        return channel;
     }
 
     /* Change playlist. The response comes as plain XML. */
-    public void sendChangePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
+    public Channel sendChangePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, playlist id and some bytes... */
         buffer.putShort((short) channel.getId());
         buffer.put(Hex.toBytes(playlist.getId())); /* 16 bytes */
@@ -923,19 +1383,21 @@ public class Protocol {
         buffer.put(xml.getBytes());
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_CHANGEPLAYLIST, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+        return channel;
     }
 
     /* Create playlist. The response comes as plain XML. */
-    public void sendCreatePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
+    public Channel sendCreatePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
         /* Create channel and buffer. */
         Channel channel = new Channel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
         ByteBuffer buffer = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 
+        /* Register channel to get an id. */
+        this.channels.register(channel);
+
         /* Append channel id, playlist id and some bytes... */
         buffer.putShort((short) channel.getId());
         buffer.put(Hex.toBytes(playlist.getId())); /* 16 bytes */
@@ -948,32 +1410,172 @@ public class Protocol {
         buffer.put(xml.getBytes());
         buffer.flip();
 
-        /* Register channel. */
-        Channel.register(channel);
+        /* Send packet, release channel if that fails. */
+        this.sendChannelRequest(channel, Command.COMMAND_CHANGEPLAYLIST, buffer);
 
-        /* Send packet. */
-        this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+        return channel;
     }
 
-    /* Ping reply (pong). */
+    /* Ping reply (pong) without timestamp. */
     public void sendPong() throws ProtocolException {
+        this.sendPong(0);
+    }
+
+    /* Send pong packet echoing the timestamp of a ping, the round trip ends with the server's pong ack. */
+    public void sendPong(int timestamp) throws ProtocolException {
         ByteBuffer buffer = ByteBuffer.allocate(4);
 
-        /* TODO: Append timestamp? */
-        buffer.putInt(0x00000000);
+        buffer.putInt(timestamp);
         buffer.flip();
 
         /* Send packet. */
         this.sendPacket(Command.COMMAND_PONG, buffer);
+
+        this.health.pongSent();
     }
 
-    /* Send bytes. */
+    /*
+      * Send (or queue, see ChannelScheduler) a request for a registered
+      * channel. Releases the channel id if sending fails.
+      */
+    private void sendChannelRequest(Channel channel, int command, ByteBuffer buffer) throws ProtocolException {
+        try {
+            this.scheduler.schedule(channel, command, buffer);
+        } catch (ProtocolException e) {
+            this.channels.unregister(channel.getId());
+
+            throw e;
+        }
+    }
+
+    /* Send bytes (handshake, blocking mode). */
     private void send(ByteBuffer buffer) throws ProtocolException {
         try {
-            this.channel.write(buffer);
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new ProtocolException("Error writing data to socket!", e);
+        }
+    }
+
+    /*
+     * Send bytes from multiple buffers (gathering write). In non-blocking mode,
+     * whatever the socket doesn't take right away is copied to the output queue
+     * and written by the reactor, so a full socket never blocks the reactor thread.
+     */
+    private void send(ByteBuffer[] buffers) throws ProtocolException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        int remaining = 0;
+
+        try {
+            if (this.channel.isBlocking()) {
+                while (last.hasRemaining()) {
+                    this.channel.write(buffers);
+                }
+
+                return;
+            }
+
+            /* Keep order, don't overtake output that is queued already. */
+            if (this.outputQueue.isEmpty()) {
+                this.channel.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new ProtocolException("Error writing data to socket!", e);
+        }
+
+        if (!last.hasRemaining()) {
+            return;
+        }
+
+        /* Queue the rest in one buffer, the send buffers are reused. */
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        ByteBuffer output = ByteBuffer.allocate(remaining);
+
+        for (ByteBuffer buffer : buffers) {
+            output.put(buffer);
+        }
+
+        output.flip();
+
+        this.outputQueue.add(output);
+        this.outputSize += remaining;
+
+        this.requestWrite();
+    }
+
+    /*
+     * Write queued output, called by the Reactor when the socket is writable.
+     * Stops asking for writability once the queue is empty.
+     */
+    synchronized void flushOutput() throws ProtocolException {
+        try {
+            while (!this.outputQueue.isEmpty()) {
+                ByteBuffer output = this.outputQueue.getFirst();
+
+                this.outputSize -= this.channel.write(output);
+
+                if (output.hasRemaining()) {
+                    break;
+                }
+
+                this.outputQueue.removeFirst();
+            }
         } catch (IOException e) {
             throw new ProtocolException("Error writing data to socket!", e);
         }
+
+        if (this.outputQueue.isEmpty() && this.selectionKey != null && this.selectionKey.isValid()) {
+            this.selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        this.notifyAll();
+    }
+
+    /* Ask the reactor to write queued output once the socket is writable. */
+    private void requestWrite() {
+        SelectionKey key = this.selectionKey;
+
+        /* Not registered yet, registered() asks once it is. */
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        /* Let the reactor pick up the new interest set if it's waiting in select. */
+        if (!Reactor.isReactorThread()) {
+            key.selector().wakeup();
+        }
+    }
+
+    /*
+     * Wait while more than OUTPUT_LIMIT bytes are queued, so threads sending lots of
+     * requests are slowed down to what the socket takes. Reactor threads never wait,
+     * their output is queued and they go on with the other connections.
+     */
+    private void awaitOutput() {
+        SocketChannel channel = this.channel;
+
+        if (Reactor.isReactorThread()) {
+            return;
+        }
+
+        /* Give up once the socket was closed or replaced (reconnect). */
+        while (this.outputSize > OUTPUT_LIMIT && this.channel == channel && channel.isOpen()) {
+            try {
+                this.wait(1000);
+            } catch (InterruptedException e) {
+                /* The packet is queued already, just stop waiting. */
+                Thread.currentThread().interrupt();
+
+                return;
+            }
+        }
     }
 
     /* Receive a single byte. */
@@ -0,0 +1,319 @@
+package de.felixbruns.jotify.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.felixbruns.jotify.protocol.channel.Channel;
+
+/**
+ * Traffic and latency metrics of all {@link Protocol} instances of this VM:
+ * packets and bytes per command in both directions, open channels and
+ * time to first packet and duration per {@link Channel.Type}.
+ *
+ * Everything is recorded with atomic counters, there are no locks on the
+ * packet path, so the metrics are always on. They can be pulled with the
+ * getters of this class and {@link #getChannelMetrics(Channel.Type)}, and
+ * are published as MXBeans in the {@code de.felixbruns.jotify} domain
+ * (unless the system property {@code jotify.metrics.jmx} is false).
+ */
+public class ProtocolMetrics implements ProtocolMetricsMXBean {
+	/* JMX domain of the metrics MXBeans. */
+	public static final String DOMAIN = "de.felixbruns.jotify";
+	
+	/* Command names by command byte, for reporting. */
+	private static final String[] COMMAND_NAMES = commandNames();
+	
+	/* Metrics shared by all connections. */
+	private static final ProtocolMetrics DEFAULT = new ProtocolMetrics();
+	
+	static {
+		if(!"false".equals(System.getProperty("jotify.metrics.jmx"))){
+			DEFAULT.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+		}
+	}
+	
+	/* Packets and bytes (including header and MAC) per command. */
+	private AtomicLongArray packetsReceived;
+	private AtomicLongArray packetsSent;
+	private AtomicLongArray bytesReceived;
+	private AtomicLongArray bytesSent;
+	
+	/* Channel metrics indexed by channel type. */
+	private ChannelMetrics[] channels;
+	
+	/**
+	 * Create new, empty metrics. Usually the shared
+	 * instance returned by {@link #getDefault()} is used.
+	 */
+	public ProtocolMetrics(){
+		this.packetsReceived = new AtomicLongArray(256);
+		this.packetsSent     = new AtomicLongArray(256);
+		this.bytesReceived   = new AtomicLongArray(256);
+		this.bytesSent       = new AtomicLongArray(256);
+		this.channels        = new ChannelMetrics[Channel.Type.values().length];
+		
+		for(Channel.Type type : Channel.Type.values()){
+			this.channels[type.ordinal()] = new ChannelMetrics(type);
+		}
+	}
+	
+	/**
+	 * Get the metrics shared by all connections.
+	 *
+	 * @return The default {@link ProtocolMetrics} instance.
+	 */
+	public static ProtocolMetrics getDefault(){
+		return DEFAULT;
+	}
+	
+	/**
+	 * Register these metrics and the channel metrics of each type as MXBeans.
+	 * Failures are reported on stderr and otherwise ignored.
+	 *
+	 * @param server The {@link MBeanServer} to register with.
+	 */
+	public void registerMBeans(MBeanServer server){
+		try{
+			server.registerMBean(this, new ObjectName(DOMAIN + ":type=ProtocolMetrics"));
+			
+			for(ChannelMetrics metrics : this.channels){
+				server.registerMBean(metrics, new ObjectName(
+					DOMAIN + ":type=ChannelMetrics,name=" + metrics.getType()
+				));
+			}
+		}
+		catch(JMException e){
+			System.err.println("Couldn't register protocol metrics: " + e.getMessage());
+		}
+		catch(SecurityException e){
+			System.err.println("Couldn't register protocol metrics: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Record a received packet.
+	 *
+	 * @param command The command byte.
+	 * @param length  Length of the packet on the wire.
+	 */
+	public void packetReceived(int command, int length){
+		this.packetsReceived.incrementAndGet(command & 0xff);
+		this.bytesReceived.addAndGet(command & 0xff, length);
+	}
+	
+	/**
+	 * Record a sent packet.
+	 *
+	 * @param command The command byte.
+	 * @param length  Length of the packet on the wire.
+	 */
+	public void packetSent(int command, int length){
+		this.packetsSent.incrementAndGet(command & 0xff);
+		this.bytesSent.addAndGet(command & 0xff, length);
+	}
+	
+	/**
+	 * Record a registered channel.
+	 *
+	 * @param type The {@link Channel.Type} of the channel.
+	 */
+	public void channelOpened(Channel.Type type){
+		this.channels[type.ordinal()].opened();
+	}
+	
+	/**
+	 * Record the time to the first packet of a channel.
+	 *
+	 * @param type  The {@link Channel.Type} of the channel.
+	 * @param nanos Nanoseconds since the channel was registered.
+	 */
+	public void channelFirstPacket(Channel.Type type, long nanos){
+		this.channels[type.ordinal()].firstPacket(nanos);
+	}
+	
+	/**
+	 * Record a channel that ended normally.
+	 *
+	 * @param type  The {@link Channel.Type} of the channel.
+	 * @param nanos Nanoseconds since the channel was registered.
+	 */
+	public void channelEnded(Channel.Type type, long nanos){
+		this.channels[type.ordinal()].ended(nanos);
+	}
+	
+	/**
+	 * Record a channel that failed or whose request couldn't be sent.
+	 *
+	 * @param type The {@link Channel.Type} of the channel.
+	 */
+	public void channelFailed(Channel.Type type){
+		this.channels[type.ordinal()].failed();
+	}
+	
+	/**
+	 * Record a cancelled channel.
+	 *
+	 * @param type The {@link Channel.Type} of the channel.
+	 */
+	public void channelCancelled(Channel.Type type){
+		this.channels[type.ordinal()].cancelled();
+	}
+	
+	/**
+	 * Get the metrics of a channel type.
+	 *
+	 * @param type The {@link Channel.Type}.
+	 *
+	 * @return The {@link ChannelMetrics} of that type.
+	 */
+	public ChannelMetrics getChannelMetrics(Channel.Type type){
+		return this.channels[type.ordinal()];
+	}
+	
+	/**
+	 * Get the name of a command for reporting.
+	 *
+	 * @param command The command byte.
+	 *
+	 * @return The name of the command in {@link Command} or its hex value.
+	 */
+	public static String getCommandName(int command){
+		return COMMAND_NAMES[command & 0xff];
+	}
+	
+	/**
+	 * Get the number of packets received with a command.
+	 */
+	public long getPacketsReceived(int command){
+		return this.packetsReceived.get(command & 0xff);
+	}
+	
+	/**
+	 * Get the number of packets sent with a command.
+	 */
+	public long getPacketsSent(int command){
+		return this.packetsSent.get(command & 0xff);
+	}
+	
+	/**
+	 * Get the number of bytes received in packets with a command.
+	 */
+	public long getBytesReceived(int command){
+		return this.bytesReceived.get(command & 0xff);
+	}
+	
+	/**
+	 * Get the number of bytes sent in packets with a command.
+	 */
+	public long getBytesSent(int command){
+		return this.bytesSent.get(command & 0xff);
+	}
+	
+	public long getPacketsReceived(){
+		return sum(this.packetsReceived);
+	}
+	
+	public long getPacketsSent(){
+		return sum(this.packetsSent);
+	}
+	
+	public long getBytesReceived(){
+		return sum(this.bytesReceived);
+	}
+	
+	public long getBytesSent(){
+		return sum(this.bytesSent);
+	}
+	
+	public Map<String, Long> getPacketsReceivedByCommand(){
+		return byCommand(this.packetsReceived);
+	}
+	
+	public Map<String, Long> getPacketsSentByCommand(){
+		return byCommand(this.packetsSent);
+	}
+	
+	public Map<String, Long> getBytesReceivedByCommand(){
+		return byCommand(this.bytesReceived);
+	}
+	
+	public Map<String, Long> getBytesSentByCommand(){
+		return byCommand(this.bytesSent);
+	}
+	
+	public int getOpenChannels(){
+		int open = 0;
+		
+		for(ChannelMetrics metrics : this.channels){
+			open += metrics.getOpen();
+		}
+		
+		return open;
+	}
+	
+	public Map<String, Integer> getOpenChannelsByType(){
+		Map<String, Integer> open = new LinkedHashMap<String, Integer>();
+		
+		for(ChannelMetrics metrics : this.channels){
+			open.put(metrics.getType(), metrics.getOpen());
+		}
+		
+		return open;
+	}
+	
+	/* Sum up all counters. */
+	private static long sum(AtomicLongArray counters){
+		long sum = 0;
+		
+		for(int i = 0; i < counters.length(); i++){
+			sum += counters.get(i);
+		}
+		
+		return sum;
+	}
+	
+	/* Get non-zero counters by command name. */
+	private static Map<String, Long> byCommand(AtomicLongArray counters){
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		
+		for(int i = 0; i < counters.length(); i++){
+			long value = counters.get(i);
+			
+			if(value != 0){
+				map.put(COMMAND_NAMES[i], value);
+			}
+		}
+		
+		return map;
+	}
+	
+	/* Build command name table from the constants in Command. */
+	private static String[] commandNames(){
+		String[] names = new String[256];
+		
+		for(int i = 0; i < names.length; i++){
+			names[i] = String.format("0x%02x", i);
+		}
+		
+		for(Field field : Command.class.getFields()){
+			if(Modifier.isStatic(field.getModifiers()) && field.getType() == int.class){
+				try{
+					names[field.getInt(null) & 0xff] = field.getName().replace("COMMAND_", "").toLowerCase();
+				}
+				catch(IllegalAccessException e){
+					/* Public constant, can't happen. */
+				}
+			}
+		}
+		
+		return names;
+	}
+}
@@ -0,0 +1,21 @@
+package de.felixbruns.jotify.protocol;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ProtocolMetrics}.
+ */
+public interface ProtocolMetricsMXBean {
+	public long getPacketsReceived();
+	public long getPacketsSent();
+	public long getBytesReceived();
+	public long getBytesSent();
+	
+	public Map<String, Long> getPacketsReceivedByCommand();
+	public Map<String, Long> getPacketsSentByCommand();
+	public Map<String, Long> getBytesReceivedByCommand();
+	public Map<String, Long> getBytesSentByCommand();
+	
+	public int getOpenChannels();
+	public Map<String, Integer> getOpenChannelsByType();
+}
@@ -0,0 +1,189 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.felixbruns.jotify.exceptions.ConnectionException;
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+/**
+ * Multiplexes the input of many {@link Protocol} instances onto a small,
+ * fixed number of threads using NIO {@link Selector}s. Each thread reads,
+ * decrypts and dispatches packets for all connections assigned to it, so
+ * listeners are called on a reactor thread and should not block. Packets
+ * sent by listeners that the socket doesn't take right away are queued and
+ * written by the reactor thread once the socket is writable.
+ *
+ * Connections that are not registered with a reactor keep working in
+ * blocking mode via {@link Protocol#receivePacket()}.
+ */
+public class Reactor {
+	/* Loop of the current thread, if it's a reactor thread. */
+	private static final ThreadLocal<Loop> CURRENT = new ThreadLocal<Loop>();
+	
+	/* Selector loops and index of the loop to use for the next connection. */
+	private Loop[]        loops;
+	private AtomicInteger next;
+	
+	/**
+	 * Create a new reactor with a single I/O thread.
+	 */
+	public Reactor(){
+		this(1);
+	}
+	
+	/**
+	 * Create a new reactor with the given number of I/O threads.
+	 *
+	 * @param threads Number of selector threads to use.
+	 */
+	public Reactor(int threads){
+		if(threads < 1){
+			throw new IllegalArgumentException("Reactor needs at least one thread!");
+		}
+		
+		this.loops = new Loop[threads];
+		this.next  = new AtomicInteger(0);
+		
+		for(int i = 0; i < threads; i++){
+			this.loops[i] = new Loop("Reactor-Thread-" + i);
+		}
+	}
+	
+	/**
+	 * Register a connected and authenticated {@link Protocol} with this reactor.
+	 * The underlying socket is switched to non-blocking mode and all further
+	 * packets are received on one of the reactor threads.
+	 *
+	 * @param protocol The {@link Protocol} to register.
+	 *
+	 * @throws ConnectionException If the socket can't be switched to non-blocking mode.
+	 */
+	public void register(Protocol protocol) throws ConnectionException {
+		Loop loop = this.loops[(this.next.getAndIncrement() & 0x7fffffff) % this.loops.length];
+		
+		protocol.configureNonBlocking();
+		
+		loop.register(protocol);
+	}
+	
+	/**
+	 * Stop all reactor threads. Registered connections are not closed.
+	 */
+	public void close(){
+		for(Loop loop : this.loops){
+			loop.close();
+		}
+	}
+	
+	/* Check if the current thread is a reactor thread, which must never wait for a socket. */
+	static boolean isReactorThread(){
+		return CURRENT.get() != null;
+	}
+	
+	/* A single selector thread. */
+	private static class Loop implements Runnable {
+		private Selector        selector;
+		private Queue<Protocol> pending;
+		private volatile boolean running;
+		
+		private Loop(String name){
+			try{
+				this.selector = Selector.open();
+			}
+			catch(IOException e){
+				throw new RuntimeException("Error opening selector!", e);
+			}
+			
+			this.pending = new ConcurrentLinkedQueue<Protocol>();
+			this.running = true;
+			
+			Thread thread = new Thread(this, name);
+			
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		private void register(Protocol protocol){
+			/* Registration has to happen on the selector thread. */
+			this.pending.add(protocol);
+			this.selector.wakeup();
+		}
+		
+		private void close(){
+			this.running = false;
+			this.selector.wakeup();
+		}
+		
+		public void run(){
+			CURRENT.set(this);
+			
+			while(this.running){
+				try{
+					this.selector.select();
+				}
+				catch(IOException e){
+					e.printStackTrace();
+					
+					break;
+				}
+				
+				/* Add newly registered connections. */
+				for(Protocol protocol; (protocol = this.pending.poll()) != null;){
+					try{
+						protocol.registered(protocol.getChannel().register(this.selector, SelectionKey.OP_READ, protocol));
+					}
+					catch(ClosedChannelException e){
+						protocol.fireConnectionClosed(new ProtocolException("Connection closed before registration!", e));
+					}
+				}
+				
+				/* Handle writable and readable connections. */
+				Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+				
+				while(iterator.hasNext()){
+					SelectionKey key      = iterator.next();
+					Protocol     protocol = (Protocol)key.attachment();
+					
+					iterator.remove();
+					
+					if(!key.isValid()){
+						continue;
+					}
+					
+					try{
+						if(key.isWritable()){
+							protocol.flushOutput();
+						}
+						
+						if(key.isValid() && key.isReadable()){
+							protocol.receivePackets();
+						}
+					}
+					catch(ProtocolException e){
+						key.cancel();
+						
+						protocol.fireConnectionClosed(e);
+					}
+					catch(RuntimeException e){
+						/* Don't let a misbehaving listener kill the other connections. */
+						e.printStackTrace();
+					}
+				}
+			}
+			
+			try{
+				this.selector.close();
+			}
+			catch(IOException e){
+				/* Ignore. */
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package de.felixbruns.jotify.protocol;
+
+import java.util.Random;
+
+import de.felixbruns.jotify.exceptions.AuthenticationException;
+import de.felixbruns.jotify.exceptions.ConnectionException;
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+/**
+ * Gets a lost connection back: authenticates the {@link Session} again on
+ * a new connection, waiting longer after each failed attempt, and sends the
+ * requests of the channels in flight again (see
+ * {@link de.felixbruns.jotify.protocol.channel.ChannelRegistry#resume()}),
+ * so callers waiting for a substream or for a response that hadn't started
+ * yet only see a delay. Responses that were partly received fail, so their
+ * callers can retry. New requests are queued in the meantime. If all attempts
+ * fail, the open and queued channels fail.
+ *
+ * Connections that receive on their own thread call {@link #reconnect()} when
+ * receiving fails. With a {@link Reactor}, the reconnector listens for the
+ * closed connection itself, reconnects on its own thread and registers the
+ * connection with the reactor again.
+ *
+ * The number of attempts can be set with the system property
+ * {@code jotify.reconnect.attempts} (default 10, 0 disables reconnecting).
+ */
+public class Reconnector implements ConnectionListener {
+	/* Delay before the second attempt and maximum delay (milliseconds). */
+	private static final long MIN_DELAY = 500;
+	private static final long MAX_DELAY = 30 * 1000;
+	
+	/* Jitter for delays, shared by all reconnectors and retrying callers. */
+	private static final Random RANDOM = new Random();
+	
+	/* Session to authenticate again and reactor to register with, if any. */
+	private Session session;
+	private Reactor reactor;
+	
+	/* Maximum number of attempts per lost connection. */
+	private int attempts;
+	
+	/* Number of successful reconnects and whether the connection was closed on purpose. */
+	private int     reconnects;
+	private boolean closed;
+	
+	/**
+	 * Create a reconnector for a session.
+	 *
+	 * @param session The authenticated {@link Session}.
+	 * @param reactor The {@link Reactor} the connection is registered with or null.
+	 */
+	public Reconnector(Session session, Reactor reactor){
+		this.session    = session;
+		this.reactor    = reactor;
+		this.attempts   = Integer.getInteger("jotify.reconnect.attempts", 10);
+		this.reconnects = 0;
+		this.closed     = false;
+		
+		if(reactor != null){
+			session.getProtocol().addConnectionListener(this);
+		}
+	}
+	
+	/**
+	 * Set the maximum number of attempts per lost connection.
+	 *
+	 * @param attempts The number of attempts, 0 to fail right away.
+	 */
+	public synchronized void setAttempts(int attempts){
+		this.attempts = Math.max(0, attempts);
+	}
+	
+	/**
+	 * Get the number of times the connection was re-established.
+	 */
+	public synchronized int getReconnects(){
+		return this.reconnects;
+	}
+	
+	/**
+	 * Stop reconnecting, because the connection is closed on purpose.
+	 * Call this before disconnecting. Wakes up a pending {@link #reconnect()}.
+	 */
+	public synchronized void close(){
+		this.closed = true;
+		
+		this.notifyAll();
+	}
+	
+	/**
+	 * Re-establish the connection and resume open channels. Blocks until
+	 * the connection is back, all attempts failed or {@link #close()} is called.
+	 *
+	 * @return true if the connection is back, false otherwise.
+	 */
+	public boolean reconnect(){
+		Protocol protocol = this.session.getProtocol();
+		
+		/* Route new work elsewhere and hold requests back until the open channels are resumed. */
+		protocol.getHealth().disconnected();
+		protocol.getChannelScheduler().suspend();
+		
+		for(int attempt = 1; attempt <= this.getAttempts(); attempt++){
+			/* First attempt right away, then back off. */
+			if(attempt > 1 && !this.sleep(getBackoff(attempt - 1))){
+				break;
+			}
+			
+			if(this.isClosed()){
+				break;
+			}
+			
+			try{
+				this.session.reconnect();
+				
+				int resumed = protocol.getChannelRegistry().resume();
+				
+				System.out.format("Reconnected after %d attempt(s), resumed %d channel(s)\n", attempt, resumed);
+			}
+			catch(ConnectionException e){
+				System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+				
+				continue;
+			}
+			catch(AuthenticationException e){
+				System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+				
+				continue;
+			}
+			catch(ProtocolException e){
+				System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+				
+				continue;
+			}
+			
+			synchronized(this){
+				this.reconnects++;
+			}
+			
+			protocol.getChannelScheduler().resume();
+			
+			/* Closed while we were reconnecting. */
+			if(this.isClosed()){
+				try{
+					protocol.disconnect();
+				}
+				catch(ConnectionException e){
+					/* Ignore. */
+				}
+				
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/* Don't let callers wait for their timeouts. */
+		protocol.getChannelRegistry().failAll();
+		protocol.getChannelScheduler().resume();
+		
+		return false;
+	}
+	
+	/**
+	 * Reconnect on a new thread when a connection on a {@link Reactor} is lost.
+	 */
+	public void connectionClosed(final Protocol protocol, ProtocolException cause){
+		if(this.isClosed()){
+			return;
+		}
+		
+		System.err.println("Connection lost: " + cause.getMessage());
+		
+		new Thread(new Runnable(){
+			public void run(){
+				if(!reconnect()){
+					return;
+				}
+				
+				try{
+					reactor.register(protocol);
+				}
+				catch(ConnectionException e){
+					/* The reactor reports the next failure and we try again. */
+					protocol.fireConnectionClosed(new ProtocolException(e.getMessage(), e));
+				}
+			}
+		}, "Reconnect").start();
+	}
+	
+	/**
+	 * Get the time to wait before retrying after a number of failed attempts.
+	 * It starts at half a second and doubles with every failure up to 30
+	 * seconds, with jitter against retry storms of callers that failed together.
+	 *
+	 * @param failures The number of failed attempts so far (at least 1).
+	 *
+	 * @return The delay in milliseconds.
+	 */
+	public static long getBackoff(int failures){
+		long delay = MAX_DELAY;
+		
+		/* Avoid shifting past the maximum. */
+		if(failures <= 16){
+			delay = Math.min(MIN_DELAY << Math.max(0, failures - 1), MAX_DELAY);
+		}
+		
+		return delay / 2 + (long)(RANDOM.nextDouble() * delay);
+	}
+	
+	private synchronized int getAttempts(){
+		return this.attempts;
+	}
+	
+	private synchronized boolean isClosed(){
+		return this.closed;
+	}
+	
+	/* Wait before the next attempt. Returns false if closed in the meantime. */
+	private synchronized boolean sleep(long millis){
+		long end = System.currentTimeMillis() + millis;
+		long now;
+		
+		while(!this.closed && (now = System.currentTimeMillis()) < end){
+			try{
+				this.wait(end - now);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				
+				return false;
+			}
+		}
+		
+		return !this.closed;
+	}
+}
@@ -9,7 +9,7 @@ import javax.crypto.interfaces.DHPublicKey;
 
 import de.felixbruns.jotify.crypto.DH;
 import de.felixbruns.jotify.crypto.Hash;
-import de.felixbruns.jotify.crypto.RSA;
+import de.felixbruns.jotify.crypto.KeyMaterialPool;
 import de.felixbruns.jotify.crypto.RandomBytes;
 import de.felixbruns.jotify.crypto.Shannon;
 import de.felixbruns.jotify.crypto.DH.*;
@@ -120,16 +120,16 @@ public class Session {
 		this.authHash = new byte[20];
 		
 		/*
-		 * Create a private and public DH key and allocate buffer
+		 * Get a private and public DH key and allocate buffer
 		 * for shared key. This, along with key signing, is used
 		 * to securely agree on a session key for the Shannon stream
 		 * cipher.
 		 */
-		this.dhClientKeyPair = DH.generateKeyPair(768);
+		this.dhClientKeyPair = KeyMaterialPool.getDefault().takeDHKeyPair();
 		this.dhSharedKey     = new byte[96];
 		
-		/* Generate RSA key pair. */
-		this.rsaClientKeyPair = RSA.generateKeyPair(1024);
+		/* Get RSA key pair (pre-generated if possible). */
+		this.rsaClientKeyPair = KeyMaterialPool.getDefault().takeRSAKeyPair();
 		
 		/* Allocate buffers for HMAC and Shannon stream cipher keys. */
 		this.keyHmac   = new byte[20];
@@ -171,6 +171,11 @@ public class Session {
 		return this.rsaClientKeyPair.getPublicKey();
 	}
 	
+	/* Get the protocol of this session without connecting it. */
+	Protocol getProtocol(){
+		return this.protocol;
+	}
+	
 	public Protocol authenticate(String username, String password) throws ConnectionException, AuthenticationException {
 		/* Number of authentication tries. */
 		int tries = 3;
@@ -252,6 +257,10 @@ public class Session {
 		this.shannonSend.key(this.keySend);
 		this.shannonRecv.key(this.keyRecv);
 		
+		/* Nonces start over with the new keys. */
+		this.keySendIv = 0;
+		this.keyRecvIv = 0;
+		
 		/* 
 		 * First 20 bytes of HMAC output is used to key another HMAC computed
 		 * for the second authentication packet send by the client.
@@ -273,9 +282,32 @@ public class Session {
 			throw new AuthenticationException(e.getMessage(), e);
 		}
 		
+		this.protocol.authenticated();
+		
 		return this.protocol;
 	}
 	
+	/**
+	 * Open a new connection and authenticate again with the username and
+	 * password of the last {@link #authenticate(String, String)}, e.g. after
+	 * the connection was lost. Listeners and open channels of the protocol
+	 * are kept, see {@link de.felixbruns.jotify.protocol.channel.ChannelRegistry#resume()}.
+	 *
+	 * @return The same {@link Protocol}, connected again.
+	 */
+	public Protocol reconnect() throws ConnectionException, AuthenticationException {
+		if(this.username == null){
+			throw new IllegalStateException("Not authenticated yet!");
+		}
+		
+		/* Don't reuse random bytes and DH keys of the old connection. */
+		RandomBytes.randomBytes(this.clientRandom);
+		
+		this.dhClientKeyPair = KeyMaterialPool.getDefault().takeDHKeyPair();
+		
+		return this.authenticate(new String(this.username), new String(this.password));
+	}
+	
 	private void generateAuthHash(){
 		ByteBuffer buffer = ByteBuffer.allocate(this.salt.length + 1 + this.password.length);
 		
@@ -0,0 +1,153 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the decrypted packets a connection receives to a compact
+ * binary log that can be played back with a {@link SessionReplayer}.
+ *
+ * The log starts with the magic number {@link #MAGIC} and the format
+ * {@link #VERSION}, followed by one record per packet: the time since
+ * the previous record in microseconds (varint), the command byte, the
+ * payload length (varint) and the payload.
+ *
+ * Add a recorder as the first packet listener of a {@link Protocol} to
+ * record packets before they are dispatched, or set the system property
+ * {@code jotify.record} to a directory to record every connection to
+ * its own file in that directory.
+ */
+public class SessionRecorder implements PacketListener {
+	/* Magic number ('JREC') and version of the log format. */
+	public static final int MAGIC   = 0x4A524543;
+	public static final int VERSION = 1;
+	
+	/* Log output, time of the last record (System.nanoTime) and error state. */
+	private DataOutputStream output;
+	private long             last;
+	private boolean          failed;
+	
+	/* Number of recorded packets. */
+	private int packets;
+	
+	/* File the log is written to, if created by createIn. */
+	private File file;
+	
+	/**
+	 * Create a recorder writing to an output stream.
+	 *
+	 * @param output The stream to write the log to. It's buffered by the recorder.
+	 *
+	 * @throws IOException If the log header can't be written.
+	 */
+	public SessionRecorder(OutputStream output) throws IOException {
+		this.output  = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+		this.last    = System.nanoTime();
+		this.failed  = false;
+		this.packets = 0;
+		this.file    = null;
+		
+		this.output.writeInt(MAGIC);
+		this.output.writeByte(VERSION);
+	}
+	
+	/**
+	 * Create a recorder writing to a new file in a directory.
+	 *
+	 * @param directory The directory to create the log file in.
+	 *
+	 * @return A {@link SessionRecorder} writing to a new {@code session-*.jrec} file.
+	 *
+	 * @throws IOException If the file can't be created or the log header can't be written.
+	 */
+	public static SessionRecorder createIn(String directory) throws IOException {
+		File            file     = File.createTempFile("session-", ".jrec", new File(directory));
+		SessionRecorder recorder = new SessionRecorder(new FileOutputStream(file));
+		
+		recorder.file = file;
+		
+		return recorder;
+	}
+	
+	/**
+	 * Get the file the log is written to, or {@code null} if it was
+	 * created for an output stream.
+	 */
+	public File getFile(){
+		return this.file;
+	}
+	
+	/**
+	 * Get the number of packets recorded so far.
+	 */
+	public synchronized int getPackets(){
+		return this.packets;
+	}
+	
+	public synchronized void packetReceived(int command, ByteBuffer payload){
+		if(this.failed){
+			return;
+		}
+		
+		long now = System.nanoTime();
+		
+		try{
+			writeVarint(this.output, (now - this.last) / 1000);
+			
+			this.output.writeByte(command);
+			
+			writeVarint(this.output, payload.remaining());
+			
+			/* Write payload without moving the position of the view. */
+			if(payload.hasArray()){
+				this.output.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			}
+			else{
+				for(int i = payload.position(); i < payload.limit(); i++){
+					this.output.write(payload.get(i));
+				}
+			}
+		}
+		catch(IOException e){
+			/* Stop recording instead of failing the connection. */
+			System.err.println("Error recording session, stopped recording: " + e.getMessage());
+			
+			this.failed = true;
+			
+			return;
+		}
+		
+		this.last = now;
+		this.packets++;
+	}
+	
+	/**
+	 * Flush and close the log.
+	 */
+	public synchronized void close(){
+		try{
+			this.output.close();
+		}
+		catch(IOException e){
+			/* Ignore. */
+		}
+		
+		this.failed = true;
+	}
+	
+	/* Write an unsigned value in 7-bit groups, least significant group first. */
+	static void writeVarint(DataOutputStream output, long value) throws IOException {
+		while((value & ~0x7FL) != 0){
+			output.writeByte((int)((value & 0x7F) | 0x80));
+			
+			value >>>= 7;
+		}
+		
+		output.writeByte((int)value);
+	}
+}
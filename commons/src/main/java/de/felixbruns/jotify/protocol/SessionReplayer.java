@@ -0,0 +1,289 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.felixbruns.jotify.crypto.Shannon;
+import de.felixbruns.jotify.protocol.channel.Channel;
+import de.felixbruns.jotify.protocol.channel.ChannelAdapter;
+import de.felixbruns.jotify.protocol.channel.ChannelListener;
+import de.felixbruns.jotify.protocol.channel.ChannelRegistry;
+
+/**
+ * Plays back a log written by a {@link SessionRecorder} through the
+ * receive path of a {@link Protocol}, without a network connection.
+ *
+ * The recorded packets are encrypted again with a fixed key when the
+ * log is loaded, so a replay runs them through the same decryption,
+ * framing and dispatch to {@link PacketListener}s and {@link CommandListener}s
+ * as packets read from a socket. Use a {@link Session} that isn't
+ * connected, since its receive cipher state is replaced.
+ *
+ * Channel data only reaches channels registered with the channel ids
+ * of the recording. Set a {@link ChannelListener} to register a channel
+ * for every id the recording sends data on.
+ */
+public class SessionReplayer {
+	/* Key the recorded packets are encrypted with. */
+	private static final byte[] KEY = new byte[32];
+	
+	/* Encrypted packets, their commands and channel ids and record times (nanoseconds since start). */
+	private List<byte[]> packets;
+	private int[]        commands;
+	private int[]        channels;
+	private long[]       times;
+	private long         bytes;
+	
+	/* Type and listener of channels registered for the recording. */
+	private Channel.Type    channelType;
+	private ChannelListener channelListener;
+	
+	/**
+	 * Load a recording.
+	 *
+	 * @param input The stream to read the log from. It's read to the end but not closed.
+	 *
+	 * @throws IOException If the log can't be read or has an unknown format.
+	 */
+	public SessionReplayer(InputStream input) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+		
+		if(data.readInt() != SessionRecorder.MAGIC || data.readUnsignedByte() != SessionRecorder.VERSION){
+			throw new IOException("Not a session recording or unsupported version!");
+		}
+		
+		List<Integer> commands = new ArrayList<Integer>();
+		List<Integer> channels = new ArrayList<Integer>();
+		List<Long>    times    = new ArrayList<Long>();
+		Shannon       shannon  = new Shannon();
+		long          time     = 0;
+		int           delta;
+		
+		this.packets = new ArrayList<byte[]>();
+		this.bytes   = 0;
+		
+		shannon.key(KEY);
+		
+		while((delta = data.read()) != -1){
+			time += TimeUnit.MICROSECONDS.toNanos(readVarint(data, delta));
+			
+			int command = data.readUnsignedByte();
+			int length  = (int)readVarint(data, data.readUnsignedByte());
+			
+			if(length > 0xffff){
+				throw new IOException("Invalid packet length " + length + "!");
+			}
+			
+			/* Build and encrypt packet: header, payload and MAC. */
+			byte[] packet = new byte[3 + length + 4];
+			
+			packet[0] = (byte)command;
+			packet[1] = (byte)(length >> 8);
+			packet[2] = (byte)length;
+			
+			data.readFully(packet, 3, length);
+			
+			commands.add(command);
+			channels.add(channelId(command, packet, 3, length));
+			times.add(time);
+			
+			shannon.nonce(this.packets.size());
+			shannon.encrypt(packet, 3 + length);
+			shannon.finish(ByteBuffer.wrap(packet, 3 + length, 4));
+			
+			this.packets.add(packet);
+			this.bytes += packet.length;
+		}
+		
+		this.commands = toIntArray(commands);
+		this.channels = toIntArray(channels);
+		this.times    = new long[times.size()];
+		
+		for(int i = 0; i < this.times.length; i++){
+			this.times[i] = times.get(i);
+		}
+		
+		this.channelType     = Channel.Type.TYPE_BROWSE;
+		this.channelListener = null;
+	}
+	
+	/**
+	 * Register channels for the channel ids of the recording. Channels
+	 * are registered when data for an id arrives that has no channel
+	 * (and again after a channel with that id ended).
+	 *
+	 * @param type     The {@link Channel.Type} of the registered channels.
+	 *                 AES key channels always get {@link Channel.Type#TYPE_AESKEY}.
+	 * @param listener The listener of the registered channels or null to
+	 *                 only deliver data to channels registered by others.
+	 */
+	public void setChannelListener(Channel.Type type, ChannelListener listener){
+		this.channelType     = type;
+		this.channelListener = listener;
+	}
+	
+	/**
+	 * Get the number of recorded packets.
+	 */
+	public int getPackets(){
+		return this.packets.size();
+	}
+	
+	/**
+	 * Get the number of recorded bytes, counted like on the wire (with header and MAC).
+	 */
+	public long getBytes(){
+		return this.bytes;
+	}
+	
+	/**
+	 * Get the time between the start of the recording and its last packet.
+	 */
+	public long getDuration(TimeUnit unit){
+		if(this.times.length == 0){
+			return 0;
+		}
+		
+		return unit.convert(this.times[this.times.length - 1], TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Play the recording back to the listeners of a session's protocol.
+	 *
+	 * @param session  A {@link Session} that isn't connected.
+	 * @param realTime Whether to keep the recorded timing or replay as fast as possible.
+	 *
+	 * @return The time the replay took in nanoseconds.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the next packet (real time only).
+	 */
+	public long replay(Session session, boolean realTime) throws InterruptedException {
+		Protocol        protocol = session.getProtocol();
+		ChannelRegistry registry = protocol.getChannelRegistry();
+		long            start    = System.nanoTime();
+		
+		/* Take over receive cipher state. */
+		session.shannonRecv.key(KEY);
+		session.keyRecvIv = 0;
+		
+		for(int i = 0; i < this.commands.length; i++){
+			if(realTime){
+				long wait = start + this.times[i] - System.nanoTime();
+				
+				if(wait > 0){
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			
+			/* Register a channel for data on an unknown id. */
+			if(this.channelListener != null && this.channels[i] >= 0 && registry.getChannel(this.channels[i]) == null){
+				Channel.Type type = (this.commands[i] == Command.COMMAND_AESKEY) ?
+					Channel.Type.TYPE_AESKEY : this.channelType;
+				
+				registry.register(new Channel("Replay", type, this.channelListener), this.channels[i]);
+			}
+			
+			protocol.receivePackets(ByteBuffer.wrap(this.packets.get(i)));
+		}
+		
+		return System.nanoTime() - start;
+	}
+	
+	/* Get the channel id of a channel data or AES key packet, -1 for other packets. */
+	private static int channelId(int command, byte[] packet, int offset, int length){
+		if(command == Command.COMMAND_CHANNELDATA && length >= 2){
+			return ((packet[offset] & 0xff) << 8) | (packet[offset + 1] & 0xff);
+		}
+		else if(command == Command.COMMAND_AESKEY && length >= 4){
+			return ((packet[offset + 2] & 0xff) << 8) | (packet[offset + 3] & 0xff);
+		}
+		
+		return -1;
+	}
+	
+	/* Read an unsigned value in 7-bit groups, least significant group first. */
+	private static long readVarint(DataInputStream input, int first) throws IOException {
+		long value = first & 0x7F;
+		int  shift = 7;
+		int  b     = first;
+		
+		while((b & 0x80) != 0){
+			if((b = input.read()) == -1){
+				throw new EOFException("Truncated session recording!");
+			}
+			
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		}
+		
+		return value;
+	}
+	
+	private static int[] toIntArray(List<Integer> list){
+		int[] array = new int[list.size()];
+		
+		for(int i = 0; i < array.length; i++){
+			array[i] = list.get(i);
+		}
+		
+		return array;
+	}
+	
+	/**
+	 * Replay a recording as fast as possible a number of times and
+	 * print the throughput of the receive path.
+	 *
+	 * Usage: {@code SessionReplayer <recording> [iterations]}
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			System.err.println("Usage: SessionReplayer <recording> [iterations]");
+			
+			return;
+		}
+		
+		int             iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		FileInputStream input      = new FileInputStream(args[0]);
+		SessionReplayer replayer;
+		
+		try{
+			replayer = new SessionReplayer(input);
+		}
+		finally{
+			input.close();
+		}
+		
+		/* Dispatch like a connection does, but don't answer pings. */
+		Session           session    = new Session();
+		CommandDispatcher dispatcher = new CommandDispatcher(session.getProtocol(), session);
+		
+		dispatcher.setHandler(Command.COMMAND_SECRETBLK, null);
+		dispatcher.setHandler(Command.COMMAND_PING, null);
+		
+		session.getProtocol().addPacketListener(dispatcher);
+		
+		replayer.setChannelListener(Channel.Type.TYPE_BROWSE, new ChannelAdapter());
+		
+		System.out.format(
+			"%d packets, %d bytes, recorded in %d ms\n",
+			replayer.getPackets(), replayer.getBytes(), replayer.getDuration(TimeUnit.MILLISECONDS)
+		);
+		
+		for(int i = 0; i < iterations; i++){
+			long nanos = replayer.replay(session, false);
+			
+			System.out.format(
+				"Replay %d: %.2f ms, %.0f packets/s, %.1f MB/s\n", i + 1, nanos / 1e6,
+				replayer.getPackets() * 1e9 / nanos, replayer.getBytes() * 1e3 / nanos
+			);
+		}
+	}
+}
@@ -1,21 +1,12 @@
 package de.felixbruns.jotify.protocol.channel;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import de.felixbruns.jotify.protocol.Command;
 import de.felixbruns.jotify.util.ShortUtilities;
 
 public class Channel {
-	/* Static channel id counter. */
-	private static AtomicInteger nextId = new AtomicInteger(0);
-	private static Map<Integer, Channel> channels;
-	
-	static {
-		Channel.channels = new HashMap<Integer, Channel>();
-	}
-	
 	/* Channel variables. */
 	private int             id;
 	private String          name;
@@ -23,11 +14,45 @@ public class Channel {
 	private Type            type;
 	private int             headerLength;
 	private int             dataLength;
-	private ChannelListener listener;
+	private ChannelRegistry registry;
+	
+	/* Registration time (System.nanoTime) and whether a packet arrived yet. */
+	private long    registered;
+	private boolean received;
+	
+	/* Sent request, kept to send it again after a reconnect. */
+	private int        command;
+	private ByteBuffer request;
+	
+	/* Header and data bytes of a resumed substream that were already delivered. */
+	private int skipHeader;
+	private int skipData;
 	
+	/* Timer entry while the channel is armed, time of its last activity (System.nanoTime) and whether it expired. */
+	private volatile ChannelTimer.Entry timer;
+	private volatile long               activity;
+	private volatile boolean            timedOut;
+	
+	/* Cleared when the channel is cancelled, so read it only once per packet. */
+	private volatile ChannelListener listener;
+	
+	/**
+	 * Create a new channel. It gets an id when it's registered
+	 * with the {@link ChannelRegistry} of a connection.
+	 */
 	public Channel(String name, Type type, ChannelListener listener){
-		this.id           = nextId.getAndIncrement();
-		this.name         = name + "-" + this.id;
+		this.id           = -1;
+		this.registry     = null;
+		this.registered   = 0;
+		this.received     = false;
+		this.command      = -1;
+		this.request      = null;
+		this.skipHeader   = 0;
+		this.skipData     = 0;
+		this.timer        = null;
+		this.activity     = 0;
+		this.timedOut     = false;
+		this.name         = name;
 		this.state        = State.STATE_HEADER;
 		this.type         = type;
 		this.headerLength = 0;
@@ -64,35 +89,187 @@ public class Channel {
 		return this.dataLength;
 	}
 	
-	public static void register(Channel channel){
-		Channel.channels.put(channel.getId(), channel);
+	/**
+	 * Cancel this channel. The channel id is released, the server is told
+	 * to stop sending data and the listener won't receive any further
+	 * callbacks (it isn't notified about the cancellation either).
+	 *
+	 * @return true if the channel was cancelled, false if it already
+	 *         ended, failed, was cancelled before or was never registered.
+	 */
+	public boolean cancel(){
+		ChannelRegistry registry = this.registry;
+		
+		if(registry == null){
+			return false;
+		}
+		
+		return registry.cancel(this);
+	}
+	
+	/**
+	 * Check whether the channel failed because it didn't receive
+	 * a packet within the timeout of its connection.
+	 */
+	public boolean isTimedOut(){
+		return this.timedOut;
+	}
+	
+	/* Set registry and id when registered. */
+	void register(ChannelRegistry registry, int id){
+		this.registry   = registry;
+		this.id         = id;
+		this.name       = this.name + "-" + id;
+		this.registered = System.nanoTime();
+	}
+	
+	/* Nanoseconds since the channel was registered. */
+	long age(){
+		return System.nanoTime() - this.registered;
+	}
+	
+	/* Note the arrival of a packet. Returns true if it was the first one. */
+	boolean firstPacket(){
+		if(this.received){
+			return false;
+		}
+		
+		this.received = true;
+		
+		return true;
+	}
+	
+	/* Remember the request when it's sent (the payload isn't consumed yet). */
+	void sent(int command, ByteBuffer payload){
+		this.command = command;
+		this.request = payload.duplicate();
+	}
+	
+	/* Whether the request of this channel was sent, i.e. it isn't queued anymore. */
+	boolean isSent(){
+		return this.request != null;
+	}
+	
+	/* Whether the request can be sent again without changing anything on the server. */
+	boolean isRepeatable(){
+		return this.command != Command.COMMAND_CHANGEPLAYLIST;
+	}
+	
+	/*
+	 * Whether the request can be sent again without the listener noticing.
+	 * Substream data doesn't change, so a substream continues where it stopped.
+	 * Other responses (search, toplist, ...) may differ or be compressed
+	 * differently the second time, so they only start over if nothing was
+	 * delivered yet.
+	 */
+	boolean isResumable(){
+		return this.type.equals(Type.TYPE_SUBSTREAM) || (this.headerLength == 0 && this.dataLength == 0);
+	}
+	
+	int getCommand(){
+		return this.command;
+	}
+	
+	/*
+	 * Get the request to send again on a new connection. Substreams continue
+	 * after the last received byte and the headers the listener already got
+	 * are skipped. Other requests start over, see isResumable().
+	 */
+	ByteBuffer resume(){
+		ByteBuffer request = this.request.duplicate();
+		
+		this.skipHeader = this.headerLength;
+		this.skipData   = this.dataLength;
+		this.state      = this.type.equals(Type.TYPE_AESKEY) ? State.STATE_DATA : State.STATE_HEADER;
+		
+		/* A full timeout on the new connection. */
+		this.touch();
+		
+		/* Offset and end (in 4 byte words) follow channel id, 16 bytes and file id. */
+		if(this.type.equals(Type.TYPE_SUBSTREAM) && this.dataLength % 4 == 0 && request.remaining() >= 46){
+			int offset = request.getInt(request.position() + 38) + this.dataLength / 4;
+			
+			if(offset < request.getInt(request.position() + 42)){
+				request = ByteBuffer.allocate(request.remaining()).put(request);
+				
+				request.putInt(38, offset);
+				request.flip();
+				
+				/* Only the header is sent again. */
+				this.skipData = 0;
+			}
+		}
+		
+		return request;
+	}
+	
+	/* Timer entry, guarded by the timer. */
+	ChannelTimer.Entry getTimer(){
+		return this.timer;
+	}
+	
+	void setTimer(ChannelTimer.Entry timer){
+		this.timer = timer;
+	}
+	
+	/* Note activity on the channel, which restarts its timeout. */
+	void touch(){
+		this.activity = System.nanoTime();
+	}
+	
+	/* Time of the last packet or the time the channel was armed (System.nanoTime). */
+	long lastActivity(){
+		return this.activity;
+	}
+	
+	/* Stop the timer, called when the channel is removed from its registry. */
+	void disarm(){
+		ChannelTimer.Entry timer = this.timer;
+		
+		if(timer != null){
+			timer.getTimer().disarm(this);
+		}
+	}
+	
+	/* Called by the timer when no packet arrived within the timeout. */
+	void expire(){
+		ChannelRegistry registry = this.registry;
+		
+		if(registry != null){
+			registry.expire(this);
+		}
+	}
+	
+	/* Notify listener about a timeout, after the channel was removed from its registry. */
+	void timedOut(){
+		this.timedOut = true;
+		
+		this.error();
 	}
 	
-	public static void unregister(int id){
-		Channel.channels.remove(id);
+	/* Detach listener after the channel was removed from its registry. */
+	void cancelled(){
+		this.state    = State.STATE_CANCELLED;
+		this.listener = null;
 	}
 	
-	public static void process(byte[] payload){
-		Channel channel;
-		int     offset         = 0;
-		int     length         = payload.length;
-		int     headerLength   = 0;
-		int     consumedLength = 0;
+	/*
+	 * Process channel data (without the channel id). Returns true if
+	 * this was the last packet of the channel.
+	 */
+	boolean process(byte[] payload, int offset, int length){
+		ChannelListener listener = this.listener;
 		
-		/* Get Channel by id from payload. */
-		if((channel = Channel.channels.get(ShortUtilities.bytesToUnsignedShort(payload))) == null){
-			/* Just return if channel is not registered. */
-			return;
-		};
+		int headerLength   = 0;
+		int consumedLength = 0;
 		
-		offset += 2;
-		length -= 2;
+		this.touch();
 		
-		if(channel.state.equals(State.STATE_HEADER)){
+		if(this.state.equals(State.STATE_HEADER)){
 			if(length < 2){
 				System.err.println("Length is smaller than 2!");
 				
-				return; 
+				return false;
 			}
 			
 			while(consumedLength < length){
@@ -109,33 +286,42 @@ public class Channel {
 				if(consumedLength + headerLength > length){
 					System.err.println("Not enough data!");
 					
-					return;
-				}
-				
-				if(channel.listener != null){
-					channel.listener.channelHeader(channel,
-						Arrays.copyOfRange(payload, offset, offset + headerLength)
-					);
+					return false;
 				}
 				
 				offset         += headerLength;
 				consumedLength += headerLength;
 				
-				channel.headerLength += headerLength;
+				/* Skip headers that were delivered before a reconnect. */
+				if(this.skipHeader >= headerLength){
+					this.skipHeader -= headerLength;
+					
+					continue;
+				}
+				
+				this.skipHeader = 0;
+				
+				if(listener != null){
+					listener.channelHeader(this,
+						Arrays.copyOfRange(payload, offset - headerLength, offset)
+					);
+				}
+				
+				this.headerLength += headerLength;
 			}
 			
 			if(consumedLength != length){
 				System.err.println("Didn't consume all data!");
 				
-				return;
+				return false;
 			}
 			
 			/* Upgrade state if this was the last (zero size) header. */
 			if(headerLength == 0){
-				channel.state = State.STATE_DATA;
+				this.state = State.STATE_DATA;
 			}
 			
-			return;
+			return false;
 		}
 		
 		/*
@@ -144,54 +330,59 @@ public class Channel {
 		 * thus letting the callback routine know this is the last packet.
 		 */
 		if(length == 0){
-			channel.state = State.STATE_END;
+			this.state = State.STATE_END;
 			
-			if(channel.listener != null){
-				channel.listener.channelEnd(channel);
+			if(listener != null){
+				listener.channelEnd(this);
 			}
+			
+			return true;
 		}
-		else{
-			if(channel.listener != null){
-				channel.listener.channelData(channel,
-					Arrays.copyOfRange(payload, offset, offset + length)
-				);
-			}
+		
+		/* Skip data that was delivered before a reconnect. */
+		int skip = Math.min(this.skipData, length);
+		
+		this.skipData -= skip;
+		
+		if(listener != null && skip < length){
+			listener.channelData(this,
+				Arrays.copyOfRange(payload, offset + skip, offset + length)
+			);
 		}
 		
-		channel.dataLength += length;
+		this.dataLength += length - skip;
 		
 		/* If this is an AES key channel, force end state. */
-		if(channel.type.equals(Type.TYPE_AESKEY)){
-			channel.state = State.STATE_END;
+		if(this.type.equals(Type.TYPE_AESKEY)){
+			this.state = State.STATE_END;
 			
-			if(channel.listener != null){
-				channel.listener.channelEnd(channel);
+			if(listener != null){
+				listener.channelEnd(this);
 			}
+			
+			return true;
 		}
+		
+		return false;
 	}
 	
-	public static void error(byte[] payload){
-		Channel channel;
+	/* Notify listener about an error. */
+	void error(){
+		ChannelListener listener = this.listener;
 		
-		/* Get Channel by id from payload. */
-		if((channel = Channel.channels.get(ShortUtilities.bytesToUnsignedShort(payload))) == null){
-			System.err.println("Channel not found!");
-			
-			return;
-		};
+		this.state = State.STATE_ERROR;
 		
-		if(channel.listener != null){
-			channel.listener.channelError(channel);
+		if(listener != null){
+			listener.channelError(this);
 		}
-		
-		Channel.channels.remove(channel.getId());
 	}
 	
 	public enum State {
 		STATE_HEADER,
 		STATE_DATA,
 		STATE_END,
-		STATE_ERROR
+		STATE_ERROR,
+		STATE_CANCELLED
 	}
 	
 	public enum Type {
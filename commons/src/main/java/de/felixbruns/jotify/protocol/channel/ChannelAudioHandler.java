@@ -143,8 +143,6 @@ public class ChannelAudioHandler implements ChannelListener {
 	
 	public void channelEnd(Channel channel){
 		this.offset += channel.getDataLength();
-		
-		Channel.unregister(channel.getId());
 	}
 	
 	public void channelError(Channel channel){
@@ -13,11 +13,13 @@ public class ChannelCallback implements ChannelListener {
 	private Semaphore        done;
 	private List<ByteBuffer> buffers;
 	private int              bytes;
+	private boolean          timedOut;
 	
 	public ChannelCallback(){
-		this.done    = new Semaphore(1);
-		this.buffers = new LinkedList<ByteBuffer>();
-		this.bytes   = 0;
+		this.done     = new Semaphore(1);
+		this.buffers  = new LinkedList<ByteBuffer>();
+		this.bytes    = 0;
+		this.timedOut = false;
 		
 		this.done.acquireUninterruptibly();
 	}
@@ -35,12 +37,12 @@ public class ChannelCallback implements ChannelListener {
 	}
 	
 	public void channelEnd(Channel channel){
-		Channel.unregister(channel.getId());
-		
 		this.done.release();
 	}
 	
 	public void channelError(Channel channel){
+		this.timedOut = channel.isTimedOut();
+		
 		this.done.release();
 	}
 	
@@ -75,7 +77,7 @@ public class ChannelCallback implements ChannelListener {
 	public byte[] get(long timeout, TimeUnit unit) throws TimeoutException {
 		/* Wait for data to become available. */
 		try{
-			if(!this.done.tryAcquire(timeout, unit)){
+			if(!this.done.tryAcquire(timeout, unit) || this.timedOut){
 				throw new TimeoutException("Timeout while waiting for data.");
 			}
 			
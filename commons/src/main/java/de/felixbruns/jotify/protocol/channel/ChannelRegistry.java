@@ -0,0 +1,516 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.felixbruns.jotify.exceptions.ProtocolException;
+import de.felixbruns.jotify.protocol.Protocol;
+import de.felixbruns.jotify.util.ShortUtilities;
+
+/**
+ * Keeps track of the open channels of a single connection and hands out
+ * their 16-bit ids. Channels are stored in an open-addressing hash table
+ * keyed by their id (linear probing, no boxing). Ids are released when a
+ * channel ends or fails and handed out again round-robin, so a released
+ * id is only reused after all other free ids were used. This keeps late
+ * packets for a finished channel from reaching a new one.
+ *
+ * All methods are thread-safe. Listeners are called without holding
+ * the registry lock.
+ */
+public class ChannelRegistry {
+	/* Number of available channel ids (ids are 16-bit on the wire). */
+	public static final int MAX_CHANNELS = 0x10000;
+	
+	/* Marks an empty slot in the table. */
+	private static final int EMPTY = -1;
+	
+	/* Connection used to abort cancelled channels. */
+	private Protocol protocol;
+	
+	/* Hash table of channel ids and channels. Length is a power of two. */
+	private int[]     keys;
+	private Channel[] values;
+	private int       size;
+	
+	/* Next id to try when registering a channel. */
+	private int nextId;
+	
+	/**
+	 * Create a new, empty channel registry.
+	 *
+	 * @param protocol The {@link Protocol} the channels are opened on.
+	 */
+	public ChannelRegistry(Protocol protocol){
+		this.protocol = protocol;
+		this.keys   = new int[16];
+		this.values = new Channel[16];
+		this.size   = 0;
+		this.nextId = 0;
+		
+		Arrays.fill(this.keys, EMPTY);
+	}
+	
+	/**
+	 * Assign a free id to a channel and register it.
+	 *
+	 * @param channel The {@link Channel} to register.
+	 *
+	 * @return The id of the channel.
+	 *
+	 * @throws IllegalStateException If all channel ids are in use.
+	 */
+	public synchronized int register(Channel channel){
+		if(this.size >= MAX_CHANNELS){
+			throw new IllegalStateException("All channel ids are in use!");
+		}
+		
+		/* Find next id that is not in use. */
+		int id = this.nextId;
+		
+		while(this.get(id) != null){
+			id = (id + 1) & (MAX_CHANNELS - 1);
+		}
+		
+		this.nextId = (id + 1) & (MAX_CHANNELS - 1);
+		
+		channel.register(this, id);
+		
+		this.put(id, channel);
+		
+		this.protocol.getMetrics().channelOpened(channel.getType());
+		
+		return id;
+	}
+	
+	/**
+	 * Register a channel with a given id, e.g. to pick up the channels of a
+	 * recorded session when it's replayed. The channel doesn't take a slot
+	 * in the scheduler, so don't use this on connections that send requests.
+	 *
+	 * @param channel The {@link Channel} to register.
+	 * @param id      The id of the channel.
+	 *
+	 * @throws IllegalStateException If the id is already in use.
+	 */
+	public synchronized void register(Channel channel, int id){
+		id &= MAX_CHANNELS - 1;
+		
+		if(this.get(id) != null){
+			throw new IllegalStateException("Channel id " + id + " is already in use!");
+		}
+		
+		channel.register(this, id);
+		
+		this.put(id, channel);
+		
+		this.protocol.getMetrics().channelOpened(channel.getType());
+	}
+	
+	/**
+	 * Remove a channel and release its id.
+	 *
+	 * @param id The id of the channel.
+	 *
+	 * @return The removed {@link Channel} or null if no channel was registered with that id.
+	 */
+	public Channel unregister(int id){
+		Channel channel;
+		
+		synchronized(this){
+			channel = this.remove(id);
+		}
+		
+		/* Free the slot of the channel in the scheduler. */
+		if(channel != null){
+			this.protocol.getMetrics().channelFailed(channel.getType());
+			this.protocol.getHealth().channelFailed();
+			this.protocol.getChannelScheduler().released(channel);
+		}
+		
+		return channel;
+	}
+	
+	/**
+	 * Cancel a channel: release its id, detach its listener and
+	 * send a channel abort to the server.
+	 *
+	 * @param channel The {@link Channel} to cancel.
+	 *
+	 * @return true if the channel was cancelled, false if it wasn't registered (anymore).
+	 */
+	public boolean cancel(Channel channel){
+		int id = channel.getId();
+		
+		synchronized(this){
+			if(this.get(id) != channel){
+				return false;
+			}
+			
+			this.remove(id);
+			
+			channel.cancelled();
+		}
+		
+		this.protocol.getMetrics().channelCancelled(channel.getType());
+		
+		/* Nothing to abort if the request was still queued. */
+		if(this.protocol.getChannelScheduler().released(channel)){
+			return true;
+		}
+		
+		/* Packets that are already on their way are dropped, since the id is unknown now. */
+		try{
+			this.protocol.sendChannelAbort(id);
+		}
+		catch(ProtocolException e){
+			/* Connection is gone, so is the channel. */
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Get a registered channel.
+	 *
+	 * @param id The id of the channel.
+	 *
+	 * @return The {@link Channel} or null if no channel is registered with that id.
+	 */
+	public synchronized Channel getChannel(int id){
+		return this.get(id);
+	}
+	
+	/**
+	 * Get the number of open channels.
+	 *
+	 * @return The number of registered channels.
+	 */
+	public synchronized int size(){
+		return this.size;
+	}
+	
+	/**
+	 * Process a channel data packet. The channel is released
+	 * after its last packet.
+	 *
+	 * @param payload The packet payload, starting with the channel id.
+	 */
+	public void process(byte[] payload){
+		this.process(payload, 0, payload.length);
+	}
+	
+	/**
+	 * Process a channel data packet without copying it.
+	 *
+	 * @param payload A heap buffer holding the packet payload, starting
+	 *                with the channel id, between position and limit.
+	 */
+	public void process(ByteBuffer payload){
+		this.process(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+	}
+	
+	/**
+	 * Process a channel data packet. The channel is released
+	 * after its last packet.
+	 *
+	 * @param payload An array holding the packet payload.
+	 * @param offset  Offset of the payload (the channel id) in the array.
+	 * @param length  Length of the payload.
+	 */
+	public void process(byte[] payload, int offset, int length){
+		Channel channel;
+		int     id = ShortUtilities.bytesToUnsignedShort(payload, offset);
+		
+		/* Just return if channel is not registered. */
+		if((channel = this.getChannel(id)) == null){
+			return;
+		}
+		
+		/* Record time to first packet. */
+		if(channel.firstPacket()){
+			long age = channel.age();
+			
+			this.protocol.getMetrics().channelFirstPacket(channel.getType(), age);
+			this.protocol.getHealth().firstPacket(age);
+		}
+		
+		/* Release channel if this was the last packet. */
+		if(channel.process(payload, offset + 2, length - 2) && this.release(id, channel)){
+			long age = channel.age();
+			
+			this.protocol.getMetrics().channelEnded(channel.getType(), age);
+			this.protocol.getHealth().channelEnded(age);
+		}
+	}
+	
+	/**
+	 * Process a channel error packet and release the channel.
+	 *
+	 * @param payload A buffer holding the packet payload, starting
+	 *                with the channel id, between position and limit.
+	 */
+	public void error(ByteBuffer payload){
+		this.error(payload.getShort(payload.position()) & 0xffff);
+	}
+	
+	/**
+	 * Process a channel error packet and release the channel.
+	 *
+	 * @param payload The packet payload, starting with the channel id.
+	 */
+	public void error(byte[] payload){
+		this.error(ShortUtilities.bytesToUnsignedShort(payload));
+	}
+	
+	/* Release a failed channel and notify its listener. */
+	private void error(int id){
+		Channel channel;
+		
+		if((channel = this.getChannel(id)) == null){
+			System.err.println("Channel not found!");
+			
+			return;
+		}
+		
+		if(this.release(id, channel)){
+			this.protocol.getMetrics().channelFailed(channel.getType());
+			this.protocol.getHealth().channelFailed();
+		}
+		
+		channel.error();
+	}
+	
+	/**
+	 * Send the requests of all channels in flight again after the connection
+	 * was re-established. Substreams continue where they stopped. Other requests
+	 * only start over if their listeners didn't get anything yet, as a second
+	 * response may differ from the first. Channels that received part of their
+	 * response and channels whose requests can't be repeated (playlist changes)
+	 * fail, so their callers can retry. Queued requests are sent by the
+	 * scheduler as usual.
+	 *
+	 * @return The number of requests sent again.
+	 *
+	 * @throws ProtocolException If sending fails. Call this again after the next reconnect.
+	 */
+	public int resume() throws ProtocolException {
+		int resumed = 0;
+		
+		for(Channel channel : this.getChannels()){
+			if(!channel.isSent()){
+				continue;
+			}
+			
+			if(!channel.isRepeatable() || !channel.isResumable()){
+				this.abandon(channel);
+				
+				continue;
+			}
+			
+			this.protocol.sendPacket(channel.getCommand(), channel.resume());
+			
+			resumed++;
+		}
+		
+		return resumed;
+	}
+	
+	/**
+	 * Release all channels and notify their listeners about an error,
+	 * e.g. when the connection is lost for good.
+	 */
+	public void failAll(){
+		for(Channel channel : this.getChannels()){
+			this.abandon(channel);
+		}
+	}
+	
+	/* Release a channel that is still registered and notify its listener about an error. */
+	private void abandon(Channel channel){
+		if(this.release(channel.getId(), channel)){
+			this.protocol.getMetrics().channelFailed(channel.getType());
+			this.protocol.getHealth().channelFailed();
+			
+			channel.error();
+		}
+	}
+	
+	/* Get a snapshot of the registered channels. */
+	private synchronized List<Channel> getChannels(){
+		List<Channel> channels = new ArrayList<Channel>(this.size);
+		
+		for(Channel channel : this.values){
+			if(channel != null){
+				channels.add(channel);
+			}
+		}
+		
+		return channels;
+	}
+	
+	/*
+	 * Release a channel whose request couldn't be sent by the scheduler
+	 * (the scheduler already freed its slot) and notify its listener.
+	 */
+	void fail(Channel channel){
+		synchronized(this){
+			if(this.get(channel.getId()) != channel){
+				return;
+			}
+			
+			this.remove(channel.getId());
+		}
+		
+		this.protocol.getMetrics().channelFailed(channel.getType());
+		this.protocol.getHealth().channelFailed();
+		
+		channel.error();
+	}
+	
+	/*
+	 * Release a channel that didn't receive a packet within its timeout (called
+	 * by the ChannelTimer), abort it on the server and notify its listener.
+	 */
+	void expire(Channel channel){
+		int id = channel.getId();
+		
+		synchronized(this){
+			if(this.get(id) != channel){
+				return;
+			}
+			
+			this.remove(id);
+		}
+		
+		this.protocol.getMetrics().channelFailed(channel.getType());
+		this.protocol.getHealth().timedOut();
+		
+		/* The server may still be working on it, so free the id on both ends. */
+		if(!this.protocol.getChannelScheduler().released(channel)){
+			try{
+				this.protocol.sendChannelAbort(id);
+			}
+			catch(ProtocolException e){
+				/* Connection is gone, so is the channel. */
+			}
+		}
+		
+		channel.timedOut();
+	}
+	
+	/*
+	 * Remove channel only if the id wasn't reused in the meantime, then free
+	 * its scheduler slot. Returns false if the channel wasn't registered.
+	 */
+	private boolean release(int id, Channel channel){
+		synchronized(this){
+			if(this.get(id) != channel){
+				return false;
+			}
+			
+			this.remove(id);
+		}
+		
+		this.protocol.getChannelScheduler().released(channel);
+		
+		return true;
+	}
+	
+	/* Look up a channel in the hash table. */
+	private Channel get(int id){
+		int mask = this.keys.length - 1;
+		
+		for(int i = hash(id) & mask; this.keys[i] != EMPTY; i = (i + 1) & mask){
+			if(this.keys[i] == id){
+				return this.values[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/* Insert a channel into the hash table (id is not present). */
+	private void put(int id, Channel channel){
+		/* Keep load factor below 1/2. */
+		if(2 * (this.size + 1) > this.keys.length){
+			this.resize(2 * this.keys.length);
+		}
+		
+		int mask = this.keys.length - 1;
+		int i    = hash(id) & mask;
+		
+		while(this.keys[i] != EMPTY){
+			i = (i + 1) & mask;
+		}
+		
+		this.keys[i]   = id;
+		this.values[i] = channel;
+		
+		this.size++;
+	}
+	
+	/* Remove a channel from the hash table, shifting back following entries. */
+	private Channel remove(int id){
+		int mask = this.keys.length - 1;
+		int i    = hash(id) & mask;
+		
+		while(this.keys[i] != id){
+			if(this.keys[i] == EMPTY){
+				return null;
+			}
+			
+			i = (i + 1) & mask;
+		}
+		
+		Channel channel = this.values[i];
+		
+		/* Backward shift deletion keeps probe sequences intact without tombstones. */
+		for(int j = (i + 1) & mask; this.keys[j] != EMPTY; j = (j + 1) & mask){
+			int k = hash(this.keys[j]) & mask;
+			
+			/* Move entry at j to the hole at i if its home slot k isn't in (i, j]. */
+			if((j > i) ? (k <= i || k > j) : (k <= i && k > j)){
+				this.keys[i]   = this.keys[j];
+				this.values[i] = this.values[j];
+				
+				i = j;
+			}
+		}
+		
+		this.keys[i]   = EMPTY;
+		this.values[i] = null;
+		
+		this.size--;
+		
+		/* Its timeout doesn't matter anymore. */
+		channel.disarm();
+		
+		return channel;
+	}
+	
+	/* Grow hash table. */
+	private void resize(int capacity){
+		int[]     oldKeys   = this.keys;
+		Channel[] oldValues = this.values;
+		
+		this.keys   = new int[capacity];
+		this.values = new Channel[capacity];
+		this.size   = 0;
+		
+		Arrays.fill(this.keys, EMPTY);
+		
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldKeys[i] != EMPTY){
+				this.put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+	
+	/* Spread sequential ids over the table (17 bits, enough for the largest table). */
+	private static int hash(int id){
+		return (id * 0x9E3779B1) >>> 15;
+	}
+}
@@ -0,0 +1,328 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.felixbruns.jotify.exceptions.ProtocolException;
+import de.felixbruns.jotify.protocol.Protocol;
+
+/**
+ * Sits in front of the socket and decides when a channel request is sent.
+ * Each {@link Priority} class has a limit of channels in flight. Requests
+ * beyond that limit are queued and sent, highest priority first, as soon as
+ * a channel of their class ends, fails or is cancelled. This keeps a large
+ * batch of image or browse requests from delaying the next audio substream.
+ *
+ * Limits can be set with the system properties {@code jotify.scheduler.audio},
+ * {@code jotify.scheduler.interactive} and {@code jotify.scheduler.background}.
+ */
+public class ChannelScheduler {
+	/**
+	 * Priority classes, highest first.
+	 */
+	public enum Priority {
+		/** Audio substreams and AES keys. */
+		AUDIO(4),
+		/** Browse, search, toplists and playlists. */
+		INTERACTIVE(8),
+		/** Images and ads. */
+		BACKGROUND(2);
+		
+		private int defaultLimit;
+		
+		private Priority(int defaultLimit){
+			this.defaultLimit = defaultLimit;
+		}
+		
+		/**
+		 * Get the priority class of a channel type.
+		 *
+		 * @param type The {@link Channel.Type}.
+		 *
+		 * @return The {@link Priority} of that type.
+		 */
+		public static Priority forType(Channel.Type type){
+			switch(type){
+				case TYPE_SUBSTREAM:
+				case TYPE_AESKEY:
+					return AUDIO;
+				case TYPE_IMAGE:
+				case TYPE_AD:
+					return BACKGROUND;
+				default:
+					return INTERACTIVE;
+			}
+		}
+	}
+	
+	/* Connection to send requests on. */
+	private Protocol protocol;
+	
+	/* Per class limits, channels in flight and queued requests. */
+	private int[]                   limits;
+	private int[]                   inFlight;
+	private LinkedList<Request>[]   queues;
+	
+	/* Whether all requests are queued, because the connection is re-established. */
+	private boolean suspended;
+	
+	/* Per class statistics: dispatched requests and time they spent queued. */
+	private long[] dispatched;
+	private long[] totalWait;
+	private long[] maxWait;
+	
+	/**
+	 * Create a new channel scheduler.
+	 *
+	 * @param protocol The {@link Protocol} to send requests on.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ChannelScheduler(Protocol protocol){
+		int n = Priority.values().length;
+		
+		this.protocol   = protocol;
+		this.suspended  = false;
+		this.limits     = new int[n];
+		this.inFlight   = new int[n];
+		this.queues     = new LinkedList[n];
+		this.dispatched = new long[n];
+		this.totalWait  = new long[n];
+		this.maxWait    = new long[n];
+		
+		for(Priority priority : Priority.values()){
+			int i = priority.ordinal();
+			
+			this.limits[i] = Integer.getInteger(
+				"jotify.scheduler." + priority.name().toLowerCase(), priority.defaultLimit
+			);
+			this.queues[i] = new LinkedList<Request>();
+		}
+	}
+	
+	/**
+	 * Send a request for a registered channel now, or queue it if its
+	 * priority class already has the maximum number of channels in flight.
+	 *
+	 * @param channel The registered {@link Channel}.
+	 * @param command The command to send.
+	 * @param payload The request payload.
+	 *
+	 * @throws ProtocolException If the request is sent immediately and sending fails.
+	 */
+	public void schedule(Channel channel, int command, ByteBuffer payload) throws ProtocolException {
+		Request request = new Request(channel, command, payload);
+		int     i       = request.priority.ordinal();
+		
+		synchronized(this){
+			/* Keep order within a class: only bypass the queue if it's empty. */
+			if(this.suspended || this.inFlight[i] >= this.limits[i] || !this.queues[i].isEmpty()){
+				this.queues[i].add(request);
+				
+				return;
+			}
+			
+			this.started(request);
+		}
+		
+		this.protocol.sendPacket(command, payload);
+	}
+	
+	/**
+	 * Set the maximum number of channels in flight for a priority class.
+	 *
+	 * @param priority The {@link Priority} class.
+	 * @param limit    The maximum number of channels in flight (at least 1).
+	 */
+	public void setLimit(Priority priority, int limit){
+		if(limit < 1){
+			throw new IllegalArgumentException("Limit needs to be at least 1.");
+		}
+		
+		synchronized(this){
+			this.limits[priority.ordinal()] = limit;
+		}
+		
+		this.dispatch();
+	}
+	
+	/**
+	 * Queue all new requests instead of sending them, e.g. while the
+	 * connection is re-established.
+	 */
+	public synchronized void suspend(){
+		this.suspended = true;
+	}
+	
+	/**
+	 * Send requests again and send the ones queued in the meantime.
+	 */
+	public void resume(){
+		synchronized(this){
+			this.suspended = false;
+		}
+		
+		this.dispatch();
+	}
+	
+	/**
+	 * Get the maximum number of channels in flight for a priority class.
+	 */
+	public synchronized int getLimit(Priority priority){
+		return this.limits[priority.ordinal()];
+	}
+	
+	/**
+	 * Get the number of channels in flight for a priority class.
+	 */
+	public synchronized int getInFlight(Priority priority){
+		return this.inFlight[priority.ordinal()];
+	}
+	
+	/**
+	 * Get the number of queued requests for a priority class.
+	 */
+	public synchronized int getQueueLength(Priority priority){
+		return this.queues[priority.ordinal()].size();
+	}
+	
+	/**
+	 * Get the number of requests sent for a priority class.
+	 */
+	public synchronized long getDispatched(Priority priority){
+		return this.dispatched[priority.ordinal()];
+	}
+	
+	/**
+	 * Get the average time requests of a priority class spent queued.
+	 *
+	 * @param priority The {@link Priority} class.
+	 * @param unit     The {@link TimeUnit} of the result.
+	 *
+	 * @return The average wait time, 0 if no request was sent yet.
+	 */
+	public synchronized long getAverageWait(Priority priority, TimeUnit unit){
+		int i = priority.ordinal();
+		
+		if(this.dispatched[i] == 0){
+			return 0;
+		}
+		
+		return unit.convert(this.totalWait[i] / this.dispatched[i], TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the longest time a request of a priority class spent queued.
+	 *
+	 * @param priority The {@link Priority} class.
+	 * @param unit     The {@link TimeUnit} of the result.
+	 *
+	 * @return The maximum wait time.
+	 */
+	public synchronized long getMaxWait(Priority priority, TimeUnit unit){
+		return unit.convert(this.maxWait[priority.ordinal()], TimeUnit.NANOSECONDS);
+	}
+	
+	/*
+	 * Called by the registry when a channel ended, failed or was cancelled.
+	 * Returns true if the channel was still queued (its request was never sent).
+	 */
+	boolean released(Channel channel){
+		int i = Priority.forType(channel.getType()).ordinal();
+		
+		synchronized(this){
+			Iterator<Request> iterator = this.queues[i].iterator();
+			
+			while(iterator.hasNext()){
+				if(iterator.next().channel == channel){
+					iterator.remove();
+					
+					return true;
+				}
+			}
+			
+			this.inFlight[i]--;
+		}
+		
+		this.dispatch();
+		
+		return false;
+	}
+	
+	/* Send queued requests as long as their classes have free slots. */
+	private void dispatch(){
+		List<Request> requests = new ArrayList<Request>();
+		
+		do{
+			requests.clear();
+			
+			synchronized(this){
+				for(int i = 0; i < this.queues.length && !this.suspended; i++){
+					while(this.inFlight[i] < this.limits[i] && !this.queues[i].isEmpty()){
+						Request request = this.queues[i].removeFirst();
+						
+						this.started(request);
+						
+						requests.add(request);
+					}
+				}
+			}
+			
+			/* Send outside of the lock, highest priority first. */
+			for(Request request : requests){
+				try{
+					this.protocol.sendPacket(request.command, request.payload);
+				}
+				catch(ProtocolException e){
+					synchronized(this){
+						this.inFlight[request.priority.ordinal()]--;
+					}
+					
+					/* Nobody is waiting for an exception, so fail the channel instead. */
+					this.protocol.getChannelRegistry().fail(request.channel);
+				}
+			}
+		}
+		while(!requests.isEmpty());
+	}
+	
+	/* Account for a request that is about to be sent. */
+	private void started(Request request){
+		int  i    = request.priority.ordinal();
+		long wait = System.nanoTime() - request.queued;
+		
+		request.channel.sent(request.command, request.payload);
+		
+		/* Time out from now on, time spent queued doesn't count. */
+		long timeout = this.protocol.getTimeout(TimeUnit.NANOSECONDS);
+		
+		if(timeout > 0){
+			ChannelTimer.getDefault().arm(request.channel, timeout, TimeUnit.NANOSECONDS);
+		}
+		
+		this.inFlight[i]++;
+		this.dispatched[i]++;
+		this.totalWait[i] += wait;
+		this.maxWait[i]    = Math.max(this.maxWait[i], wait);
+	}
+	
+	/* A channel request waiting to be sent. */
+	private static class Request {
+		private Channel    channel;
+		private int        command;
+		private ByteBuffer payload;
+		private Priority   priority;
+		private long       queued;
+		
+		private Request(Channel channel, int command, ByteBuffer payload){
+			this.channel  = channel;
+			this.command  = command;
+			this.payload  = payload;
+			this.priority = Priority.forType(channel.getType());
+			this.queued   = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires channels that stop receiving data, so no caller has to wait for
+ * a response that never comes and the channel id is released. A single
+ * thread serves all connections of the VM.
+ *
+ * Channels are kept in a hashed timing wheel: a ring of buckets, one per
+ * tick, each holding a doubly linked list of the channels due in that tick
+ * (or a multiple of the wheel length later). Arming and disarming a channel
+ * is O(1), no matter how many channels are armed, and the thread only looks
+ * at one bucket per tick. Expiry is accurate to one tick.
+ *
+ * The timeout is an idle timeout: a channel that received a packet since it
+ * was armed is re-armed for the rest of the timeout instead of expired, so
+ * long substreams don't need a generous total timeout and the packet path
+ * only stores a timestamp.
+ *
+ * Tick length and wheel size can be set with the system properties
+ * {@code jotify.timer.tick} (milliseconds, default 100) and
+ * {@code jotify.timer.wheel} (buckets, rounded up to a power of two, default 512).
+ */
+public class ChannelTimer implements Runnable {
+	/* Timer shared by all connections. */
+	private static final ChannelTimer DEFAULT = new ChannelTimer(
+		Long.getLong("jotify.timer.tick", 100), TimeUnit.MILLISECONDS,
+		Integer.getInteger("jotify.timer.wheel", 512)
+	);
+	
+	/* Bucket heads (sentinels) and mask to map ticks to buckets. */
+	private Entry[] wheel;
+	private int     mask;
+	
+	/* Tick length (nanoseconds), start time (System.nanoTime) and last processed tick. */
+	private long tickNanos;
+	private long start;
+	private long tick;
+	
+	/* Number of armed channels and the thread serving them. */
+	private int    size;
+	private Thread thread;
+	
+	/**
+	 * Get the timer shared by all connections.
+	 */
+	public static ChannelTimer getDefault(){
+		return DEFAULT;
+	}
+	
+	/**
+	 * Create a new timer. Its thread is started when the first channel is armed.
+	 *
+	 * @param tick    Length of a tick, the resolution of the timer.
+	 * @param unit    The {@link TimeUnit} of the tick.
+	 * @param buckets Number of buckets of the wheel (rounded up to a power of two).
+	 */
+	public ChannelTimer(long tick, TimeUnit unit, int buckets){
+		int n = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		
+		this.wheel     = new Entry[n];
+		this.mask      = n - 1;
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		this.start     = System.nanoTime();
+		this.tick      = 0;
+		this.size      = 0;
+		this.thread    = null;
+		
+		for(int i = 0; i < n; i++){
+			this.wheel[i] = new Entry(this, null, 0);
+			
+			this.wheel[i].prev = this.wheel[i];
+			this.wheel[i].next = this.wheel[i];
+		}
+	}
+	
+	/**
+	 * Expire a registered channel if it receives no packet for a while.
+	 * The channel is disarmed when it ends, fails or is cancelled. An
+	 * expired channel is released, aborted on the server and its listener
+	 * gets {@link ChannelListener#channelError(Channel)} with
+	 * {@link Channel#isTimedOut()} set.
+	 *
+	 * @param channel The registered {@link Channel}.
+	 * @param timeout Idle time after which the channel expires.
+	 * @param unit    The {@link TimeUnit} of the timeout.
+	 */
+	public void arm(Channel channel, long timeout, TimeUnit unit){
+		Entry entry = new Entry(this, channel, unit.toNanos(timeout));
+		
+		synchronized(this){
+			this.disarm(channel);
+			
+			this.add(entry, entry.timeout);
+			
+			channel.setTimer(entry);
+			channel.touch();
+			
+			/* Wake up the thread, it may be waiting for the first channel. */
+			if(this.thread == null){
+				this.thread = new Thread(this, "ChannelTimer");
+				
+				this.thread.setDaemon(true);
+				this.thread.start();
+			}
+			else if(this.size == 1){
+				this.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Stop watching a channel.
+	 *
+	 * @param channel The {@link Channel} to disarm.
+	 */
+	public synchronized void disarm(Channel channel){
+		Entry entry = channel.getTimer();
+		
+		if(entry == null || entry.timer != this){
+			return;
+		}
+		
+		channel.setTimer(null);
+		
+		/* Not linked if it's just being expired. */
+		if(entry.next != null){
+			this.unlink(entry);
+		}
+	}
+	
+	/**
+	 * Get the number of armed channels.
+	 */
+	public synchronized int size(){
+		return this.size;
+	}
+	
+	/**
+	 * Expire channels, one bucket per tick. Runs on the thread of the timer.
+	 */
+	public void run(){
+		List<Entry> expired = new ArrayList<Entry>();
+		
+		while(true){
+			synchronized(this){
+				try{
+					/* Nothing to do until a channel is armed. */
+					while(this.size == 0){
+						this.wait();
+						
+						this.tick = this.currentTick();
+					}
+					
+					/* Sleep until the next tick. */
+					long wait = this.start + (this.tick + 1) * this.tickNanos - System.nanoTime();
+					
+					if(wait > 0){
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+					}
+				}
+				catch(InterruptedException e){
+					this.thread = null;
+					
+					return;
+				}
+				
+				/* Collect due entries of all ticks since the last run. */
+				for(long now = this.currentTick(); this.tick < now; ){
+					Entry head = this.wheel[(int)(++this.tick & this.mask)];
+					
+					for(Entry entry = head.next; entry != head; ){
+						Entry next = entry.next;
+						
+						if(entry.deadline <= this.tick){
+							this.unlink(entry);
+							
+							expired.add(entry);
+						}
+						
+						entry = next;
+					}
+				}
+			}
+			
+			/* Expire or re-arm outside of the lock, expiring calls listeners. */
+			for(Entry entry : expired){
+				this.expire(entry);
+			}
+			
+			expired.clear();
+		}
+	}
+	
+	/* Expire a due channel, or re-arm it for the rest of its timeout if it was active meanwhile. */
+	private void expire(Entry entry){
+		Channel channel = entry.channel;
+		long    idle    = System.nanoTime() - channel.lastActivity();
+		
+		synchronized(this){
+			/* Disarmed or armed again in the meantime. */
+			if(channel.getTimer() != entry){
+				return;
+			}
+			
+			if(idle < entry.timeout){
+				this.add(entry, entry.timeout - idle);
+				
+				return;
+			}
+			
+			channel.setTimer(null);
+		}
+		
+		channel.expire();
+	}
+	
+	/* Insert an entry into the bucket of its deadline. */
+	private void add(Entry entry, long nanos){
+		long ticks = Math.max(1, (nanos + this.tickNanos - 1) / this.tickNanos);
+		
+		entry.deadline = this.currentTick() + ticks;
+		
+		Entry head = this.wheel[(int)(entry.deadline & this.mask)];
+		
+		entry.prev     = head.prev;
+		entry.next     = head;
+		head.prev.next = entry;
+		head.prev      = entry;
+		
+		this.size++;
+	}
+	
+	/* Remove an entry from its bucket. */
+	private void unlink(Entry entry){
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.prev      = null;
+		entry.next      = null;
+		
+		this.size--;
+	}
+	
+	/* Number of ticks since the timer was created. */
+	private long currentTick(){
+		return (System.nanoTime() - this.start) / this.tickNanos;
+	}
+	
+	/* An armed channel in a bucket of the wheel. */
+	static class Entry {
+		private ChannelTimer timer;
+		private Channel      channel;
+		private long         timeout;
+		private long         deadline;
+		private Entry        prev;
+		private Entry        next;
+		
+		private Entry(ChannelTimer timer, Channel channel, long timeout){
+			this.timer    = timer;
+			this.channel  = channel;
+			this.timeout  = timeout;
+			this.deadline = 0;
+			this.prev     = null;
+			this.next     = null;
+		}
+		
+		ChannelTimer getTimer(){
+			return this.timer;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link ChannelListener} that hands channel data to a reader while it
+ * arrives, instead of collecting it until the channel ends like
+ * {@link ChannelCallback}. GZIP compressed data is inflated incrementally,
+ * so a parser reading from {@link #getInputStream(long, TimeUnit)} works on
+ * the response while the rest of it is still on the network, and chunks
+ * are dropped as soon as they were consumed.
+ *
+ * Inflating and parsing happen on the thread that reads the stream, not on
+ * the thread that receives packets. The stream supports a single reader.
+ */
+public class StreamingChannelCallback implements ChannelListener {
+	/* Buffer size of the inflater. */
+	private static final int BUFFER_SIZE = 4096;
+	
+	/* Received and not yet consumed chunks. */
+	private LinkedList<byte[]> chunks;
+	private boolean            done;
+	private boolean            timedOut;
+	
+	/* Lock and condition for signalling new data. */
+	private Lock      lock;
+	private Condition changed;
+	
+	public StreamingChannelCallback(){
+		this.chunks   = new LinkedList<byte[]>();
+		this.done     = false;
+		this.timedOut = false;
+		this.lock     = new ReentrantLock();
+		this.changed  = this.lock.newCondition();
+	}
+	
+	public void channelHeader(Channel channel, byte[] header){
+		/* Ignore */
+	}
+	
+	public void channelData(Channel channel, byte[] data){
+		this.lock.lock();
+		
+		try{
+			this.chunks.add(data);
+			this.changed.signal();
+		}
+		finally{
+			this.lock.unlock();
+		}
+	}
+	
+	public void channelEnd(Channel channel){
+		this.finish(false);
+	}
+	
+	public void channelError(Channel channel){
+		this.finish(channel.isTimedOut());
+	}
+	
+	/**
+	 * Get the channel data as a stream. Blocks until the first bytes
+	 * arrived to detect GZIP compressed data, which is then inflated
+	 * while reading. Reads block until more data is available and fail
+	 * with an {@link InterruptedIOException} once the timeout expired
+	 * or the channel timed out, also after the first bytes arrived (see
+	 * {@link ChannelTimer}). Parsers must pass that on as a timeout instead
+	 * of treating it as malformed data. An error on the channel ends the
+	 * stream early.
+	 *
+	 * @param timeout Time to wait for the whole response.
+	 * @param unit    The {@link TimeUnit} of the timeout.
+	 *
+	 * @return An {@link InputStream} of the (inflated) channel data.
+	 *
+	 * @throws TimeoutException If no data arrived within the timeout.
+	 */
+	public InputStream getInputStream(long timeout, TimeUnit unit) throws TimeoutException {
+		PushbackInputStream stream = new PushbackInputStream(
+			new ChunkInputStream(System.nanoTime() + unit.toNanos(timeout)), 2
+		);
+		
+		/* Detect GZIP magic and inflate data while reading. */
+		try{
+			byte[] magic = new byte[2];
+			int    n     = 0;
+			
+			for(int read; n < 2 && (read = stream.read(magic, n, 2 - n)) != -1; n += read);
+			
+			stream.unread(magic, 0, n);
+			
+			if(n == 2 && magic[0] == (byte)0x1f && magic[1] == (byte)0x8b){
+				return new LenientInputStream(new GZIPInputStream(stream, BUFFER_SIZE));
+			}
+			
+			return stream;
+		}
+		catch(InterruptedIOException e){
+			throw new TimeoutException("Timeout while waiting for data.");
+		}
+		catch(IOException e){
+			/* Not a valid GZIP header, just return nothing. */
+			return new ByteArrayInputStream(new byte[0]);
+		}
+	}
+	
+	/* Mark end of data and wake up the reader. */
+	private void finish(boolean timedOut){
+		this.lock.lock();
+		
+		try{
+			this.done     = true;
+			this.timedOut = timedOut;
+			this.changed.signalAll();
+		}
+		finally{
+			this.lock.unlock();
+		}
+	}
+	
+	/* Reads the received chunks in order, waiting for more until the channel ends. */
+	private class ChunkInputStream extends InputStream {
+		private long   deadline;
+		private byte[] chunk;
+		private int    position;
+		
+		private ChunkInputStream(long deadline){
+			this.deadline = deadline;
+			this.chunk    = null;
+			this.position = 0;
+		}
+		
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			
+			return (this.read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0){
+				return 0;
+			}
+			
+			/* Get next chunk if the current one is consumed. */
+			if(this.chunk == null || this.position == this.chunk.length){
+				if(!this.next()){
+					return -1;
+				}
+			}
+			
+			len = Math.min(len, this.chunk.length - this.position);
+			
+			System.arraycopy(this.chunk, this.position, b, off, len);
+			
+			this.position += len;
+			
+			return len;
+		}
+		
+		public int available(){
+			return (this.chunk == null) ? 0 : this.chunk.length - this.position;
+		}
+		
+		/* Wait for the next chunk. Returns false at the end of data. */
+		private boolean next() throws IOException {
+			StreamingChannelCallback callback = StreamingChannelCallback.this;
+			
+			callback.lock.lock();
+			
+			try{
+				while(callback.chunks.isEmpty()){
+					if(callback.timedOut){
+						throw new InterruptedIOException("Timeout while waiting for data.");
+					}
+					
+					if(callback.done){
+						return false;
+					}
+					
+					long remaining = this.deadline - System.nanoTime();
+					
+					if(remaining <= 0){
+						throw new InterruptedIOException("Timeout while waiting for data.");
+					}
+					
+					callback.changed.awaitNanos(remaining);
+				}
+				
+				this.chunk    = callback.chunks.removeFirst();
+				this.position = 0;
+				
+				return true;
+			}
+			catch(InterruptedException e){
+				throw new InterruptedIOException("Interrupted while waiting for data.");
+			}
+			finally{
+				callback.lock.unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Ends the stream instead of failing on truncated GZIP data,
+	 * like GZIP.inflate returns what was inflated so far.
+	 */
+	private static class LenientInputStream extends FilterInputStream {
+		private LenientInputStream(InputStream in){
+			super(in);
+		}
+		
+		public int read() throws IOException {
+			try{
+				return super.read();
+			}
+			catch(EOFException e){
+				return -1;
+			}
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			try{
+				return super.read(b, off, len);
+			}
+			catch(EOFException e){
+				return -1;
+			}
+		}
+	}
+}
@@ -2,7 +2,9 @@ package de.felixbruns.jotify.util;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -17,14 +19,61 @@ import javax.naming.directory.InitialDirContext;
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class DNS {
+	/*
+	 * JNDI doesn't expose record TTLs, so SRV answers are cached for a fixed
+	 * time, configurable via the 'jotify.dns.ttl' system property (seconds).
+	 */
+	private static final long SRV_TTL = Long.getLong("jotify.dns.ttl", 300) * 1000;
+	
+	/* Cached SRV answers by name. */
+	private static Map<String, CacheEntry> srvCache = new HashMap<String, CacheEntry>();
+	
 	/**
-	 * Perform a DNS SRV lookup for the specified name.
+	 * Perform a DNS SRV lookup for the specified name. Non-empty
+	 * answers are cached (see 'jotify.dns.ttl' system property).
 	 * 
 	 * @param name The name to lookup.
 	 * 
-	 * @return A {@link List} of {@link InetSocketAddress} objects.
+	 * @return A new, modifiable {@link List} of {@link InetSocketAddress} objects.
 	 */
 	public static List<InetSocketAddress> lookupSRV(String name){
+		CacheEntry entry;
+		
+		/* Return cached answer if it didn't expire yet. */
+		synchronized(srvCache){
+			entry = srvCache.get(name);
+			
+			if(entry != null && entry.expires > System.currentTimeMillis()){
+				return new ArrayList<InetSocketAddress>(entry.addresses);
+			}
+		}
+		
+		/* Perform lookup and cache non-empty answers. */
+		List<InetSocketAddress> addresses = querySRV(name);
+		
+		if(!addresses.isEmpty() && SRV_TTL > 0){
+			synchronized(srvCache){
+				srvCache.put(name, new CacheEntry(
+					new ArrayList<InetSocketAddress>(addresses),
+					System.currentTimeMillis() + SRV_TTL
+				));
+			}
+		}
+		
+		return addresses;
+	}
+	
+	/**
+	 * Remove all cached SRV answers.
+	 */
+	public static void clearCache(){
+		synchronized(srvCache){
+			srvCache.clear();
+		}
+	}
+	
+	/* Perform a DNS SRV lookup without using the cache. */
+	private static List<InetSocketAddress> querySRV(String name){
 		/* Create list to return later. */
 		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
 		
@@ -68,4 +117,15 @@ public class DNS {
 		/* Return list of addresses. */
 		return addresses;
 	}
+	
+	/* A cached SRV answer. */
+	private static class CacheEntry {
+		private List<InetSocketAddress> addresses;
+		private long                    expires;
+		
+		private CacheEntry(List<InetSocketAddress> addresses, long expires){
+			this.addresses = addresses;
+			this.expires   = expires;
+		}
+	}
 }
@@ -0,0 +1,126 @@
+package de.felixbruns.jotify.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two buckets in microseconds:
+ * bucket i counts values in [2^(i-1), 2^i) microseconds, bucket 0 counts
+ * values below one microsecond. Recording a value costs a few atomic adds,
+ * so it's cheap enough to record every request. Percentiles are reported
+ * as the upper bound of their bucket, so they're exact to a factor of two.
+ */
+public class LatencyHistogram {
+	/* Number of buckets, the last one catches everything above 2^38 us (~3 days). */
+	private static final int BUCKETS = 40;
+	
+	private AtomicLongArray buckets;
+	private AtomicLong      count;
+	private AtomicLong      sum;
+	private AtomicLong      max;
+	
+	/**
+	 * Create a new, empty histogram.
+	 */
+	public LatencyHistogram(){
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count   = new AtomicLong(0);
+		this.sum     = new AtomicLong(0);
+		this.max     = new AtomicLong(0);
+	}
+	
+	/**
+	 * Record a value.
+	 *
+	 * @param nanos The value in nanoseconds, negative values are recorded as 0.
+	 */
+	public void record(long nanos){
+		long micros = Math.max(nanos, 0) / 1000;
+		int  bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.sum.addAndGet(micros);
+		
+		/* Only contended while a new maximum is being set. */
+		for(long current; micros > (current = this.max.get());){
+			if(this.max.compareAndSet(current, micros)){
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of recorded values.
+	 */
+	public long getCount(){
+		return this.count.get();
+	}
+	
+	/**
+	 * Get the mean of the recorded values.
+	 *
+	 * @param unit The {@link TimeUnit} of the result.
+	 *
+	 * @return The mean value, 0 if nothing was recorded.
+	 */
+	public long getMean(TimeUnit unit){
+		long count = this.count.get();
+		
+		if(count == 0){
+			return 0;
+		}
+		
+		return unit.convert(this.sum.get() / count, TimeUnit.MICROSECONDS);
+	}
+	
+	/**
+	 * Get the largest recorded value.
+	 *
+	 * @param unit The {@link TimeUnit} of the result.
+	 *
+	 * @return The maximum value, 0 if nothing was recorded.
+	 */
+	public long getMax(TimeUnit unit){
+		return unit.convert(this.max.get(), TimeUnit.MICROSECONDS);
+	}
+	
+	/**
+	 * Get an upper bound of a percentile of the recorded values.
+	 *
+	 * @param percentile The percentile (between 0 and 100).
+	 * @param unit       The {@link TimeUnit} of the result.
+	 *
+	 * @return The upper bound of the bucket that holds the percentile,
+	 *         at most the maximum value, 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile, TimeUnit unit){
+		long[] counts = new long[BUCKETS];
+		long   total  = 0;
+		
+		/* Buckets may change while we read them, so sum up our own copy. */
+		for(int i = 0; i < BUCKETS; i++){
+			counts[i] = this.buckets.get(i);
+			total    += counts[i];
+		}
+		
+		if(total == 0){
+			return 0;
+		}
+		
+		long rank = (long)Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100.0);
+		long seen = 0;
+		int  i    = 0;
+		
+		for(; i < BUCKETS - 1; i++){
+			if((seen += counts[i]) >= rank && seen > 0){
+				break;
+			}
+		}
+		
+		long bound = Math.min((1L << i) - 1, this.max.get());
+		
+		return unit.convert(bound, TimeUnit.MICROSECONDS);
+	}
+}
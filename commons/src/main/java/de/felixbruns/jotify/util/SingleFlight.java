@@ -0,0 +1,114 @@
+package de.felixbruns.jotify.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the
+ * request, callers arriving while it is in flight wait for it (at most for
+ * their own timeout) and get the very same result (or exception). Nothing
+ * is cached, the key is forgotten as soon as the request finished.
+ *
+ * Keys have to identify the request type and all of its parameters.
+ * Results are not copied but shared between threads, so they have to be
+ * treated as read-only by every caller.
+ */
+public class SingleFlight<K> {
+	/* Requests in flight. */
+	private ConcurrentMap<K, FutureTask<?>> calls;
+	
+	/* Number of calls that were answered by another call's request. */
+	private AtomicLong shared;
+	
+	/**
+	 * Create a new, empty request coalescer.
+	 */
+	public SingleFlight(){
+		this.calls  = new ConcurrentHashMap<K, FutureTask<?>>();
+		this.shared = new AtomicLong(0);
+	}
+	
+	/**
+	 * Run a request, or wait for the identical request already in flight.
+	 * The request itself runs on the calling thread and is bound by its own
+	 * timeouts, a caller waiting for another caller's request gives up once
+	 * the given timeout expired.
+	 *
+	 * @param key     A key identifying the request and its parameters.
+	 * @param request The request to run if none with that key is in flight.
+	 * @param timeout Time to wait for a request in flight.
+	 * @param unit    The {@link TimeUnit} of the timeout.
+	 *
+	 * @return The result of the request, null if the waiting thread got interrupted.
+	 *
+	 * @throws TimeoutException If the request timed out or didn't finish in time.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V execute(K key, Callable<V> request, long timeout, TimeUnit unit) throws TimeoutException {
+		FutureTask<V> task = new FutureTask<V>(request);
+		FutureTask<V> call = (FutureTask<V>)this.calls.putIfAbsent(key, task);
+		
+		/* No identical request in flight, run it on this thread. */
+		if(call == null){
+			try{
+				task.run();
+			}
+			finally{
+				this.calls.remove(key, task);
+			}
+			
+			call = task;
+		}
+		else{
+			this.shared.incrementAndGet();
+		}
+		
+		try{
+			return call.get(timeout, unit);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			
+			return null;
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			
+			if(cause instanceof TimeoutException){
+				throw new TimeoutException(cause.getMessage());
+			}
+			else if(cause instanceof RuntimeException){
+				throw (RuntimeException)cause;
+			}
+			else if(cause instanceof Error){
+				throw (Error)cause;
+			}
+			
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	/**
+	 * Get the number of requests currently in flight.
+	 *
+	 * @return The number of requests in flight.
+	 */
+	public int size(){
+		return this.calls.size();
+	}
+	
+	/**
+	 * Get the number of calls that didn't send their own request.
+	 *
+	 * @return The number of coalesced calls.
+	 */
+	public long getShared(){
+		return this.shared.get();
+	}
+}
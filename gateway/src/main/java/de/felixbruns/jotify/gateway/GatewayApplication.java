@@ -9,16 +9,28 @@ import java.util.concurrent.Executors;
 
 import com.sun.net.httpserver.HttpServer;
 
+import de.felixbruns.jotify.crypto.KeyMaterialPool;
 import de.felixbruns.jotify.gateway.handlers.*;
+import de.felixbruns.jotify.protocol.Reactor;
 
 public class GatewayApplication {
 	public static Map<String, GatewayConnection> sessions;
 	public static ExecutorService                executor;
+	public static Reactor                        reactor;
 	
 	/* Statically create session map and executor for sessions. */
 	static {
 		sessions = new HashMap<String, GatewayConnection>();
 		executor = Executors.newCachedThreadPool();
+		
+		/*
+		 * Receive packets of all sessions on a few reactor threads if set.
+		 * Defaults to 0, a thread per session, so one session's listeners
+		 * can't stall the others if they block.
+		 */
+		int threads = Integer.getInteger("jotify.reactor.threads", 0);
+		
+		reactor = (threads > 0) ? new Reactor(threads) : null;
 	}
 	
 	/* Main thread to listen for client connections. */
@@ -29,6 +41,9 @@ public class GatewayApplication {
 			port = Integer.parseInt(args[0]);
 		}
 		
+		/* Generate key pairs for the first logins while starting up. */
+		KeyMaterialPool.getDefault().prefill();
+		
 		/* Create a HTTP server that listens for connections on port 8080 or the given port. */
 		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 		
@@ -36,7 +51,7 @@ public class GatewayApplication {
 		server.createContext("/",       new ContentHandler());
 		server.createContext("/images", new ContentHandler());
 		server.createContext("/js",     new ContentHandler());
-
+		
 		/* Set up gateway handlers. */
 		server.createContext("/start",     new StartHandler());
 		server.createContext("/check",     new CheckHandler());
@@ -50,6 +65,7 @@ public class GatewayApplication {
 		server.createContext("/playlist",  new PlaylistHandler());
 		server.createContext("/playlists", new PlaylistsHandler());
 		server.createContext("/stream",    new StreamHandler());
+		server.createContext("/metrics",   new MetricsHandler());
 		
 		/* Play on server. */
 		server.createContext("/play",   new PlayHandler());
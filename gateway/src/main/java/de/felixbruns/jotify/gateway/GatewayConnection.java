@@ -1,6 +1,7 @@
 package de.felixbruns.jotify.gateway;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.*;
@@ -10,7 +11,6 @@ import javax.sound.sampled.LineUnavailableException;
 import com.sun.net.httpserver.HttpExchange;
 
 import de.felixbruns.jotify.cache.*;
-import de.felixbruns.jotify.crypto.RSA;
 import de.felixbruns.jotify.exceptions.*;
 import de.felixbruns.jotify.gateway.stream.ChannelStreamer;
 import de.felixbruns.jotify.media.*;
@@ -18,6 +18,7 @@ import de.felixbruns.jotify.media.parser.*;
 import de.felixbruns.jotify.player.*;
 import de.felixbruns.jotify.protocol.*;
 import de.felixbruns.jotify.protocol.channel.*;
+import de.felixbruns.jotify.util.SingleFlight;
 
 public class GatewayConnection implements Runnable, CommandListener, Player {
 	private Session      session;
@@ -29,6 +30,21 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	private TimeUnit     unit;
 	private GatewayPlayer player;
 	
+	/* Gets the connection back when it's lost (created when receiving starts). */
+	private Reconnector reconnector;
+	
+	/* Handles incoming commands (created on login). */
+	private CommandDispatcher dispatcher;
+	
+	/*
+	 * Identical toplist, search, image and browse requests in flight,
+	 * shared between all sessions. Toplists and search results depend
+	 * on the catalogue, so they're keyed by country. Each session waits
+	 * for another one's request at most for its own timeout, results
+	 * are handed out as they are and only written to clients.
+	 */
+	private static final SingleFlight<String> REQUESTS = new SingleFlight<String>();
+	
 	/**
 	 * Enum for browsing media.
 	 */
@@ -86,6 +102,9 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 		this.unit     = unit;
 		this.player   = null;
 		
+		this.reconnector = null;
+		this.dispatcher  = null;
+		
 		/* Acquire permits (country, prodinfo). */
 		this.wait.acquireUninterruptibly(2);
 	}
@@ -99,6 +118,21 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	public void setTimeout(long timeout, TimeUnit unit){
 		this.timeout = timeout;
 		this.unit    = unit;
+		
+		if(this.protocol != null){
+			this.protocol.setTimeout(timeout, unit);
+		}
+	}
+	
+	/**
+	 * Get the round trip time, failures and health score of the connection.
+	 * 
+	 * @return The {@link ConnectionHealth} or null if not logged in.
+	 */
+	public ConnectionHealth getHealth(){
+		Protocol protocol = this.protocol;
+		
+		return (protocol != null) ? protocol.getHealth() : null;
 	}
 	
 	/**
@@ -126,7 +160,12 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 		this.player = new GatewayPlayer(this.protocol);
 		
 		/* Add command handler. */
-		this.protocol.addListener(this);
+		this.dispatcher = this.createDispatcher();
+		
+		this.protocol.addPacketListener(this.dispatcher);
+		
+		/* Expire channels that are idle longer than our timeout, they count as timeouts. */
+		this.protocol.setTimeout(this.timeout, this.unit);
 	}
 	
 	/**
@@ -135,6 +174,11 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 *  @throws ConnectionException
 	 */
 	public void close() throws ConnectionException {
+		/* Don't try to get the connection back. */
+		if(this.reconnector != null){
+			this.reconnector.close();
+		}
+		
 		/* This will make receivePacket return immediately. */
 		if(this.protocol != null){
 			this.protocol.disconnect();
@@ -154,15 +198,44 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 			throw new IllegalStateException("You need to login first!");
 		}
 		
-		/* Continuously receive packets until connection is closed. */
-		try{
-			while(true){
-				this.protocol.receivePacket();
+		this.reconnector = new Reconnector(this.session, null);
+		
+		/* Continuously receive packets until connection is closed and can't be re-established. */
+		while(true){
+			Protocol protocol = this.protocol;
+			
+			if(protocol == null){
+				break;
+			}
+			
+			try{
+				protocol.receivePacket();
+			}
+			catch(ProtocolException e){
+				if(!this.reconnector.reconnect()){
+					break;
+				}
 			}
 		}
-		catch(ProtocolException e){
-			/* Connection was closed. */
+	}
+	
+	/**
+	 *  Receive packets on a shared {@link Reactor} instead of
+	 *  running this connection on its own {@link Thread}.
+	 *  
+	 *  @param reactor The {@link Reactor} to register with.
+	 *  
+	 *  @throws ConnectionException
+	 */
+	public void register(Reactor reactor) throws ConnectionException {
+		/* Check if we're logged in. */
+		if(this.protocol == null){
+			throw new IllegalStateException("You need to login first!");
 		}
+		
+		this.reconnector = new Reconnector(this.session, reactor);
+		
+		reactor.register(this.protocol);
 	}
 	
 	/**
@@ -207,7 +280,20 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 * 
 	 * @return A xml string.
 	 */
-	public String toplist(String type, String region, String username) throws TimeoutException {
+	public String toplist(final String type, final String region, final String username) throws TimeoutException {
+		return REQUESTS.execute(
+			"toplist:" + this.user.getCountry() + ":" + type + ":" + region + ":" + username,
+			new Callable<String>(){
+				public String call() throws TimeoutException {
+					return requestToplist(type, region, username);
+				}
+			},
+			this.timeout, this.unit
+		);
+	}
+	
+	/* Fetch a toplist without coalescing. */
+	private String requestToplist(String type, String region, String username) throws TimeoutException {
 		/* Create channel callback and parameter map. */
 		ChannelCallback callback   = new ChannelCallback();
 		Map<String, String> params = new HashMap<String, String>();
@@ -239,7 +325,20 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 * 
 	 * @return A xml string.
 	 */
-	public String search(String query) throws TimeoutException {
+	public String search(final String query) throws TimeoutException {
+		return REQUESTS.execute(
+			"search:" + this.user.getCountry() + ":" + query,
+			new Callable<String>(){
+				public String call() throws TimeoutException {
+					return requestSearch(query);
+				}
+			},
+			this.timeout, this.unit
+		);
+	}
+	
+	/* Search without coalescing. */
+	private String requestSearch(String query) throws TimeoutException {
 		/* Create channel callback */
 		ChannelCallback callback = new ChannelCallback();
 		
@@ -266,7 +365,20 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 * 
 	 * @return An array of bytes.
 	 */
-	public byte[] image(String id) throws TimeoutException {
+	public byte[] image(final String id) throws TimeoutException {
+		return REQUESTS.execute(
+			"image:" + id,
+			new Callable<byte[]>(){
+				public byte[] call() throws TimeoutException {
+					return requestImage(id);
+				}
+			},
+			this.timeout, this.unit
+		);
+	}
+	
+	/* Get an image without coalescing. */
+	private byte[] requestImage(String id) throws TimeoutException {
 		/* Data buffer. */
 		byte[] data;
 		
@@ -309,7 +421,20 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 * 
 	 * @see BrowseType
 	 */
-	public String browse(BrowseType type, String id) throws TimeoutException {
+	public String browse(final BrowseType type, final String id) throws TimeoutException {
+		return REQUESTS.execute(
+			"browse:" + type.getValue() + ":" + id,
+			new Callable<String>(){
+				public String call() throws TimeoutException {
+					return requestBrowse(type, id);
+				}
+			},
+			this.timeout, this.unit
+		);
+	}
+	
+	/* Browse without coalescing. */
+	private String requestBrowse(BrowseType type, String id) throws TimeoutException {
 		/* Create channel callback */
 		ChannelCallback callback = new ChannelCallback();
 		
@@ -444,100 +569,67 @@ public class GatewayConnection implements Runnable, CommandListener, Player {
 	 * 
 	 * @param command A command.
 	 * @param payload Payload of packet.
+	 * 
+	 * @deprecated Commands are handled by a {@link CommandDispatcher} that is added
+	 *             to the protocol on login, this just hands the packet to it. Don't
+	 *             add the connection as a listener as well, or packets are handled twice.
 	 */
+	@Deprecated
 	public void commandReceived(int command, byte[] payload){
-		switch(command){
-			case Command.COMMAND_SECRETBLK: {
-				/* Check length. */
-				if(payload.length != 336){
-					System.err.format("Got command 0x02 with len %d, expected 336!\n", payload.length);
-				}
-				
-				/* Check RSA public key. */
-				byte[] rsaPublicKey = RSA.keyToBytes(this.session.getRSAPublicKey());
-				
-				for(int i = 0; i < 128; i++){
-					if(payload[16 + i] != rsaPublicKey[i]){
-						System.err.format("RSA public key doesn't match! %d\n", i);
-						
-						break;
-					}
-				}
-				
-				/* Send cache hash. */
-				try{
-					this.protocol.sendCacheHash();
-				}
-				catch(ProtocolException e){
-					/* Just don't care. */
-				}
-				
-				break;
-			}
-			case Command.COMMAND_PING: {
-				/* Ignore the timestamp but respond to the request. */
-				/* int timestamp = IntegerUtilities.bytesToInteger(payload); */
-				try{
-					this.protocol.sendPong();
-				}
-				catch(ProtocolException e){
-					/* Just don't care. */
-				}
-				
-				break;
-			}
-			case Command.COMMAND_CHANNELDATA: {
-				Channel.process(payload);
-				
-				break;
-			}
-			case Command.COMMAND_CHANNELERR: {
-				Channel.error(payload);
-				
-				break;
-			}
-			case Command.COMMAND_AESKEY: {
-				/* Channel id is at offset 2. AES Key is at offset 4. */
-				Channel.process(Arrays.copyOfRange(payload, 2, payload.length));
-				
-				break;
-			}
-			case Command.COMMAND_COUNTRYCODE: {
-				this.user.setCountry(new String(payload, Charset.forName("UTF-8")));
+		if(this.dispatcher != null){
+			this.dispatcher.packetReceived(command, ByteBuffer.wrap(payload));
+		}
+	}
+	
+	/**
+	 * Create a dispatcher for incoming commands from the server.
+	 * 
+	 * @return A {@link CommandDispatcher} with this connection's handlers installed.
+	 */
+	private CommandDispatcher createDispatcher(){
+		CommandDispatcher dispatcher = new CommandDispatcher(this.protocol, this.session);
+		
+		dispatcher.setHandler(Command.COMMAND_COUNTRYCODE, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				GatewayConnection.this.user.setCountry(Charset.forName("UTF-8").decode(payload).toString());
 				
 				/* Release 'country' permit. */
-				this.wait.release();
-				
-				break;
+				GatewayConnection.this.wait.release();
 			}
-			case Command.COMMAND_NOTIFY: {
+		});
+		
+		dispatcher.setHandler(Command.COMMAND_NOTIFY, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
 				/* HTML-notification, shown in a yellow bar in the official client. */
 				/* Skip 11 byte header... */
-				this.user.setNotification(new String(
-					Arrays.copyOfRange(payload, 11, payload.length), Charset.forName("UTF-8")
-				));
+				payload.position(payload.position() + 11);
 				
-				break;
+				GatewayConnection.this.user.setNotification(Charset.forName("UTF-8").decode(payload).toString());
 			}
-			case Command.COMMAND_PRODINFO: {
-				this.user = XMLUserParser.parseUser(payload, "UTF-8", this.user);
+		});
+		
+		dispatcher.setHandler(Command.COMMAND_PRODINFO, new PacketListener(){
+			public void packetReceived(int command, ByteBuffer payload){
+				GatewayConnection connection = GatewayConnection.this;
+				byte[]            data       = new byte[payload.remaining()];
+				
+				payload.get(data);
+				
+				connection.user = XMLUserParser.parseUser(data, "UTF-8", connection.user);
 				
 				/* Release 'prodinfo' permit. */
-				this.wait.release();
+				connection.wait.release();
 				
 				/* Payload is uncompressed XML. */
-				if(!this.user.isPremium()){
+				if(!connection.user.isPremium()){
 					System.err.println(
 						"Sorry, you need a premium account to use jotify (this is a restriction by Spotify)."
 					);
 				}
-				
-				break;
-			}
-			default: {
-				break;
 			}
-		}
+		});
+		
+		return dispatcher;
 	}
 	
 	public int length(){
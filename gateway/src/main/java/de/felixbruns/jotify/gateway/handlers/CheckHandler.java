@@ -1,9 +1,11 @@
 package de.felixbruns.jotify.gateway.handlers;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import de.felixbruns.jotify.gateway.GatewayApplication;
 import de.felixbruns.jotify.gateway.GatewayHandler;
+import de.felixbruns.jotify.protocol.ConnectionHealth;
 
 public class CheckHandler extends GatewayHandler {
 	public String handle(Map<String, String> params){
@@ -11,9 +13,25 @@ public class CheckHandler extends GatewayHandler {
 		if(params.containsKey("session")){
 			String session = params.get("session");
 			
-			/* Check if session is valid. */
+			/* Check if session is valid, report connection health for routing. */
 			if(GatewayApplication.sessions.containsKey(session)){
-				return "<session>" + session + "</session>";
+				ConnectionHealth health = GatewayApplication.sessions.get(session).getHealth();
+				
+				if(health == null){
+					return "<session>" + session + "</session>";
+				}
+				
+				StringBuilder builder = new StringBuilder();
+				
+				builder.append("<session");
+				builder.append(" score=\"").append(Math.round(health.getScore() * 100) / 100.0).append("\"");
+				builder.append(" rtt=\"").append(health.getRoundTripTime(TimeUnit.MILLISECONDS)).append("\"");
+				builder.append(" response=\"").append(health.getResponseTime(TimeUnit.MILLISECONDS)).append("\"");
+				builder.append(" errors=\"").append(health.getChannelErrors()).append("\"");
+				builder.append(" timeouts=\"").append(health.getTimeouts()).append("\"");
+				builder.append(">").append(session).append("</session>");
+				
+				return builder.toString();
 			}
 			else{
 				return "<error>Session not found!</error>";
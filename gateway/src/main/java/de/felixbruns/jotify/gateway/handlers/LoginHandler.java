@@ -30,9 +30,16 @@ public class LoginHandler extends GatewayHandler {
 				random         = Hash.sha1(random);
 				String session = Hex.toHex(random);
 				
+				/* Receive packets on the shared reactor or on a separate thread. */
+				if(GatewayApplication.reactor != null){
+					jotify.register(GatewayApplication.reactor);
+				}
+				else{
+					GatewayApplication.executor.execute(jotify);
+				}
+				
 				/* Add session to map. */
 				GatewayApplication.sessions.put(session, jotify);
-				GatewayApplication.executor.execute(jotify);
 				
 				return "<session>" + session + "</session>";
 			}
@@ -0,0 +1,92 @@
+package de.felixbruns.jotify.gateway.handlers;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.felixbruns.jotify.gateway.GatewayApplication;
+import de.felixbruns.jotify.gateway.GatewayHandler;
+import de.felixbruns.jotify.protocol.ChannelMetrics;
+import de.felixbruns.jotify.protocol.ProtocolMetrics;
+import de.felixbruns.jotify.protocol.channel.Channel;
+import de.felixbruns.jotify.util.LatencyHistogram;
+
+public class MetricsHandler extends GatewayHandler {
+	public String handle(Map<String, String> params){
+		ProtocolMetrics metrics = ProtocolMetrics.getDefault();
+		StringBuilder   builder = new StringBuilder();
+		
+		builder.append("<metrics>");
+		builder.append("<sessions>").append(GatewayApplication.sessions.size()).append("</sessions>");
+		
+		/* Traffic totals. */
+		builder.append("<traffic");
+		builder.append(" packets-received=\"").append(metrics.getPacketsReceived()).append("\"");
+		builder.append(" packets-sent=\"").append(metrics.getPacketsSent()).append("\"");
+		builder.append(" bytes-received=\"").append(metrics.getBytesReceived()).append("\"");
+		builder.append(" bytes-sent=\"").append(metrics.getBytesSent()).append("\"");
+		builder.append(" open-channels=\"").append(metrics.getOpenChannels()).append("\"");
+		builder.append("/>");
+		
+		/* Traffic per command, only commands that were seen. */
+		builder.append("<commands>");
+		
+		for(int command = 0; command < 256; command++){
+			long packetsReceived = metrics.getPacketsReceived(command);
+			long packetsSent     = metrics.getPacketsSent(command);
+			
+			if(packetsReceived == 0 && packetsSent == 0){
+				continue;
+			}
+			
+			builder.append("<command");
+			builder.append(" name=\"").append(ProtocolMetrics.getCommandName(command)).append("\"");
+			builder.append(" packets-received=\"").append(packetsReceived).append("\"");
+			builder.append(" packets-sent=\"").append(packetsSent).append("\"");
+			builder.append(" bytes-received=\"").append(metrics.getBytesReceived(command)).append("\"");
+			builder.append(" bytes-sent=\"").append(metrics.getBytesSent(command)).append("\"");
+			builder.append("/>");
+		}
+		
+		builder.append("</commands>");
+		
+		/* Channels and latencies (in milliseconds) per type. */
+		builder.append("<channels>");
+		
+		for(Channel.Type type : Channel.Type.values()){
+			ChannelMetrics channels = metrics.getChannelMetrics(type);
+			
+			builder.append("<channel");
+			builder.append(" type=\"").append(channels.getType()).append("\"");
+			builder.append(" opened=\"").append(channels.getOpened()).append("\"");
+			builder.append(" ended=\"").append(channels.getEnded()).append("\"");
+			builder.append(" failed=\"").append(channels.getFailed()).append("\"");
+			builder.append(" cancelled=\"").append(channels.getCancelled()).append("\"");
+			builder.append(" open=\"").append(channels.getOpen()).append("\"");
+			builder.append(">");
+			
+			this.appendHistogram(builder, "first-packet", channels.getFirstPacketHistogram());
+			this.appendHistogram(builder, "duration", channels.getDurationHistogram());
+			
+			builder.append("</channel>");
+		}
+		
+		builder.append("</channels>");
+		builder.append("</metrics>");
+		
+		return builder.toString();
+	}
+	
+	/* Append count, mean, percentiles and maximum of a histogram in milliseconds. */
+	private void appendHistogram(StringBuilder builder, String name, LatencyHistogram histogram){
+		TimeUnit unit = TimeUnit.MILLISECONDS;
+		
+		builder.append("<").append(name);
+		builder.append(" count=\"").append(histogram.getCount()).append("\"");
+		builder.append(" mean=\"").append(histogram.getMean(unit)).append("\"");
+		builder.append(" p50=\"").append(histogram.getPercentile(50, unit)).append("\"");
+		builder.append(" p90=\"").append(histogram.getPercentile(90, unit)).append("\"");
+		builder.append(" p99=\"").append(histogram.getPercentile(99, unit)).append("\"");
+		builder.append(" max=\"").append(histogram.getMax(unit)).append("\"");
+		builder.append("/>");
+	}
+}
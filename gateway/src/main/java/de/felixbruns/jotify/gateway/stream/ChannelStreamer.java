@@ -7,6 +7,7 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedList;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -26,7 +27,27 @@ import de.felixbruns.jotify.protocol.Protocol;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
 
+/**
+ * Streams a track to a HTTP client, one substream after another. Listener
+ * callbacks only queue what they get, because they may run on a shared
+ * {@link de.felixbruns.jotify.protocol.Reactor} thread. Each stream has a
+ * writer thread that decrypts the queued data, writes it to the client
+ * and caches and requests substreams, so a slow client or disk only
+ * holds up its own stream.
+ */
 public class ChannelStreamer implements ChannelListener {
+	/*
+	 * Bytes a stream may have queued for its writer. The next substream is
+	 * only requested when the writer is done with the last one, so at most
+	 * one (100 KB) is queued unless the server sends more than it was asked.
+	 */
+	private static final int QUEUE_LIMIT = 256 * 1024;
+	
+	/* Queued in place of data when a substream starts, ends or fails. */
+	private static final byte[] HEADER = new byte[0];
+	private static final byte[] END    = new byte[0];
+	private static final byte[] ERROR  = new byte[0];
+	
 	/* Decryption stuff. */
 	private Cipher cipher;
 	private Key    key;
@@ -41,6 +62,12 @@ public class ChannelStreamer implements ChannelListener {
 	private SpotifyOggHeader header;
 	private HttpExchange     exchange;
 	private OutputStream     output;
+	private volatile Channel channel;
+	private volatile boolean isClosed;
+	
+	/* Data waiting for the writer thread, guarded by 'this'. */
+	private LinkedList<byte[]> queue;
+	private int                queueSize;
 	
 	/* Caching of substreams. */
 	private SubstreamCache cache;
@@ -52,7 +79,9 @@ public class ChannelStreamer implements ChannelListener {
 		/* Set output stream and cache. */
 		this.exchange = exchange;
 		this.output   = exchange.getResponseBody();
+		this.isClosed = false;
 		this.cache    = new SubstreamCache();
+		this.queue    = new LinkedList<byte[]>();
 		
 		/* Get AES cipher instance. */
 		try {
@@ -100,6 +129,12 @@ public class ChannelStreamer implements ChannelListener {
 		/* Header and semaphore to wait on. */
 		this.header = null;
 		
+		/* Start writer before the first substream arrives. */
+		Thread writer = new Thread(new Writer(), "Channel-Streamer");
+		
+		writer.setDaemon(true);
+		writer.start();
+		
 		/* Send first substream request. */
 		String hash = this.cache.hash(this.track, this.channelOffset, this.channelLength);
 		
@@ -111,18 +146,67 @@ public class ChannelStreamer implements ChannelListener {
 				this.protocol.sendSubstreamRequest(this, this.track, this.track.getFile(File.BITRATE_160), this.channelOffset, this.channelLength);
 			}
 			catch(ProtocolException e){
-				return;
+				/* Let the writer end the response. */
+				this.enqueue(null, ERROR);
 			}
 		}
 	}
 	
 	public void channelHeader(Channel channel, byte[] header){
-		this.cacheData = new byte[this.channelLength];
+		this.channel = channel;
 		
-		this.channelTotal = 0;
+		this.enqueue(channel, HEADER);
 	}
 	
 	public void channelData(Channel channel, byte[] data){
+		/* Client is gone, drop anything that still arrives. */
+		if(this.isClosed){
+			channel.cancel();
+			
+			return;
+		}
+		
+		this.enqueue(channel, data);
+	}
+	
+	public void channelEnd(Channel channel){
+		this.enqueue(channel, END);
+	}
+	
+	public void channelError(Channel channel){
+		/* Don't leave the client and the writer waiting for data that won't come. */
+		this.enqueue(channel, ERROR);
+	}
+	
+	/* Queue data for the writer, giving up on the stream if too much piles up. */
+	private synchronized void enqueue(Channel channel, byte[] data){
+		if(this.isClosed){
+			return;
+		}
+		
+		if(this.queueSize + data.length > QUEUE_LIMIT){
+			System.err.println("Stream queue is full, closing stream.");
+			
+			this.isClosed = true;
+			
+			channel.cancel();
+			
+			this.queue.clear();
+			this.queue.add(ERROR);
+			
+			this.queueSize = 0;
+		}
+		else{
+			this.queue.add(data);
+			
+			this.queueSize += data.length;
+		}
+		
+		this.notifyAll();
+	}
+	
+	/* Decrypt data and write it to the client. Returns false if the client is gone. */
+	private boolean write(byte[] data){
 		/* Offsets needed for deinterleaving. */
 		int off, w, x, y, z;
 		
@@ -173,7 +257,7 @@ public class ChannelStreamer implements ChannelListener {
 				for(int j = 0; j < 16; j++){
 					ciphertext[block * 1024 + i + j] ^= keystream[j] ^ this.iv[j];
 				}
-
+				
 				/* Update IV counter. */
 				for(int j = 15; j >= 0; j--){
 					this.iv[j] += 1;
@@ -226,13 +310,19 @@ public class ChannelStreamer implements ChannelListener {
 			this.channelTotal += data.length;
 			
 			this.total += data.length;
+			
+			return true;
 		}
 		catch(Exception e){
-			/* Don't care. */
+			/* Client disconnected, stop downloading and decrypting for nobody. */
+			this.close();
+			
+			return false;
 		}
 	}
 	
-	public void channelEnd(Channel channel){
+	/* Cache the substream that ended and request the next one. Returns false if the stream is done. */
+	private boolean next(){
 		/* Create cache hash. */
 		String hash = this.cache.hash(this.track, this.channelOffset, this.channelLength);
 		
@@ -248,7 +338,7 @@ public class ChannelStreamer implements ChannelListener {
 				
 				System.out.format("Stream: 0x%08x\n", this.total - 167);
 				
-				return;
+				return false;
 			}
 			
 			this.channelOffset += this.channelLength;
@@ -261,18 +351,74 @@ public class ChannelStreamer implements ChannelListener {
 			else{
 				this.protocol.sendSubstreamRequest(this, this.track, this.track.getFile(File.BITRATE_160), this.channelOffset, this.channelLength);
 			}
+			
+			return true;
 		}
 		catch(IOException e){
 			/* Ignore. */
 		}
 		catch(ProtocolException e){
-			/* Ignore. */
+			/* Connection is gone, end the response. */
+			this.close();
 		}
 		
-		Channel.unregister(channel.getId());
+		return false;
 	}
 	
-	public void channelError(Channel channel){
-		/* Ignore. */
+	/* Stop streaming and close the exchange, cutting the response short. */
+	private void close(){
+		Channel channel = this.channel;
+		
+		this.isClosed = true;
+		
+		if(channel != null){
+			channel.cancel();
+		}
+		
+		this.exchange.close();
+	}
+	
+	/**
+	 * Handles queued data in order, until the stream ends or the client is gone.
+	 */
+	private class Writer implements Runnable {
+		public void run(){
+			while(true){
+				byte[] data;
+				
+				synchronized(ChannelStreamer.this){
+					while(queue.isEmpty()){
+						try{
+							ChannelStreamer.this.wait();
+						}
+						catch(InterruptedException e){
+							return;
+						}
+					}
+					
+					data = queue.removeFirst();
+					
+					queueSize -= data.length;
+				}
+				
+				if(data == HEADER){
+					cacheData    = new byte[channelLength];
+					channelTotal = 0;
+				}
+				else if(data == END){
+					if(!next()){
+						return;
+					}
+				}
+				else if(data == ERROR){
+					close();
+					
+					return;
+				}
+				else if(!write(data)){
+					return;
+				}
+			}
+		}
 	}
 }
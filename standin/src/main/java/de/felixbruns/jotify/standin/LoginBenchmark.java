@@ -0,0 +1,143 @@
+package de.felixbruns.jotify.standin;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.felixbruns.jotify.JotifyConnection;
+import de.felixbruns.jotify.crypto.KeyMaterialPool;
+import de.felixbruns.jotify.util.LatencyHistogram;
+
+/**
+ * Opens a burst of connections to a local {@link StandinServer} at once,
+ * first generating key pairs on every login and then with a filled
+ * {@link KeyMaterialPool}, and prints the login latency distributions.
+ * Latency is measured from creating the connection (which creates the
+ * session and its key pairs) until the login returned.
+ *
+ * Usage: {@code LoginBenchmark [connections] [rounds]}
+ */
+public class LoginBenchmark {
+	public static void main(String[] args) throws Exception {
+		int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+		int rounds      = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		
+		StandinServer   server = new StandinServer(0);
+		KeyMaterialPool pool   = KeyMaterialPool.getDefault();
+		
+		server.start();
+		
+		System.setProperty("jotify.server", "localhost:" + server.getPort());
+		
+		/* Warm up class loading and the JIT. */
+		drain(pool);
+		
+		burst(server, connections);
+		
+		LatencyHistogram withoutPool = new LatencyHistogram();
+		LatencyHistogram withPool    = new LatencyHistogram();
+		
+		for(int i = 0; i < rounds; i++){
+			drain(pool);
+			
+			record(withoutPool, burst(server, connections));
+			
+			/* Fill the pool before the burst, like a gateway does on startup. */
+			pool.setDepth(connections);
+			
+			while(pool.getAvailable() < connections){
+				Thread.sleep(10);
+			}
+			
+			record(withPool, burst(server, connections));
+		}
+		
+		print("without key pool", withoutPool);
+		print("with key pool   ", withPool);
+		
+		server.close();
+	}
+	
+	/* Log in a number of connections at the same time and return their login times. */
+	private static long[] burst(final StandinServer server, int connections) throws InterruptedException {
+		final long[]             nanos = new long[connections];
+		final JotifyConnection[] open  = new JotifyConnection[connections];
+		final CountDownLatch     start = new CountDownLatch(1);
+		final CountDownLatch     done  = new CountDownLatch(connections);
+		
+		for(int i = 0; i < connections; i++){
+			final int index = i;
+			
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						start.await();
+						
+						long             begin      = System.nanoTime();
+						JotifyConnection connection = new JotifyConnection();
+						
+						connection.login("benchmark", server.getPassword());
+						
+						nanos[index] = System.nanoTime() - begin;
+						open[index]  = connection;
+					}
+					catch(Exception e){
+						System.err.println("Login failed: " + e);
+					}
+					finally{
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		
+		start.countDown();
+		done.await();
+		
+		/* Close connections after the burst, once their I/O threads are running. */
+		Thread.sleep(100);
+		
+		for(JotifyConnection connection : open){
+			if(connection != null){
+				try{
+					connection.close();
+				}
+				catch(Exception e){
+					/* Ignore. */
+				}
+			}
+		}
+		
+		return nanos;
+	}
+	
+	/* Stop pre-generating key pairs and throw away the ones left in the pool. */
+	private static void drain(KeyMaterialPool pool) throws InterruptedException {
+		pool.setDepth(0);
+		
+		/* Let the pool finish a key pair it's generating right now. */
+		Thread.sleep(500);
+		
+		while(pool.getAvailable() > 0){
+			pool.takeRSAKeyPair();
+			pool.takeDHKeyPair();
+		}
+	}
+	
+	private static void record(LatencyHistogram histogram, long[] nanos){
+		for(long value : nanos){
+			if(value > 0){
+				histogram.record(value);
+			}
+		}
+	}
+	
+	private static void print(String name, LatencyHistogram histogram){
+		TimeUnit unit = TimeUnit.MILLISECONDS;
+		
+		System.out.format(
+			"%s: %d logins, mean %d ms, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms\n",
+			name, histogram.getCount(), histogram.getMean(unit), histogram.getPercentile(50, unit),
+			histogram.getPercentile(90, unit), histogram.getPercentile(99, unit), histogram.getMax(unit)
+		);
+	}
+}
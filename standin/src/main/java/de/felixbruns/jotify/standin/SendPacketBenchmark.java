@@ -0,0 +1,111 @@
+package de.felixbruns.jotify.standin;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.sun.management.ThreadMXBean;
+
+import de.felixbruns.jotify.JotifyConnection;
+import de.felixbruns.jotify.protocol.Command;
+import de.felixbruns.jotify.protocol.Protocol;
+
+/**
+ * Sends packets of different payload sizes to a local {@link StandinServer}
+ * and prints the bytes allocated per packet by the sending thread and the
+ * time per packet. Packets are cache hashes, which the server ignores.
+ * Allocation is measured with the per-thread allocation counter of the
+ * HotSpot {@code ThreadMXBean}, so it's only printed on VMs that have one.
+ *
+ * Usage: {@code SendPacketBenchmark [packets] [payload sizes...]}
+ */
+public class SendPacketBenchmark {
+	public static void main(String[] args) throws Exception {
+		int   packets = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int[] sizes   = { 0, 22, 200, 4096 };
+		
+		if(args.length > 1){
+			sizes = new int[args.length - 1];
+			
+			for(int i = 1; i < args.length; i++){
+				sizes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		
+		StandinServer server = new StandinServer(0);
+		
+		server.start();
+		
+		System.setProperty("jotify.server", "localhost:" + server.getPort());
+		
+		BenchmarkConnection connection = new BenchmarkConnection();
+		
+		connection.login("benchmark", server.getPassword());
+		
+		Protocol     protocol = connection.getProtocol();
+		ThreadMXBean threads  = allocationCounter();
+		
+		/* Warm up the JIT. */
+		for(int size : sizes){
+			send(protocol, size, packets / 4);
+		}
+		
+		System.out.format("%d packets per payload size\n", packets);
+		
+		for(int size : sizes){
+			long thread    = Thread.currentThread().getId();
+			long allocated = (threads != null) ? threads.getThreadAllocatedBytes(thread) : 0;
+			long nanos     = send(protocol, size, packets);
+			
+			if(threads != null){
+				allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+				
+				System.out.format(
+					"payload %5d bytes: %d bytes allocated, %d ns per packet\n",
+					size, allocated / packets, nanos / packets
+				);
+			}
+			else{
+				System.out.format("payload %5d bytes: %d ns per packet\n", size, nanos / packets);
+			}
+		}
+		
+		connection.close();
+		server.close();
+	}
+	
+	/* Send a number of packets with a payload of the given size and return the time it took. */
+	private static long send(Protocol protocol, int size, int packets) throws Exception {
+		ByteBuffer payload = ByteBuffer.allocate(size);
+		long       begin   = System.nanoTime();
+		
+		for(int i = 0; i < packets; i++){
+			payload.clear();
+			
+			protocol.sendPacket(Command.COMMAND_CACHEHASH, payload);
+		}
+		
+		return System.nanoTime() - begin;
+	}
+	
+	/* Get the per-thread allocation counter, or null if the VM doesn't have one. */
+	private static ThreadMXBean allocationCounter(){
+		Object bean = ManagementFactory.getThreadMXBean();
+		
+		if(bean instanceof ThreadMXBean){
+			ThreadMXBean threads = (ThreadMXBean)bean;
+			
+			if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()){
+				return threads;
+			}
+		}
+		
+		return null;
+	}
+	
+	/* Gives access to the protocol of a logged in connection. */
+	private static class BenchmarkConnection extends JotifyConnection {
+		private Protocol getProtocol(){
+			return this.protocol;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package de.felixbruns.jotify.standin;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.felixbruns.jotify.crypto.Shannon;
+
+/**
+ * Measures the throughput of {@link Shannon} decryption in MB/s for the
+ * ways callers can hand it data: copying a region into a right-sized array
+ * and back (what callers had to do before there were offset/length
+ * variants), decrypting the region in place, and decrypting heap and
+ * direct {@link ByteBuffer}s. Every packet gets a new nonce and a MAC,
+ * like on a connection.
+ *
+ * Usage: {@code ShannonBenchmark [packet size] [rounds]}
+ */
+public class ShannonBenchmark {
+	/* Time spent on each variant per round. */
+	private static final long ROUND_NANOS = 500 * 1000 * 1000L;
+	
+	/* Offset of the packet payload in the receive buffer, after the header. */
+	private static final int OFFSET = 3;
+	
+	private static final String[] NAMES = {
+		"copy + decrypt(byte[])  ",
+		"decrypt(byte[], off, n) ",
+		"decrypt(heap buffer)    ",
+		"decrypt(direct buffer)  "
+	};
+	
+	public static void main(String[] args){
+		int size   = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		
+		Shannon shannon = new Shannon();
+		byte[]  key     = new byte[32];
+		byte[]  data    = new byte[OFFSET + size];
+		
+		new Random(0).nextBytes(key);
+		new Random(1).nextBytes(data);
+		
+		shannon.key(key);
+		
+		ByteBuffer heap   = ByteBuffer.wrap(data.clone(), OFFSET, size).slice();
+		ByteBuffer direct = ByteBuffer.allocateDirect(size);
+		
+		direct.put(data, OFFSET, size).clear();
+		
+		/* Warm up the JIT. */
+		for(int v = 0; v < NAMES.length; v++){
+			run(v, shannon, data, size, heap, direct);
+		}
+		
+		double[][] results = new double[NAMES.length][rounds];
+		
+		/* Interleave variants, so drifting machine load hits all of them. */
+		for(int i = 0; i < rounds; i++){
+			for(int v = 0; v < NAMES.length; v++){
+				results[v][i] = run(v, shannon, data, size, heap, direct);
+			}
+		}
+		
+		System.out.format("%d byte packets, %d rounds (MB/s)\n", size, rounds);
+		
+		for(int v = 0; v < NAMES.length; v++){
+			Arrays.sort(results[v]);
+			
+			System.out.format(
+				"%s min %6.0f, median %6.0f, max %6.0f\n",
+				NAMES[v], results[v][0], results[v][rounds / 2], results[v][rounds - 1]
+			);
+		}
+	}
+	
+	/* Decrypt packets with one variant for a round and return MB/s. */
+	private static double run(int variant, Shannon shannon, byte[] data, int size, ByteBuffer heap, ByteBuffer direct){
+		byte[] mac     = new byte[4];
+		long   packets = 0;
+		long   begin   = System.nanoTime();
+		long   elapsed;
+		
+		do{
+			for(int i = 0; i < 64; i++, packets++){
+				shannon.nonce((int)packets);
+				
+				switch(variant){
+					case 0: {
+						byte[] payload = Arrays.copyOfRange(data, OFFSET, OFFSET + size);
+						
+						shannon.decrypt(payload);
+						
+						System.arraycopy(payload, 0, data, OFFSET, size);
+						
+						break;
+					}
+					case 1: {
+						shannon.decrypt(data, OFFSET, size);
+						
+						break;
+					}
+					case 2: {
+						shannon.decrypt(heap);
+						
+						break;
+					}
+					default: {
+						shannon.decrypt(direct);
+						
+						break;
+					}
+				}
+				
+				shannon.finish(mac);
+			}
+		}
+		while((elapsed = System.nanoTime() - begin) < ROUND_NANOS);
+		
+		return (packets * size / (1024.0 * 1024.0)) / (elapsed / 1e9);
+	}
+}
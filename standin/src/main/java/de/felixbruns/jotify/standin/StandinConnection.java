@@ -0,0 +1,588 @@
+package de.felixbruns.jotify.standin;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import de.felixbruns.jotify.crypto.DH;
+import de.felixbruns.jotify.crypto.DH.DHKeyPair;
+import de.felixbruns.jotify.crypto.Hash;
+import de.felixbruns.jotify.crypto.RandomBytes;
+import de.felixbruns.jotify.crypto.Shannon;
+import de.felixbruns.jotify.protocol.Command;
+import de.felixbruns.jotify.util.Hex;
+
+/**
+ * One client connection of the {@link StandinServer}: the server side of
+ * the handshake in {@link de.felixbruns.jotify.protocol.Session#authenticate},
+ * followed by the encrypted packet loop. Requests are read on the thread
+ * of this connection, responses are delayed on the server's scheduler and
+ * streamed in chunks, sharing the connection's bandwidth.
+ */
+class StandinConnection implements Runnable {
+	/* Channel data bytes per packet. */
+	private static final int CHUNK_SIZE = 4096;
+	
+	/* Puzzle difficulty (number of low bits that need to be zero). */
+	private static final int PUZZLE_DENOMINATOR = 8;
+	
+	/* Interval of ping packets in seconds. */
+	private static final int PING_INTERVAL = Integer.getInteger("jotify.standin.ping", 60);
+	
+	private StandinServer   server;
+	private Socket          socket;
+	private DataInputStream input;
+	private OutputStream    output;
+	
+	/* Stream ciphers and their IVs (send side guarded by this). */
+	private Shannon shannonSend;
+	private Shannon shannonRecv;
+	private int     sendIv;
+	private int     recvIv;
+	
+	/* Earliest time of the next send (System.nanoTime), for bandwidth limiting. */
+	private long nextSend;
+	
+	/* Public RSA key of the client, sent back in the secret block. */
+	private byte[] rsaPublicKey;
+	
+	/* Responses being prepared or streamed by channel id. */
+	private ConcurrentMap<Integer, Response> responses;
+	
+	StandinConnection(StandinServer server, Socket socket) throws IOException {
+		this.server      = server;
+		this.socket      = socket;
+		this.input       = new DataInputStream(socket.getInputStream());
+		this.output      = socket.getOutputStream();
+		this.shannonSend = new Shannon();
+		this.shannonRecv = new Shannon();
+		this.sendIv      = 0;
+		this.recvIv      = 0;
+		this.nextSend    = 0;
+		this.responses   = new ConcurrentHashMap<Integer, Response>();
+	}
+	
+	public void run(){
+		ScheduledFuture<?> ping = null;
+		
+		try{
+			if(!this.handshake()){
+				return;
+			}
+			
+			this.sendWelcome();
+			
+			/* Ping client regularly, like the real servers do. */
+			ping = this.server.getScheduler().scheduleAtFixedRate(new Runnable(){
+				public void run(){
+					try{
+						StandinConnection.this.sendPacket(Command.COMMAND_PING, ByteBuffer.allocate(4)
+							.putInt((int)(System.currentTimeMillis() / 1000)).array()
+						);
+					}
+					catch(IOException e){
+						StandinConnection.this.close();
+					}
+				}
+			}, PING_INTERVAL, PING_INTERVAL, TimeUnit.SECONDS);
+			
+			/* Handle packets until the client disconnects. */
+			while(true){
+				this.receivePacket();
+			}
+		}
+		catch(EOFException e){
+			/* Client disconnected. */
+		}
+		catch(IOException e){
+			if(!this.socket.isClosed()){
+				System.err.println("Stand-in connection failed: " + e.getMessage());
+			}
+		}
+		finally{
+			if(ping != null){
+				ping.cancel(false);
+			}
+			
+			for(Response response : this.responses.values()){
+				response.aborted = true;
+			}
+			
+			this.close();
+		}
+	}
+	
+	/* Server side of the key exchange and authentication. Returns false if authentication failed. */
+	private boolean handshake() throws IOException {
+		/* Read initial client packet: version, length and the rest. */
+		byte[] header = new byte[4];
+		
+		this.input.readFully(header);
+		
+		byte[] clientPacket = new byte[ByteBuffer.wrap(header).getShort(2) & 0xffff];
+		
+		System.arraycopy(header, 0, clientPacket, 0, 4);
+		
+		this.input.readFully(clientPacket, 4, clientPacket.length - 4);
+		
+		/* Get client random, DH and RSA public keys. */
+		byte[] clientRandom   = Arrays.copyOfRange(clientPacket, 32, 48);
+		byte[] dhPublicKey    = Arrays.copyOfRange(clientPacket, 48, 144);
+		int    usernameOffset = 276 + (clientPacket[272] & 0xff);
+		byte[] username       = Arrays.copyOfRange(clientPacket, usernameOffset, usernameOffset + (clientPacket[273] & 0xff));
+		
+		this.rsaPublicKey = Arrays.copyOfRange(clientPacket, 144, 272);
+		
+		/* Create initial server packet. */
+		DHKeyPair dhKeyPair    = DH.generateKeyPair(768);
+		byte[]    serverRandom = RandomBytes.randomBytes(16);
+		byte[]    salt         = RandomBytes.randomBytes(10);
+		int       puzzleMagic  = ByteBuffer.wrap(RandomBytes.randomBytes(4)).getInt();
+		
+		serverRandom[0] = 0x00; /* Status: OK. */
+		
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 96 + 256 + 10 + 1 + 1 + 8 + 1 + username.length + 6);
+		
+		buffer.put(serverRandom);
+		buffer.put(dhKeyPair.getPublicKeyBytes());
+		buffer.put(RandomBytes.randomBytes(256)); /* Server blob, not checked by the client. */
+		buffer.put(salt);
+		buffer.put((byte)1); /* Padding length. */
+		buffer.put((byte)username.length);
+		buffer.putShort((short)6); /* Puzzle challenge length. */
+		buffer.putShort((short)0);
+		buffer.putShort((short)0);
+		buffer.putShort((short)0);
+		buffer.put((byte)0); /* Padding. */
+		buffer.put(username);
+		buffer.put((byte)0x01); /* SHA-1 puzzle. */
+		buffer.put((byte)PUZZLE_DENOMINATOR);
+		buffer.putInt(puzzleMagic);
+		
+		byte[] serverPacket = buffer.array();
+		
+		this.output.write(serverPacket);
+		this.output.flush();
+		
+		/* Compute shared key and derive keys like the client does. */
+		DHPublicKey clientKey = DH.bytesToPublicKey(
+			dhKeyPair.getPublicKey().getParams(), dhPublicKey
+		);
+		byte[] sharedKey = DH.computeSharedKey(dhKeyPair.getPrivateKey(), clientKey);
+		byte[] password  = this.server.getPassword().getBytes();
+		byte[] authHash  = Hash.sha1(ByteBuffer.allocate(10 + 1 + password.length)
+			.put(salt).put((byte)' ').put(password).array()
+		);
+		
+		byte[] message = ByteBuffer.allocate(20 + 16 + 16 + 1)
+			.put(authHash).put(clientRandom).put(serverRandom).array();
+		byte[] hmac    = new byte[5 * 20];
+		
+		for(int i = 1; i <= 5; i++){
+			message[message.length - 1] = (byte)i;
+			
+			Hash.hmacSha1(message, sharedKey, hmac, (i - 1) * 20);
+			
+			System.arraycopy(hmac, (i - 1) * 20, message, 0, 20);
+		}
+		
+		byte[] keyHmac = Arrays.copyOfRange(hmac, 0, 20);
+		
+		/* Our receive key is the client's send key and vice versa. */
+		this.shannonRecv.key(Arrays.copyOfRange(hmac, 20, 20 + 32));
+		this.shannonSend.key(Arrays.copyOfRange(hmac, 52, 52 + 32));
+		
+		/* Read authentication packet: HMAC, random length, unknown, solution length, unknown. */
+		byte[] authHeader = new byte[20 + 1 + 1 + 2 + 4];
+		
+		this.input.readFully(authHeader);
+		
+		int    randomLength   = authHeader[20] & 0xff;
+		int    solutionLength = ByteBuffer.wrap(authHeader).getShort(22) & 0xffff;
+		byte[] authRest       = new byte[randomLength + solutionLength];
+		
+		this.input.readFully(authRest);
+		
+		byte[] solution = Arrays.copyOfRange(authRest, randomLength, authRest.length);
+		
+		/* Check HMAC over both initial packets and the rest of the authentication packet. */
+		byte[] expected = Hash.hmacSha1(ByteBuffer.allocate(
+			clientPacket.length + serverPacket.length + 8 + authRest.length
+		).put(clientPacket).put(serverPacket).put(authHeader, 20, 8).put(authRest).array(), keyHmac);
+		
+		boolean valid = Arrays.equals(expected, Arrays.copyOfRange(authHeader, 0, 20));
+		
+		/* Check puzzle solution. */
+		byte[] digest = Hash.sha1(ByteBuffer.allocate(16 + solution.length)
+			.put(serverRandom).put(solution).array()
+		);
+		
+		int nominator = ByteBuffer.wrap(digest).getInt(16) ^ puzzleMagic;
+		
+		valid &= (nominator & ((1 << PUZZLE_DENOMINATOR) - 1)) == 0;
+		
+		/* Send status, payload length and payload. */
+		if(valid){
+			this.output.write(new byte[]{0x00, 0x01, 0x00});
+		}
+		else{
+			this.output.write(new byte[]{0x01, 0x00});
+		}
+		
+		this.output.flush();
+		
+		return valid;
+	}
+	
+	/* Send the packets the real servers send after authentication. */
+	private void sendWelcome() throws IOException {
+		byte[] secret = new byte[336];
+		
+		/* The client checks its RSA public key at offset 16. */
+		System.arraycopy(this.rsaPublicKey, 0, secret, 16, 128);
+		
+		this.sendPacket(Command.COMMAND_SECRETBLK, secret);
+		this.sendPacket(Command.COMMAND_COUNTRYCODE, "SE".getBytes(Charset.forName("UTF-8")));
+		this.sendPacket(Command.COMMAND_PRODINFO, this.server.getContent().productInfo());
+		this.sendPacket(Command.COMMAND_WELCOME, new byte[0]);
+	}
+	
+	/* Receive, decrypt and check a packet, then handle it. */
+	private void receivePacket() throws IOException {
+		byte[] header = new byte[3];
+		byte[] mac    = new byte[4];
+		byte[] check  = new byte[4];
+		
+		this.input.readFully(header);
+		
+		this.shannonRecv.nonce(this.recvIv);
+		this.shannonRecv.decrypt(header);
+		
+		byte[] payload = new byte[((header[1] & 0xff) << 8) | (header[2] & 0xff)];
+		
+		this.input.readFully(payload);
+		this.input.readFully(mac);
+		
+		this.shannonRecv.decrypt(payload);
+		this.shannonRecv.finish(check);
+		
+		this.recvIv++;
+		
+		if(!Arrays.equals(mac, check)){
+			throw new IOException("MAC mismatch!");
+		}
+		
+		this.handle(header[0] & 0xff, ByteBuffer.wrap(payload));
+	}
+	
+	/* Answer a request. */
+	private void handle(int command, ByteBuffer payload){
+		StandinContent content = this.server.getContent();
+		
+		switch(command){
+			case Command.COMMAND_BROWSE: {
+				int id   = payload.getShort(0) & 0xffff;
+				int type = payload.get(4);
+				
+				if(type == 1 || type == 2){
+					String browseId = hex(payload, 5, 16);
+					
+					this.respond(id, (type == 1) ? content.artist(browseId) : content.album(browseId));
+				}
+				else if(type == 3){
+					List<String> ids = new ArrayList<String>();
+					
+					for(int offset = 5; offset + 16 <= payload.limit(); offset += 16){
+						ids.add(hex(payload, offset, 16));
+					}
+					
+					this.respond(id, content.tracks(ids));
+				}
+				else{
+					/* Replacements: derive results from the request. */
+					this.respond(id, content.result("result", hex(payload, 5, payload.limit() - 5)));
+				}
+				
+				break;
+			}
+			case Command.COMMAND_SEARCH: {
+				int    id     = payload.getShort(0) & 0xffff;
+				int    length = payload.get(30) & 0xff;
+				byte[] query  = new byte[length];
+				
+				payload.position(31);
+				payload.get(query);
+				
+				this.respond(id, content.result("result", new String(query, Charset.forName("UTF-8"))));
+				
+				break;
+			}
+			case Command.COMMAND_GETTOPLIST: {
+				int id = payload.getShort(0) & 0xffff;
+				
+				this.respond(id, content.result("toplist", hex(payload, 2, payload.limit() - 2)));
+				
+				break;
+			}
+			case Command.COMMAND_IMAGE: {
+				this.respond(payload.getShort(0) & 0xffff, content.image());
+				
+				break;
+			}
+			case Command.COMMAND_REQKEY: {
+				final int    id  = payload.getShort(38) & 0xffff;
+				final byte[] key = content.key(hex(payload, 0, 20));
+				
+				/* AES keys come in their own packet: unknown, channel id, key. */
+				this.schedule(id, new Runnable(){
+					public void run(){
+						try{
+							StandinConnection.this.sendPacket(Command.COMMAND_AESKEY, ByteBuffer.allocate(2 + 2 + 16)
+								.putShort((short)0).putShort((short)id).put(key).array()
+							);
+						}
+						catch(IOException e){
+							StandinConnection.this.close();
+						}
+					}
+				});
+				
+				break;
+			}
+			case Command.COMMAND_GETSUBSTREAM: {
+				int    id     = payload.getShort(0) & 0xffff;
+				String fileId = hex(payload, 18, 20);
+				int    offset = payload.getInt(38) * 4;
+				int    end    = payload.getInt(42) * 4;
+				
+				this.respond(id, content.substream(fileId, offset, end - offset));
+				
+				break;
+			}
+			case Command.COMMAND_CHANNELABRT: {
+				Response response = this.responses.get(payload.getShort(0) & 0xffff);
+				
+				if(response != null){
+					response.aborted = true;
+				}
+				
+				break;
+			}
+			case Command.COMMAND_REQUESTAD:
+			case Command.COMMAND_GETPLAYLIST:
+			case Command.COMMAND_CHANGEPLAYLIST: {
+				/* Not supported, fail the channel. */
+				final int id = payload.getShort(0) & 0xffff;
+				
+				this.schedule(id, new Runnable(){
+					public void run(){
+						try{
+							StandinConnection.this.sendPacket(Command.COMMAND_CHANNELERR, ByteBuffer.allocate(4)
+								.putShort((short)id).putShort((short)1).array()
+							);
+						}
+						catch(IOException e){
+							StandinConnection.this.close();
+						}
+					}
+				});
+				
+				break;
+			}
+			case Command.COMMAND_PONG: {
+				/* Acknowledge after the response latency, so clients measure it as round trip time. */
+				this.server.getScheduler().schedule(new Runnable(){
+					public void run(){
+						try{
+							StandinConnection.this.sendPacket(Command.COMMAND_PONGACK, new byte[0]);
+						}
+						catch(IOException e){
+							StandinConnection.this.close();
+						}
+					}
+				}, this.server.getLatency(), TimeUnit.MILLISECONDS);
+				
+				break;
+			}
+			default: {
+				/* Cache hash, play request, ... */
+				break;
+			}
+		}
+	}
+	
+	/* Stream data on a channel: an empty header, the data in chunks and an end packet. */
+	private void respond(final int id, final byte[] data){
+		this.schedule(id, new Runnable(){
+			public void run(){
+				StandinConnection connection = StandinConnection.this;
+				Response          response   = connection.responses.get(id);
+				long              stall      = connection.server.getStall();
+				
+				try{
+					connection.sendPacket(Command.COMMAND_CHANNELDATA, channelPacket(id, data, 0, 0, true));
+					
+					for(int offset = 0; offset < data.length; offset += CHUNK_SIZE){
+						if(response != null && response.aborted){
+							return;
+						}
+						
+						/* Keep the channel open without sending anything until it's aborted. */
+						if(stall > 0 && offset >= stall){
+							while(response != null && !response.aborted){
+								TimeUnit.MILLISECONDS.sleep(50);
+							}
+							
+							return;
+						}
+						
+						connection.sendPacket(Command.COMMAND_CHANNELDATA, channelPacket(
+							id, data, offset, Math.min(CHUNK_SIZE, data.length - offset), false
+						));
+					}
+					
+					connection.sendPacket(Command.COMMAND_CHANNELDATA, channelPacket(id, data, 0, 0, false));
+				}
+				catch(IOException e){
+					connection.close();
+				}
+				catch(InterruptedException e){
+					/* Server was closed. */
+				}
+			}
+		});
+	}
+	
+	/* Run a response after the configured latency, unless it's aborted before. */
+	private void schedule(final int id, final Runnable task){
+		final Response response = new Response();
+		
+		this.responses.put(id, response);
+		
+		final Runnable run = new Runnable(){
+			public void run(){
+				try{
+					if(!response.aborted){
+						task.run();
+					}
+				}
+				finally{
+					StandinConnection.this.responses.remove(id, response);
+				}
+			}
+		};
+		
+		if(this.server.getLatency() > 0){
+			this.server.getScheduler().schedule(new Runnable(){
+				public void run(){
+					StandinConnection.this.server.getExecutor().execute(run);
+				}
+			}, this.server.getLatency(), TimeUnit.MILLISECONDS);
+		}
+		else{
+			this.server.getExecutor().execute(run);
+		}
+	}
+	
+	/*
+	 * Encrypt and send a packet. Packets are written one at a time, so
+	 * concurrent responses share the connection's bandwidth.
+	 */
+	private synchronized void sendPacket(int command, byte[] payload) throws IOException {
+		byte[] packet = new byte[3 + payload.length + 4];
+		
+		packet[0] = (byte)command;
+		packet[1] = (byte)(payload.length >> 8);
+		packet[2] = (byte)payload.length;
+		
+		System.arraycopy(payload, 0, packet, 3, payload.length);
+		
+		this.shannonSend.nonce(this.sendIv);
+		this.shannonSend.encrypt(packet, 0, 3 + payload.length);
+		
+		byte[] mac = new byte[4];
+		
+		this.shannonSend.finish(mac);
+		
+		System.arraycopy(mac, 0, packet, 3 + payload.length, 4);
+		
+		this.sendIv++;
+		
+		/* Wait until the bandwidth allows sending this packet. */
+		long bandwidth = this.server.getBandwidth();
+		
+		if(bandwidth > 0){
+			long now   = System.nanoTime();
+			long start = Math.max(this.nextSend, now);
+			long wait  = start - now;
+			
+			this.nextSend = start + packet.length * 1000000000L / bandwidth;
+			
+			if(wait > 0){
+				try{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch(InterruptedException e){
+					throw new IOException("Interrupted while sending.");
+				}
+			}
+		}
+		
+		this.output.write(packet);
+		this.output.flush();
+	}
+	
+	private void close(){
+		try{
+			this.socket.close();
+		}
+		catch(IOException e){
+			/* Ignore. */
+		}
+	}
+	
+	/* Build a channel data packet: channel id and data, or an (empty) header. */
+	private static byte[] channelPacket(int id, byte[] data, int offset, int length, boolean header){
+		ByteBuffer buffer = ByteBuffer.allocate(2 + (header ? 2 : length));
+		
+		buffer.putShort((short)id);
+		
+		if(header){
+			buffer.putShort((short)0); /* Last (zero length) header. */
+		}
+		else{
+			buffer.put(data, offset, length);
+		}
+		
+		return buffer.array();
+	}
+	
+	/* Get bytes of a payload as a hex string. */
+	private static String hex(ByteBuffer payload, int offset, int length){
+		byte[] bytes = new byte[Math.max(0, length)];
+		
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = payload.get(offset + i);
+		}
+		
+		return Hex.toHex(bytes);
+	}
+	
+	/* A pending or streaming response, marked when its channel is aborted. */
+	private static class Response {
+		private volatile boolean aborted;
+	}
+}
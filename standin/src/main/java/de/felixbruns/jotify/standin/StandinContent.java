@@ -0,0 +1,243 @@
+package de.felixbruns.jotify.standin;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import javax.imageio.ImageIO;
+
+import de.felixbruns.jotify.crypto.Hash;
+import de.felixbruns.jotify.util.Hex;
+
+/**
+ * Canned responses of the stand-in server. Metadata is synthesized from
+ * the requested ids, so every id browses to the same artist, album or track
+ * on every run, and all ids a response refers to can be browsed again.
+ * The XML has the layout the media parsers expect (no whitespace between
+ * elements) and is GZIP compressed like the responses of the real servers.
+ */
+public class StandinContent {
+	/* Number of tracks on an album, search results and toplists. */
+	private static final int TRACKS = 10;
+	
+	/* Length of a synthetic track in milliseconds and bitrate of its file. */
+	private static final int LENGTH  = 240000;
+	private static final int BITRATE = 160000;
+	
+	/* A small JPEG served for every image request. */
+	private byte[] image;
+	
+	public StandinContent(){
+		this.image = createImage();
+	}
+	
+	/**
+	 * Get the size of every synthetic file in bytes.
+	 */
+	public int getFileSize(){
+		return LENGTH / 1000 * BITRATE / 8;
+	}
+	
+	/**
+	 * Get product info of a user.
+	 */
+	public byte[] productInfo(){
+		return bytes(
+			"<products><product><type>premium</type><expiry>0</expiry>" +
+			"<catalogue>premium</catalogue></product></products>"
+		);
+	}
+	
+	/**
+	 * Browse an artist.
+	 */
+	public byte[] artist(String id){
+		String album = derive("album", id);
+		
+		return gzip(
+			"<artist><id>" + id + "</id><name>Artist " + id.substring(0, 6) + "</name>" +
+			"<popularity>0.5</popularity><albums><album><id>" + album + "</id>" +
+			"<name>Album " + album.substring(0, 6) + "</name></album></albums></artist>"
+		);
+	}
+	
+	/**
+	 * Browse an album with {@link #TRACKS} tracks.
+	 */
+	public byte[] album(String id){
+		String        artist  = derive("artist", id);
+		StringBuilder builder = new StringBuilder();
+		
+		builder.append("<album><id>").append(id).append("</id>");
+		builder.append("<name>Album ").append(id.substring(0, 6)).append("</name>");
+		builder.append("<artist>Artist ").append(artist.substring(0, 6)).append("</artist>");
+		builder.append("<artist-id>").append(artist).append("</artist-id>");
+		builder.append("<year>2010</year><discs><disc><disc-number>1</disc-number>");
+		
+		for(int i = 0; i < TRACKS; i++){
+			this.appendTrack(builder, derive("track" + i, id), i + 1);
+		}
+		
+		builder.append("</disc></discs></album>");
+		
+		return gzip(builder.toString());
+	}
+	
+	/**
+	 * Browse a list of tracks.
+	 */
+	public byte[] tracks(Collection<String> ids){
+		StringBuilder builder = new StringBuilder();
+		
+		builder.append("<result><version>1</version><tracks>");
+		
+		for(String id : ids){
+			this.appendTrack(builder, id, 1);
+		}
+		
+		builder.append("</tracks></result>");
+		
+		return gzip(builder.toString());
+	}
+	
+	/**
+	 * Search results or a toplist with {@link #TRACKS} tracks.
+	 *
+	 * @param root  Name of the root element ('result' or 'toplist').
+	 * @param query Query or toplist parameters the tracks are derived from.
+	 */
+	public byte[] result(String root, String query){
+		StringBuilder builder = new StringBuilder();
+		
+		builder.append("<").append(root).append("><version>1</version>");
+		builder.append("<total-artists>0</total-artists><total-albums>0</total-albums>");
+		builder.append("<total-tracks>").append(TRACKS).append("</total-tracks><tracks>");
+		
+		for(int i = 0; i < TRACKS; i++){
+			this.appendTrack(builder, derive("result" + i, query), i + 1);
+		}
+		
+		builder.append("</tracks></").append(root).append(">");
+		
+		return gzip(builder.toString());
+	}
+	
+	/**
+	 * Get an image (the same for every id).
+	 */
+	public byte[] image(){
+		return this.image;
+	}
+	
+	/**
+	 * Get the AES key of a file.
+	 */
+	public byte[] key(String fileId){
+		byte[] key = new byte[16];
+		
+		System.arraycopy(Hash.sha1(bytes("key" + fileId)), 0, key, 0, 16);
+		
+		return key;
+	}
+	
+	/**
+	 * Get a part of a file. The data is pseudo-random, deterministic for
+	 * a file id and position in the file (so resumed requests continue
+	 * the same data), and is not a decodable Ogg Vorbis stream.
+	 *
+	 * @param fileId The file id.
+	 * @param offset Offset in the file.
+	 * @param length Number of bytes to get, cut off at the end of the file.
+	 */
+	public byte[] substream(String fileId, int offset, int length){
+		length = Math.max(0, Math.min(length, this.getFileSize() - offset));
+		
+		byte[] data  = new byte[length];
+		byte[] block = new byte[4096];
+		
+		/* Generate the 4096 byte blocks covering the range. */
+		for(int position = offset - offset % block.length; position < offset + length; position += block.length){
+			new Random(fileId.hashCode() * 31L + position).nextBytes(block);
+			
+			int from = Math.max(offset, position);
+			int to   = Math.min(offset + length, position + block.length);
+			
+			System.arraycopy(block, from - position, data, from - offset, to - from);
+		}
+		
+		return data;
+	}
+	
+	/* Append a track with ids derived from its own id. */
+	private void appendTrack(StringBuilder builder, String id, int number){
+		String artist = derive("artist", id);
+		String album  = derive("album", id);
+		String file   = Hex.toHex(Hash.sha1(bytes("file" + id)));
+		
+		builder.append("<track><id>").append(id).append("</id>");
+		builder.append("<title>Track ").append(id.substring(0, 6)).append("</title>");
+		builder.append("<artist>Artist ").append(artist.substring(0, 6)).append("</artist>");
+		builder.append("<artist-id>").append(artist).append("</artist-id>");
+		builder.append("<album>Album ").append(album.substring(0, 6)).append("</album>");
+		builder.append("<album-id>").append(album).append("</album-id>");
+		builder.append("<year>2010</year>");
+		builder.append("<track-number>").append(number).append("</track-number>");
+		builder.append("<length>").append(LENGTH).append("</length>");
+		builder.append("<files><file id=\"").append(file).append("\" format=\"Ogg Vorbis,");
+		builder.append(BITRATE).append(",1,-1,-1\"/></files>");
+		builder.append("<popularity>0.5</popularity></track>");
+	}
+	
+	/* Derive a 32-character hex id from a seed and another id. */
+	private static String derive(String seed, String id){
+		return Hex.toHex(Hash.md5(bytes(seed + id)));
+	}
+	
+	private static byte[] bytes(String string){
+		return string.getBytes(Charset.forName("UTF-8"));
+	}
+	
+	private static byte[] gzip(String xml){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try{
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			
+			gzip.write(bytes(xml));
+			gzip.close();
+		}
+		catch(IOException e){
+			throw new RuntimeException(e);
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	/* Paint a small cover image. */
+	private static byte[] createImage(){
+		BufferedImage         image  = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		Graphics2D            g      = image.createGraphics();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect(0, 0, 64, 64);
+		g.setColor(Color.GREEN);
+		g.fillOval(16, 16, 32, 32);
+		g.dispose();
+		
+		try{
+			ImageIO.write(image, "jpg", output);
+		}
+		catch(IOException e){
+			throw new RuntimeException(e);
+		}
+		
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,211 @@
+package de.felixbruns.jotify.standin;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local stand-in for a Spotify access point, for load and latency tests
+ * without a live server. It does the key exchange, puzzle and HMAC checks
+ * of the real handshake, speaks the Shannon encrypted packet protocol and
+ * answers browse, search, toplist, image, AES key and substream requests
+ * with synthetic content (see {@link StandinContent}). Playlists and ads
+ * are answered with a channel error.
+ *
+ * Responses are delayed by a configurable latency and every connection's
+ * downstream is limited to a configurable bandwidth. Responses can also stall
+ * after a number of bytes, to test how clients handle channels that stop
+ * receiving data mid-stream. Point clients at it
+ * with the system property {@code jotify.server=localhost:4070}. Any user
+ * name is accepted with the configured password.
+ *
+ * Usage: {@code StandinServer [port]} with the system properties
+ * {@code jotify.standin.latency} (milliseconds, default 0),
+ * {@code jotify.standin.bandwidth} (bytes per second and connection,
+ * default 0 for unlimited), {@code jotify.standin.stall} (bytes of
+ * channel data after which responses stop until they are aborted,
+ * default 0 for never), {@code jotify.standin.password}
+ * (default "standin") and {@code jotify.standin.ping} (seconds between
+ * pings, default 60).
+ */
+public class StandinServer implements Runnable {
+	/* Listening socket. */
+	private ServerSocket socket;
+	
+	/* Response latency, downstream bandwidth per connection, stall point and accepted password. */
+	private long   latency;
+	private long   bandwidth;
+	private long   stall;
+	private String password;
+	
+	/* Content, scheduler that delays responses and executor that streams them. */
+	private StandinContent           content;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService          executor;
+	
+	/**
+	 * Create a stand-in server listening on a port.
+	 *
+	 * @param port The port to listen on, 0 for any free port.
+	 *
+	 * @throws IOException If the port can't be bound.
+	 */
+	public StandinServer(int port) throws IOException {
+		this.socket    = new ServerSocket();
+		this.latency   = Long.getLong("jotify.standin.latency", 0);
+		this.bandwidth = Long.getLong("jotify.standin.bandwidth", 0);
+		this.stall     = Long.getLong("jotify.standin.stall", 0);
+		this.password  = System.getProperty("jotify.standin.password", "standin");
+		this.content   = new StandinContent();
+		this.scheduler = Executors.newScheduledThreadPool(1);
+		this.executor  = Executors.newCachedThreadPool();
+		
+		this.socket.setReuseAddress(true);
+		this.socket.bind(new InetSocketAddress("localhost", port));
+	}
+	
+	/**
+	 * Set the time to wait before answering a request.
+	 *
+	 * @param latency Latency, 0 to answer immediately.
+	 * @param unit    The {@link TimeUnit} of the latency.
+	 */
+	public void setLatency(long latency, TimeUnit unit){
+		this.latency = unit.toMillis(latency);
+	}
+	
+	/**
+	 * Set the downstream bandwidth of each connection.
+	 *
+	 * @param bytesPerSecond Bandwidth, 0 for unlimited.
+	 */
+	public void setBandwidth(long bytesPerSecond){
+		this.bandwidth = bytesPerSecond;
+	}
+	
+	/**
+	 * Let responses stop sending data after a number of bytes, without
+	 * ending their channel, until the client aborts the channel.
+	 *
+	 * @param bytes Channel data bytes to send before stalling, 0 to never stall.
+	 */
+	public void setStall(long bytes){
+		this.stall = bytes;
+	}
+	
+	/**
+	 * Set the password users have to log in with.
+	 */
+	public void setPassword(String password){
+		this.password = password;
+	}
+	
+	/**
+	 * Get the port the server listens on.
+	 */
+	public int getPort(){
+		return this.socket.getLocalPort();
+	}
+	
+	long getLatency(){
+		return this.latency;
+	}
+	
+	long getBandwidth(){
+		return this.bandwidth;
+	}
+	
+	long getStall(){
+		return this.stall;
+	}
+	
+	String getPassword(){
+		return this.password;
+	}
+	
+	StandinContent getContent(){
+		return this.content;
+	}
+	
+	ScheduledExecutorService getScheduler(){
+		return this.scheduler;
+	}
+	
+	ExecutorService getExecutor(){
+		return this.executor;
+	}
+	
+	/**
+	 * Start accepting connections on a new thread.
+	 */
+	public void start(){
+		Thread thread = new Thread(this, "Standin-Server");
+		
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Accept connections until the server is closed.
+	 */
+	public void run(){
+		while(!this.socket.isClosed()){
+			try{
+				Socket client = this.socket.accept();
+				
+				client.setTcpNoDelay(true);
+				
+				Thread thread = new Thread(
+					new StandinConnection(this, client), "Standin-" + client.getPort()
+				);
+				
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch(SocketException e){
+				/* Server socket was closed. */
+			}
+			catch(IOException e){
+				System.err.println("Error accepting connection: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Stop accepting connections. Open connections are closed by their clients.
+	 */
+	public void close(){
+		try{
+			this.socket.close();
+		}
+		catch(IOException e){
+			/* Ignore. */
+		}
+		
+		this.scheduler.shutdownNow();
+		this.executor.shutdownNow();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int port = 4070;
+		
+		if(args.length == 1){
+			port = Integer.parseInt(args[0]);
+		}
+		
+		StandinServer server = new StandinServer(port);
+		
+		System.out.format(
+			"Stand-in listening on localhost:%d (latency %dms, bandwidth %s)\n", server.getPort(),
+			server.getLatency(), (server.getBandwidth() > 0) ? server.getBandwidth() + " B/s" : "unlimited"
+		);
+		
+		server.run();
+	}
+}